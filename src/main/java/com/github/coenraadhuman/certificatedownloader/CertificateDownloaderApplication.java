@@ -1,9 +1,35 @@
 package com.github.coenraadhuman.certificatedownloader;
 
+import com.github.coenraadhuman.certificatedownloader.net.KeyStoreWriter;
+import com.github.coenraadhuman.certificatedownloader.net.ProtocolNegotiator;
+import com.github.coenraadhuman.certificatedownloader.net.SSLSocketFactory;
+import com.github.coenraadhuman.certificatedownloader.scan.BatchScanner;
+import com.github.coenraadhuman.certificatedownloader.scan.CipherEnumerator;
+import com.github.coenraadhuman.certificatedownloader.scan.CircuitBreaker;
+import com.github.coenraadhuman.certificatedownloader.scan.RateLimiter;
+import com.github.coenraadhuman.certificatedownloader.scan.ScanTarget;
+import com.github.coenraadhuman.certificatedownloader.scan.Sweep;
+import com.github.coenraadhuman.certificatedownloader.scan.Watcher;
+import com.github.coenraadhuman.certificatedownloader.service.HttpService;
+import com.github.coenraadhuman.certificatedownloader.store.CertificateStore;
+import com.github.coenraadhuman.certificatedownloader.store.CipherReportWriter;
+import com.github.coenraadhuman.certificatedownloader.store.OutputPipeline;
+import com.github.coenraadhuman.certificatedownloader.store.ResultCache;
+import com.github.coenraadhuman.certificatedownloader.store.ResultWriter;
 import com.github.coenraadhuman.certificatedownloader.utils.CertDownload;
+import com.github.coenraadhuman.certificatedownloader.utils.ScanMetrics;
 import org.springframework.boot.SpringApplication;
 import org.springframework.boot.autoconfigure.SpringBootApplication;
+import org.springframework.context.ConfigurableApplicationContext;
 
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.PrintStream;
+import java.io.StringReader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
 import java.util.Objects;
 
 @SpringBootApplication
@@ -13,21 +39,86 @@ public class CertificateDownloaderApplication {
   public static Integer port;
   public static Boolean storeEachCert = true;
   public static Boolean storeAsKeyStore = false;
+  public static Boolean mergeKeyStore = false;
   public static char[] password;
   public static String path;
+  public static String outputDirectory;
+  public static String targetFile;
+  public static String sweepSpec;
+  public static Integer workers = 0;
+  public static Boolean nonBlocking = false;
+  public static Boolean chainOnly = false;
+  public static Boolean resumeSessions = false;
+  public static Boolean negotiateProtocols = false;
+  public static Boolean enumerateCiphers = false;
+  public static Boolean everyAddress = false;
+  public static Boolean watch = false;
+  public static Boolean bypassCache = false;
+  public static Integer servePort;
+  public static String metricsFile;
+  public static String resultsFile;
+  public static String resultsFormat;
 
   public static void main(String[] args) {
+    // Results streamed to stdout must not mix with the banner and logs, move those to stderr.
+    PrintStream stdout = System.out;
+    for (int i = 0; i + 1 < args.length; i++) {
+      if (args[i].equals("-R") && args[i + 1].equals("-")) System.setOut(System.err);
+    }
+
     var context = SpringApplication.run(CertificateDownloaderApplication.class, args);
 
     for (int i = 0; i < args.length; i++) {
       if (args[i].equals("-k")) {
         storeAsKeyStore = true;
+      } else if (args[i].equals("-m")) {
+        mergeKeyStore = true;
       } else if (args[i].equals("-p")) {
         path = args[(i + 1)];
         i++;
       } else if (args[i].equals("-P")) {
         password = args[(i + 1)].toCharArray();
         i++;
+      } else if (args[i].equals("-o")) {
+        outputDirectory = args[(i + 1)];
+        i++;
+      } else if (args[i].equals("-f")) {
+        targetFile = args[(i + 1)];
+        i++;
+      } else if (args[i].equals("-S")) {
+        sweepSpec = args[(i + 1)];
+        i++;
+      } else if (args[i].equals("-c")) {
+        chainOnly = true;
+      } else if (args[i].equals("-r")) {
+        resumeSessions = true;
+      } else if (args[i].equals("-v")) {
+        negotiateProtocols = true;
+      } else if (args[i].equals("-e")) {
+        enumerateCiphers = true;
+      } else if (args[i].equals("-a")) {
+        everyAddress = true;
+      } else if (args[i].equals("-w")) {
+        watch = true;
+      } else if (args[i].equals("-b")) {
+        bypassCache = true;
+      } else if (args[i].equals("-M")) {
+        metricsFile = args[(i + 1)];
+        i++;
+      } else if (args[i].equals("-R")) {
+        resultsFile = args[(i + 1)];
+        i++;
+      } else if (args[i].equals("-F")) {
+        resultsFormat = args[(i + 1)];
+        i++;
+      } else if (args[i].equals("-s")) {
+        servePort = Integer.parseInt(args[(i + 1)]);
+        i++;
+      } else if (args[i].equals("-n")) {
+        nonBlocking = true;
+      } else if (args[i].equals("-t")) {
+        workers = Integer.parseInt(args[(i + 1)]);
+        i++;
       } else if (args[i].contains(":")) {
         host = args[i].substring(0, args[i].lastIndexOf(':'));
         port = Integer.parseInt(args[i].substring(args[i].lastIndexOf(':') + 1));
@@ -36,16 +127,187 @@ public class CertificateDownloaderApplication {
       }
     }
 
-    if (isArgumentsValid()) {
+    if (chainOnly) context.getBean(SSLSocketFactory.class).setChainOnly(true);
+    if (resumeSessions) context.getBean(SSLSocketFactory.class).setResumption(true);
+    if (negotiateProtocols) context.getBean(ProtocolNegotiator.class).setEnabled(true);
+    if (bypassCache) {
+      context.getBean(ResultCache.class).setBypass(true);
+      context.getBean(CircuitBreaker.class).setBypass(true);
+    }
+    if (Objects.nonNull(metricsFile)) {
+      context.getBean(ScanMetrics.class).setFile(Paths.get(metricsFile));
+    }
+    if (Objects.nonNull(outputDirectory)) {
+      context.getBean(CertificateStore.class).setRoot(Paths.get(outputDirectory));
+    }
+
+    if (!isArgumentsValid()) {
+      help();
+    }
+
+    if (storeAsKeyStore) {
+      try {
+        context.getBean(KeyStoreWriter.class).open(path, password, mergeKeyStore);
+      } catch (IOException | RuntimeException e) {
+        System.err.printf("Unable to open keystore '%s': %s%n", path, e.getMessage());
+        System.exit(1);
+      }
+    }
+
+    if (Objects.nonNull(resultsFile)) {
+      try {
+        var resultWriter = context.getBean(ResultWriter.class);
+        if (resultsFile.equals("-")) {
+          resultWriter.open(stdout, resultsFormat);
+        } else {
+          resultWriter.open(Paths.get(resultsFile), resultsFormat);
+        }
+      } catch (IOException | RuntimeException e) {
+        System.err.printf("Unable to write results to '%s': %s%n", resultsFile, e.getMessage());
+        System.exit(1);
+      }
+    }
+
+    if (Objects.nonNull(servePort)) {
+      serve(context);
+    } else if (enumerateCiphers) {
+      enumerate(context);
+    } else if (Objects.nonNull(sweepSpec)) {
+      sweep(context);
+    } else if (watch) {
+      watch(context);
+    } else if (Objects.nonNull(targetFile)) {
+      batch(context);
+    } else {
       var certDownload = context.getBean(CertDownload.class);
       new Thread(certDownload).start();
-    } else {
-      help();
+    }
+  }
+
+  private static void batch(ConfigurableApplicationContext context) {
+    var certDownload = context.getBean(CertDownload.class);
+    var batchScanner = context.getBean(BatchScanner.class);
+    var resultWriter = context.getBean(ResultWriter.class);
+
+    try (BufferedReader reader =
+        targetFile.equals("-")
+            ? new BufferedReader(new InputStreamReader(System.in, StandardCharsets.UTF_8))
+            : Files.newBufferedReader(Paths.get(targetFile), StandardCharsets.UTF_8)) {
+      batchScanner.scan(
+          reader,
+          workers,
+          nonBlocking,
+          everyAddress,
+          certDownload::store);
+
+    } catch (IOException e) {
+      System.err.printf("Unable to read targets from '%s': %s%n", targetFile, e.getMessage());
+      System.exit(1);
+
+    } finally {
+      context.getBean(OutputPipeline.class).close();
+      resultWriter.close();
+    }
+  }
+
+  private static void sweep(ConfigurableApplicationContext context) {
+    var certDownload = context.getBean(CertDownload.class);
+    var rateLimiter = context.getBean(RateLimiter.class);
+    var resultWriter = context.getBean(ResultWriter.class);
+
+    Sweep sweep = null;
+    try {
+      sweep =
+          Sweep.parse(
+              sweepSpec, rateLimiter.getSubnetPrefix(), rateLimiter.getSubnetPrefixV6());
+    } catch (IllegalArgumentException e) {
+      System.err.printf("Unable to sweep '%s': %s%n", sweepSpec, e.getMessage());
+      System.exit(1);
+    }
+
+    try {
+      context
+          .getBean(BatchScanner.class)
+          .sweep(
+              sweep,
+              workers,
+              nonBlocking,
+              certDownload::store);
+
+    } finally {
+      context.getBean(OutputPipeline.class).close();
+      resultWriter.close();
+    }
+  }
+
+  private static void watch(ConfigurableApplicationContext context) {
+    var certDownload = context.getBean(CertDownload.class);
+    var watcher = context.getBean(Watcher.class);
+    var resultWriter = context.getBean(ResultWriter.class);
+    int watchers = workers > 0 ? workers : context.getBean(BatchScanner.class).getDefaultWorkers();
+
+    // Without -f the single host:port target is watched.
+    try (BufferedReader reader =
+        Objects.isNull(targetFile)
+            ? new BufferedReader(new StringReader(host + ":" + port))
+            : targetFile.equals("-")
+                ? new BufferedReader(new InputStreamReader(System.in, StandardCharsets.UTF_8))
+                : Files.newBufferedReader(Paths.get(targetFile), StandardCharsets.UTF_8)) {
+      watcher.watch(
+          reader,
+          watchers,
+          certDownload::store);
+
+    } catch (IOException e) {
+      System.err.printf("Unable to read targets from '%s': %s%n", targetFile, e.getMessage());
+      System.exit(1);
+
+    } finally {
+      context.getBean(OutputPipeline.class).close();
+      resultWriter.close();
+    }
+  }
+
+  private static void serve(ConfigurableApplicationContext context) {
+    try {
+      context.getBean(HttpService.class).start(servePort);
+    } catch (IOException e) {
+      System.err.printf("Unable to serve on port %d: %s%n", servePort, e.getMessage());
+      System.exit(1);
+    }
+  }
+
+  private static void enumerate(ConfigurableApplicationContext context) {
+    var cipherReportWriter = context.getBean(CipherReportWriter.class);
+
+    try {
+      if (Objects.isNull(targetFile)) {
+        var report = context.getBean(CipherEnumerator.class).enumerate(new ScanTarget(host, port));
+        cipherReportWriter.write(report);
+        return;
+      }
+
+      try (BufferedReader reader =
+          targetFile.equals("-")
+              ? new BufferedReader(new InputStreamReader(System.in, StandardCharsets.UTF_8))
+              : Files.newBufferedReader(Paths.get(targetFile), StandardCharsets.UTF_8)) {
+        context.getBean(BatchScanner.class).enumerate(reader, workers, cipherReportWriter::write);
+
+      } catch (IOException e) {
+        System.err.printf("Unable to read targets from '%s': %s%n", targetFile, e.getMessage());
+        System.exit(1);
+      }
+
+    } finally {
+      cipherReportWriter.close();
     }
   }
 
   public static boolean isArgumentsValid() {
-    if (Objects.isNull(host) || Objects.isNull(port)) {
+    if (Objects.isNull(targetFile)
+        && Objects.isNull(sweepSpec)
+        && Objects.isNull(servePort)
+        && (Objects.isNull(host) || Objects.isNull(port))) {
        return false;
     }
 
@@ -60,10 +322,36 @@ public class CertificateDownloaderApplication {
     System.out.printf("certificate-downloader: A utility for downloading TLS/SSL certificates from servers.\n\n");
     System.out.println();
     System.out.format(
-        "Syntax: java -jar certificate-downloader-[version] [-k -p <path> -P <passwd>] <host:port>");
+        "Syntax: java -jar certificate-downloader-[version] [-k [-m] -p <path> -P <passwd>] [-o <dir>] [-M <file>] [-c] [-r] [-v] [-b] [-e] [-w] <host:port>");
+    System.out.println();
+    System.out.format(
+        "        java -jar certificate-downloader-[version] [-k [-m] -p <path> -P <passwd>] [-o <dir>] [-M <file>] [-R <file> [-F <format>]] [-c] [-r] [-v] [-b] [-e] [-a] [-n] [-w] [-t <workers>] -f <file>");
+    System.out.println();
+    System.out.format(
+        "        java -jar certificate-downloader-[version] [-k [-m] -p <path> -P <passwd>] [-o <dir>] [-M <file>] [-R <file> [-F <format>]] [-c] [-r] [-v] [-b] [-n] [-t <workers>] -S <blocks:ports>");
+    System.out.println();
+    System.out.format(
+        "        java -jar certificate-downloader-[version] [-c] [-r] [-v] [-b] -s <port>");
     System.out.println("-k  Saves certificates to a keystore file. -p and -P are required.");
+    System.out.println("-m  Merges certificates into the keystore file at -p if it exists.");
     System.out.println("-p  Path to save the keystore file.");
     System.out.println("-P  Password to use for the stored keystore file.");
+    System.out.println("-o  Directory to store certificates by fingerprint in, defaults to the working directory.");
+    System.out.println("-c  Chain-only, ends each handshake as soon as the server chain is received.");
+    System.out.println("-r  Resumes cached TLS sessions with the same host:port instead of full handshakes.");
+    System.out.println("-v  Negotiates the protocol version per target, trying versions in parallel.");
+    System.out.println("-b  Bypasses the result cache and circuit breaker, connecting to every target even if recently scanned or failing.");
+    System.out.println("-e  Enumerates accepted protocols and cipher suites into ciphers.tsv instead.");
+    System.out.println("-f  File with one host:port per line to scan concurrently, - to read from stdin.");
+    System.out.println("-t  Number of concurrent workers for -f, defaults to batch.workers.");
+    System.out.println("-S  Sweeps CIDR blocks and ports such as 10.0.0.0/16,192.0.2.1:443,8000-8443 at sweep.rate.");
+    System.out.println("-a  Scan every address each host of -f resolves to, with the host as SNI.");
+    System.out.println("-w  Watches the targets of -f, or the single host:port, rescanning them until stopped and storing changed chains.");
+    System.out.println("-M  Writes timings of each scan phase to the file on exit, in the Prometheus format.");
+    System.out.println("-R  Streams a record of each target of -f or -S to the file as it completes, - for stdout.");
+    System.out.println("-F  Format of the -R records, jsonl (one JSON object per line) or csv.");
+    System.out.println("-s  Serves chains over HTTP on the port, GET /chain?target=host:port[&format=pem].");
+    System.out.println("-n  Use non-blocking handshakes for -f, -t then limits handshakes in flight.");
     System.exit(1);
   }
 }
@@ -3,48 +3,137 @@ package com.github.coenraadhuman.certificatedownloader.net;
 import lombok.extern.slf4j.Slf4j;
 import org.springframework.stereotype.Component;
 
-import javax.net.ssl.X509TrustManager;
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLSession;
+import javax.net.ssl.SSLSocket;
+import javax.net.ssl.X509ExtendedTrustManager;
+import java.net.Socket;
 import java.security.cert.X509Certificate;
-import java.util.ArrayList;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
 
+/**
+ * Accepts every certificate chain and captures it against the socket or engine whose handshake
+ * presented it. Captures are held in a concurrent map rather than a shared list, so one instance,
+ * and with it one SSLContext, can be shared by any number of parallel handshakes.
+ *
+ * <p>In chain-only mode the server chain is rejected with a {@link ChainCapturedException} right
+ * after it is captured, ending the handshake before the client's key exchange and Finished.
+ */
 @Slf4j
 @Component
-public class AcceptAllX509TrustManager implements X509TrustManager {
+public class AcceptAllX509TrustManager extends X509ExtendedTrustManager {
 
-  private final ArrayList<X509Certificate> issuers;
+  private static final X509Certificate[] NO_ISSUERS = new X509Certificate[0];
 
-  public AcceptAllX509TrustManager() {
-    super();
-    issuers = new ArrayList<>();
+  /** Keyed by SSLSocket or SSLEngine, neither overrides equals so this is identity based. */
+  private final Map<Object, CapturedChain> captures = new ConcurrentHashMap<>();
+
+  private volatile boolean chainOnly;
+
+  public boolean isChainOnly() {
+    return chainOnly;
   }
 
-  /** @return the issuers */
-  public ArrayList<X509Certificate> getIssuers() {
-    return issuers;
+  public void setChainOnly(boolean chainOnly) {
+    this.chainOnly = chainOnly;
+  }
+
+  /**
+   * Removes and returns the chain captured during the handshake of the given socket.
+   *
+   * @param socket SSLSocket that completed (or attempted) a handshake.
+   * @return CapturedChain, or null when the server was not asked for a certificate, i.e. the
+   *     session was resumed or the handshake failed before the certificate was received.
+   */
+  public CapturedChain take(SSLSocket socket) {
+    return captures.remove(socket);
+  }
+
+  /**
+   * Removes and returns the chain captured during the handshake of the given engine.
+   *
+   * @param engine SSLEngine that completed (or attempted) a handshake.
+   * @return CapturedChain, or null when no certificate was received.
+   */
+  public CapturedChain take(SSLEngine engine) {
+    return captures.remove(engine);
+  }
+
+  /**
+   * Returns the number of chains that have been captured but not yet taken.
+   *
+   * @return Count of pending captures.
+   */
+  public int getPendingCount() {
+    return captures.size();
   }
 
   @Override
   public void checkClientTrusted(X509Certificate[] chain, String authType) {
-
-    for (X509Certificate cert : chain) {
-      log.info("Downloaded/Saved {} certificate: {}", authType, cert.getSubjectDN());
-      this.issuers.add(cert);
-    }
+    capture(null, chain, authType, null);
   }
 
   @Override
   public void checkServerTrusted(X509Certificate[] chain, String authType) {
+    capture(null, chain, authType, null);
+  }
 
-    for (X509Certificate cert : chain) {
-      log.info("Downloaded/Saved {} certificate: {}", authType, cert.getSubjectDN());
-      this.issuers.add(cert);
-    }
+  @Override
+  public void checkClientTrusted(X509Certificate[] chain, String authType, Socket socket) {
+    capture(socket, chain, authType, handshakeSession(socket));
+  }
+
+  @Override
+  public void checkServerTrusted(X509Certificate[] chain, String authType, Socket socket)
+      throws ChainCapturedException {
+    capture(socket, chain, authType, handshakeSession(socket));
+    if (chainOnly && Objects.nonNull(socket)) throw new ChainCapturedException();
+  }
+
+  @Override
+  public void checkClientTrusted(X509Certificate[] chain, String authType, SSLEngine engine) {
+    capture(engine, chain, authType, Objects.isNull(engine) ? null : engine.getHandshakeSession());
   }
 
+  @Override
+  public void checkServerTrusted(X509Certificate[] chain, String authType, SSLEngine engine)
+      throws ChainCapturedException {
+    capture(engine, chain, authType, Objects.isNull(engine) ? null : engine.getHandshakeSession());
+    if (chainOnly && Objects.nonNull(engine)) throw new ChainCapturedException();
+  }
+
+  /**
+   * Nothing is trusted in advance, so no issuers are suggested to the peer.
+   *
+   * @return Empty array.
+   */
   @Override
   public X509Certificate[] getAcceptedIssuers() {
-    X509Certificate[] ret = new X509Certificate[this.issuers.size()];
-    issuers.toArray(ret);
-    return ret;
+    return NO_ISSUERS;
+  }
+
+  private static SSLSession handshakeSession(Socket socket) {
+    if (socket instanceof SSLSocket) return ((SSLSocket) socket).getHandshakeSession();
+
+    return null;
+  }
+
+  private void capture(
+      Object key, X509Certificate[] chain, String authType, SSLSession handshakeSession) {
+    for (X509Certificate cert : chain) {
+      log.info("Downloaded/Saved {} certificate: {}", authType, cert.getSubjectDN());
+    }
+
+    if (Objects.isNull(key)) return;
+
+    captures.put(
+        key,
+        new CapturedChain(
+            chain.clone(),
+            authType,
+            Objects.isNull(handshakeSession) ? null : handshakeSession.getProtocol(),
+            Objects.isNull(handshakeSession) ? null : handshakeSession.getCipherSuite()));
   }
 }
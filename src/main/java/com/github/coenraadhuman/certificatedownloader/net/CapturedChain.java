@@ -0,0 +1,24 @@
+package com.github.coenraadhuman.certificatedownloader.net;
+
+import lombok.Getter;
+import lombok.RequiredArgsConstructor;
+
+import java.security.cert.X509Certificate;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/** Certificate chain presented by a peer during a single handshake. */
+@Getter
+@RequiredArgsConstructor
+public class CapturedChain {
+
+  private final X509Certificate[] chain;
+  private final String authType;
+  private final String protocol;
+  private final String cipherSuite;
+
+  public List<X509Certificate> getCertificates() {
+    return Collections.unmodifiableList(Arrays.asList(chain));
+  }
+}
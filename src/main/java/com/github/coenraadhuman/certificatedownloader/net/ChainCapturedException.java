@@ -0,0 +1,31 @@
+package com.github.coenraadhuman.certificatedownloader.net;
+
+import java.security.cert.CertificateException;
+
+/**
+ * Thrown by {@link AcceptAllX509TrustManager} in chain-only mode once the server chain has been
+ * captured, which makes the TLS implementation abort the handshake before key exchange. The
+ * resulting handshake failure therefore signals success.
+ */
+public class ChainCapturedException extends CertificateException {
+  private static final long serialVersionUID = 1L;
+
+  public ChainCapturedException() {
+    super("Certificate chain captured, ending handshake early.");
+  }
+
+  /**
+   * Returns whether the given failure was caused by a chain-only capture.
+   *
+   * @param failure Throwable raised by the handshake.
+   * @return boolean
+   */
+  public static boolean isCauseOf(Throwable failure) {
+    for (Throwable t = failure; t != null; t = t.getCause()) {
+      if (t instanceof ChainCapturedException) return true;
+      if (t.getCause() == t) break;
+    }
+
+    return false;
+  }
+}
@@ -0,0 +1,24 @@
+package com.github.coenraadhuman.certificatedownloader.net;
+
+import lombok.Getter;
+
+import java.net.SocketTimeoutException;
+
+/** Thrown when a phase of a scan does not complete within its deadline. */
+@Getter
+public class DeadlineExceededException extends SocketTimeoutException {
+
+  public static final String CONNECT = "Connect";
+  public static final String HANDSHAKE = "Handshake";
+  public static final String TARGET = "Target";
+  public static final String RUN = "Run";
+
+  private final String phase;
+  private final long millis;
+
+  public DeadlineExceededException(String phase, long millis) {
+    super(String.format("%s deadline of %d ms expired", phase, millis));
+    this.phase = phase;
+    this.millis = millis;
+  }
+}
@@ -0,0 +1,61 @@
+package com.github.coenraadhuman.certificatedownloader.net;
+
+import java.nio.ByteBuffer;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Pool of equally sized direct buffers. Direct buffers are expensive to allocate and are only
+ * reclaimed when the garbage collector gets around to them, so they are recycled instead.
+ */
+public class DirectBufferPool {
+
+  private final int bufferSize;
+  private final int maxPooled;
+  private final Queue<ByteBuffer> buffers = new ConcurrentLinkedQueue<>();
+  private final AtomicInteger pooled = new AtomicInteger();
+
+  /**
+   * @param bufferSize Capacity of every buffer in the pool.
+   * @param maxPooled Maximum number of idle buffers kept, released buffers beyond this are dropped.
+   */
+  public DirectBufferPool(int bufferSize, int maxPooled) {
+    this.bufferSize = bufferSize;
+    this.maxPooled = maxPooled;
+  }
+
+  public int getBufferSize() {
+    return bufferSize;
+  }
+
+  /**
+   * Returns a cleared buffer, allocating a new one when the pool is empty.
+   *
+   * @return ByteBuffer in write mode.
+   */
+  public ByteBuffer acquire() {
+    ByteBuffer buffer = buffers.poll();
+    if (buffer == null) return ByteBuffer.allocateDirect(bufferSize);
+
+    pooled.decrementAndGet();
+    return buffer;
+  }
+
+  /**
+   * Returns the buffer to the pool, it must not be used by the caller afterwards.
+   *
+   * @param buffer ByteBuffer previously acquired from this pool.
+   */
+  public void release(ByteBuffer buffer) {
+    if (buffer == null || buffer.capacity() != bufferSize) return;
+
+    if (pooled.incrementAndGet() > maxPooled) {
+      pooled.decrementAndGet();
+      return;
+    }
+
+    buffer.clear();
+    buffers.offer(buffer);
+  }
+}
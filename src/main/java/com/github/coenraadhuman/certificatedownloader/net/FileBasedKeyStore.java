@@ -28,6 +28,7 @@ public class FileBasedKeyStore extends KeyStore {
       this.keyStore = java.security.KeyStore.getInstance(java.security.KeyStore.getDefaultType());
       fis = new FileInputStream(file);
       this.keyStore.load(fis, password);
+      this.reindex();
       log.info("Loaded KeyStore {} successfully.", file);
 
     } catch (Exception e) {
@@ -0,0 +1,139 @@
+package com.github.coenraadhuman.certificatedownloader.net;
+
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PreDestroy;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Resolves host names ahead of connecting, so that lookups happen once per host rather than once
+ * per connection and off the threads doing handshakes. Resolved addresses are cached for the
+ * configured time to live, failures for the negative time to live, and concurrent lookups of the
+ * same host share a single query. The JVM's own address cache applies underneath, as Java does
+ * not expose the TTL of the DNS records themselves.
+ */
+@Slf4j
+@Component
+public class HostResolver {
+
+  @RequiredArgsConstructor
+  private static final class Entry {
+
+    private final CompletableFuture<List<InetAddress>> addresses;
+    private volatile long expiresAt;
+
+    /** Pending lookups are live, completed ones until they expire. */
+    private boolean isLive(long now) {
+      return !addresses.isDone() || now - expiresAt < 0;
+    }
+  }
+
+  private final long ttlNanos;
+  private final long negativeTtlNanos;
+  private final int maxEntries;
+  private final Map<String, Entry> cache = new ConcurrentHashMap<>();
+  private final ExecutorService executor;
+
+  @Autowired
+  public HostResolver(
+      @Value("${dns.ttl}") String ttl,
+      @Value("${dns.negative-ttl}") String negativeTtl,
+      @Value("${dns.cache-size}") String cacheSize,
+      @Value("${dns.threads}") String threads) {
+    this.ttlNanos = TimeUnit.MILLISECONDS.toNanos(Long.parseLong(ttl));
+    this.negativeTtlNanos = TimeUnit.MILLISECONDS.toNanos(Long.parseLong(negativeTtl));
+    this.maxEntries = Integer.parseInt(cacheSize);
+    this.executor =
+        Executors.newFixedThreadPool(
+            Integer.parseInt(threads),
+            runnable -> {
+              Thread thread = new Thread(runnable, "dns-resolver");
+              thread.setDaemon(true);
+              return thread;
+            });
+  }
+
+  /**
+   * Starts resolving the host on the resolver pool unless a cached or pending lookup exists.
+   *
+   * @param host Host name or IP literal.
+   * @return CompletableFuture of every address of the host, completed exceptionally with an
+   *     UnknownHostException when it does not resolve.
+   */
+  public CompletableFuture<List<InetAddress>> resolveAsync(String host) {
+    long now = System.nanoTime();
+    Entry entry = cache.get(host);
+    if (entry != null && entry.isLive(now)) return entry.addresses;
+
+    if (cache.size() >= maxEntries) evictExpired(now);
+    Entry created = new Entry(new CompletableFuture<>());
+    entry =
+        cache.compute(
+            host, (key, current) -> current != null && current.isLive(now) ? current : created);
+    if (entry != created) return entry.addresses;
+
+    executor.execute(
+        () -> {
+          try {
+            List<InetAddress> addresses =
+                Collections.unmodifiableList(Arrays.asList(InetAddress.getAllByName(host)));
+            created.expiresAt = System.nanoTime() + ttlNanos;
+            created.addresses.complete(addresses);
+
+          } catch (UnknownHostException | RuntimeException e) {
+            created.expiresAt = System.nanoTime() + negativeTtlNanos;
+            created.addresses.completeExceptionally(e);
+          }
+        });
+
+    return created.addresses;
+  }
+
+  /**
+   * Resolves the host, blocking until the addresses are known.
+   *
+   * @param host Host name or IP literal.
+   * @return Every address of the host, in the order the system resolver returned them.
+   * @throws UnknownHostException when the host does not resolve.
+   */
+  public List<InetAddress> resolve(String host) throws UnknownHostException {
+    try {
+      return resolveAsync(host).join();
+    } catch (CompletionException e) {
+      if (e.getCause() instanceof UnknownHostException) throw (UnknownHostException) e.getCause();
+      UnknownHostException unknown = new UnknownHostException(host);
+      unknown.initCause(e.getCause());
+      throw unknown;
+    }
+  }
+
+  public int getCachedCount() {
+    return cache.size();
+  }
+
+  private void evictExpired(long now) {
+    cache.values().removeIf(entry -> !entry.isLive(now));
+    // Still full of live entries, start over rather than grow without bound.
+    if (cache.size() >= maxEntries) cache.clear();
+  }
+
+  @PreDestroy
+  public void close() {
+    executor.shutdownNow();
+  }
+}
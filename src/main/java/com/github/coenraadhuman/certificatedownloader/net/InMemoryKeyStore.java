@@ -17,6 +17,7 @@ public class InMemoryKeyStore extends KeyStore {
     this.keyStore = java.security.KeyStore.getInstance(java.security.KeyStore.getDefaultType());
     this.password = new char[] {'\0'};
     this.keyStore.load(null, this.password);
+    this.reindex();
     log.info("Loaded in-memory keystore successfully.");
   }
 }
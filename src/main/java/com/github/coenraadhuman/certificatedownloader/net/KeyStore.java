@@ -1,19 +1,34 @@
 package com.github.coenraadhuman.certificatedownloader.net;
 
-import com.github.coenraadhuman.certificatedownloader.utils.StringUtils;
+import com.github.coenraadhuman.certificatedownloader.utils.DistinguishedNames;
+import com.github.coenraadhuman.certificatedownloader.utils.Fingerprints;
 import lombok.extern.slf4j.Slf4j;
 import org.springframework.stereotype.Component;
 
-import java.io.FileOutputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
 import java.security.KeyStoreException;
 import java.security.NoSuchAlgorithmException;
 import java.security.PrivateKey;
 import java.security.UnrecoverableKeyException;
+import java.security.cert.Certificate;
+import java.security.cert.CertificateEncodingException;
 import java.security.cert.CertificateException;
 import java.security.cert.X509Certificate;
 import java.util.ArrayList;
 import java.util.Enumeration;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArraySet;
 
 @Slf4j
 @Component
@@ -22,6 +37,16 @@ public class KeyStore {
   protected java.security.KeyStore keyStore;
   protected char[] password;
 
+  // Lookup indexes over the store, maintained by add/remove and rebuilt by reindex. A certificate
+  // stored under several aliases stays in the other indexes until its last alias is removed.
+  private final Object indexLock = new Object();
+  private final Object saveLock = new Object();
+  private final Map<String, X509Certificate> certificateByAlias = new ConcurrentHashMap<>();
+  private final Map<X509Certificate, Set<String>> aliasesByCertificate = new ConcurrentHashMap<>();
+  private final Map<String, X509Certificate> certificateByFingerprint = new ConcurrentHashMap<>();
+  private final Map<String, Set<X509Certificate>> bySubject = new ConcurrentHashMap<>();
+  private final Map<String, Set<X509Certificate>> byIssuer = new ConcurrentHashMap<>();
+
   public static KeyStore getInstance(String filename, char[] password) {
     return new FileBasedKeyStore(filename, password);
   }
@@ -51,74 +76,50 @@ public class KeyStore {
   }
 
   public boolean contains(X509Certificate c) {
-    if (this.getCount() == 0) return false;
-
-    try {
-      ArrayList<X509Certificate> certs = this.getCertificates();
-      return certs.contains(c);
-
-    } catch (KeyStoreException e) {
-      log.warn("Could not search KeyStore: " + e.getMessage());
-    }
-
-    return false;
+    return this.aliasesByCertificate.containsKey(c);
   }
 
   public boolean contains(String subjectDn) {
-    if (this.getCount() == 0) return false;
-
-    subjectDn = StringUtils.removeWhiteSpaces(subjectDn);
+    String subject = canonical(subjectDn);
+    if (subject == null) return false;
 
-    try {
-      for (X509Certificate cert : this.getCertificates()) {
-        String sdn = StringUtils.removeWhiteSpaces(cert.getSubjectDN().toString());
-        if (sdn.equals(subjectDn)) {
-          log.info("Found certificate for subject '" + subjectDn + "': " + sdn);
-          return true;
-        }
-      }
+    Set<X509Certificate> certs = this.bySubject.get(subject);
+    if (certs == null || certs.isEmpty()) return false;
 
-    } catch (KeyStoreException e) {
-      log.warn("Could not search KeyStore: " + e.getMessage());
-    }
+    log.info("Found certificate for subject '{}'.", subjectDn);
+    return true;
+  }
 
-    return false;
+  public boolean containsFingerprint(String sha256) {
+    return this.certificateByFingerprint.containsKey(sha256.toLowerCase());
   }
 
   public X509Certificate getCertificate(String alias) throws KeyStoreException {
     return (X509Certificate) this.keyStore.getCertificate(alias);
   }
 
-  public ArrayList<X509Certificate> getCertificates() throws KeyStoreException {
-    ArrayList<X509Certificate> certs = new ArrayList<X509Certificate>();
-    ArrayList<String> aliases = this.getAliases();
-    for (String alias : aliases) certs.add(this.getCertificate(alias));
+  public X509Certificate getCertificateByFingerprint(String sha256) {
+    return this.certificateByFingerprint.get(sha256.toLowerCase());
+  }
 
-    return certs;
+  public ArrayList<X509Certificate> getCertificates() throws KeyStoreException {
+    return new ArrayList<X509Certificate>(this.certificateByAlias.values());
   }
 
   public ArrayList<X509Certificate> getCertificates(String alias) throws KeyStoreException {
     ArrayList<X509Certificate> certs = new ArrayList<X509Certificate>();
-    ArrayList<String> aliases = this.getAliases();
-    for (String a : aliases) if (a.equals(alias)) certs.add(this.getCertificate(alias));
+    X509Certificate cert = this.certificateByAlias.get(alias);
+    if (cert != null) certs.add(cert);
 
     return certs;
   }
 
   public ArrayList<X509Certificate> getCertificatesBySubject(String subjectDn) {
-    ArrayList<X509Certificate> certs = new ArrayList<X509Certificate>();
-    subjectDn = StringUtils.removeWhiteSpaces(subjectDn);
-    try {
-      for (X509Certificate c : this.getCertificates()) {
-        String sdn = StringUtils.removeWhiteSpaces(c.getSubjectDN().toString());
-        if (sdn.equals(subjectDn)) certs.add(c);
-      }
-
-    } catch (KeyStoreException e) {
-      log.warn("Could not get certificates by subject '" + subjectDn + "': " + e.getMessage());
-    }
+    return lookup(this.bySubject, subjectDn);
+  }
 
-    return certs;
+  public ArrayList<X509Certificate> getCertificatesByIssuer(String issuerDn) {
+    return lookup(this.byIssuer, issuerDn);
   }
 
   public ArrayList<String> getAliases() throws KeyStoreException {
@@ -133,32 +134,160 @@ public class KeyStore {
     return aliases;
   }
 
+  /**
+   * Returns the alias the certificate was first added under among those still holding it.
+   *
+   * @param c X509Certificate to look up.
+   * @return String alias, or null when the certificate is not in this store.
+   */
   public String getAlias(X509Certificate c) throws KeyStoreException {
-    for (String alias : this.getAliases()) {
-      if (this.getCertificate(alias) == c) return alias;
-    }
+    Set<String> aliases = this.aliasesByCertificate.get(c);
+    if (aliases == null) return null;
 
+    for (String alias : aliases) return alias;
     return null;
   }
 
   public boolean add(X509Certificate c, String alias) {
-    try {
-      this.keyStore.setCertificateEntry(alias, c);
-      log.info("Added certificate '" + c.getSubjectDN() + "' to KeyStore successfully.");
-      return true;
-
-    } catch (KeyStoreException e) {
-      log.warn(
-          "Could not add certificate '" + c.getSubjectDN() + "' to KeyStore: " + e.getMessage());
+    synchronized (this.indexLock) {
+      try {
+        this.keyStore.setCertificateEntry(alias, c);
+        this.unindex(alias);
+        this.index(alias, c);
+        log.info("Added certificate '" + c.getSubjectDN() + "' to KeyStore successfully.");
+        return true;
+
+      } catch (KeyStoreException e) {
+        log.warn(
+            "Could not add certificate '" + c.getSubjectDN() + "' to KeyStore: " + e.getMessage());
+      }
     }
 
     return false;
   }
 
+  /**
+   * Removes the certificate under every alias holding it.
+   *
+   * @param c X509Certificate to remove.
+   * @return Whether the certificate was in this store and has been removed.
+   */
   public boolean remove(X509Certificate c) {
+    synchronized (this.indexLock) {
+      Set<String> aliases = this.aliasesByCertificate.get(c);
+      if (aliases == null) return false;
+
+      try {
+        for (String alias : aliases) {
+          this.keyStore.deleteEntry(alias);
+          this.unindex(alias);
+        }
+        log.info("Removed certificate '" + c.getSubjectDN() + "' from KeyStore successfully.");
+        return true;
+
+      } catch (KeyStoreException e) {
+        log.warn(
+            "Could not remove certificate '"
+                + c.getSubjectDN()
+                + "' from KeyStore: "
+                + e.getMessage());
+      }
+    }
+
     return false;
   }
 
+  /**
+   * Rebuilds the lookup indexes from the underlying store, which subclasses must call once the
+   * store has been loaded. After this every lookup is served from memory and kept current by
+   * {@link #add(X509Certificate, String)} and {@link #remove(X509Certificate)}.
+   */
+  protected void reindex() {
+    synchronized (this.indexLock) {
+      this.certificateByAlias.clear();
+      this.aliasesByCertificate.clear();
+      this.certificateByFingerprint.clear();
+      this.bySubject.clear();
+      this.byIssuer.clear();
+
+      try {
+        for (String alias : this.getAliases()) {
+          Certificate cert = this.keyStore.getCertificate(alias);
+          if (cert instanceof X509Certificate) this.index(alias, (X509Certificate) cert);
+        }
+
+      } catch (KeyStoreException e) {
+        log.warn("Could not index KeyStore: " + e.getMessage());
+      }
+    }
+  }
+
+  private void index(String alias, X509Certificate c) {
+    this.certificateByAlias.put(alias, c);
+    Set<String> aliases =
+        this.aliasesByCertificate.computeIfAbsent(c, k -> new CopyOnWriteArraySet<>());
+    aliases.add(alias);
+    if (aliases.size() > 1) return;
+
+    this.bySubject
+        .computeIfAbsent(DistinguishedNames.subject(c), k -> ConcurrentHashMap.newKeySet())
+        .add(c);
+    this.byIssuer
+        .computeIfAbsent(DistinguishedNames.issuer(c), k -> ConcurrentHashMap.newKeySet())
+        .add(c);
+
+    try {
+      this.certificateByFingerprint.put(Fingerprints.sha256(c), c);
+    } catch (CertificateEncodingException e) {
+      log.warn("Could not fingerprint certificate '{}': {}", c.getSubjectDN(), e.getMessage());
+    }
+  }
+
+  private void unindex(String alias) {
+    X509Certificate c = this.certificateByAlias.remove(alias);
+    if (c == null) return;
+
+    Set<String> aliases = this.aliasesByCertificate.get(c);
+    if (aliases != null) {
+      aliases.remove(alias);
+      if (!aliases.isEmpty()) return;
+
+      this.aliasesByCertificate.remove(c, aliases);
+    }
+    this.removeFrom(this.bySubject, DistinguishedNames.subject(c), c);
+    this.removeFrom(this.byIssuer, DistinguishedNames.issuer(c), c);
+
+    try {
+      this.certificateByFingerprint.remove(Fingerprints.sha256(c));
+    } catch (CertificateEncodingException ignored) {
+    }
+  }
+
+  private void removeFrom(Map<String, Set<X509Certificate>> index, String key, X509Certificate c) {
+    Set<X509Certificate> certs = index.get(key);
+    if (certs == null) return;
+
+    certs.remove(c);
+    if (certs.isEmpty()) index.remove(key, certs);
+  }
+
+  private ArrayList<X509Certificate> lookup(Map<String, Set<X509Certificate>> index, String dn) {
+    String canonical = canonical(dn);
+    if (canonical == null) return new ArrayList<X509Certificate>();
+
+    Set<X509Certificate> certs = index.get(canonical);
+    return certs == null ? new ArrayList<X509Certificate>() : new ArrayList<X509Certificate>(certs);
+  }
+
+  private static String canonical(String dn) {
+    try {
+      return DistinguishedNames.canonical(dn);
+    } catch (IllegalArgumentException e) {
+      log.warn("Could not parse distinguished name '{}': {}", dn, e.getMessage());
+      return null;
+    }
+  }
+
   /**
    * Returns java.security.KeyStore value for member <i>store</i>.
    *
@@ -177,19 +306,51 @@ public class KeyStore {
    * What can I say? It saves the KeyStore back to disk using the memory stored password and file
    * location. Yeah, prolly not all that safe, so protect yo borders.
    *
+   * <p>The store is serialized in memory, blocking additions only for that long, and then written
+   * to a temporary file beside the target which is renamed over it. A crash mid-write therefore
+   * leaves the previous file intact.
+   *
    * @throws IOException
    * @throws KeyStoreException
    * @throws NoSuchAlgorithmException
    * @throws CertificateException
    */
-  public final synchronized void save(String path, char[] password)
+  public final void save(String path, char[] password)
       throws KeyStoreException, NoSuchAlgorithmException, CertificateException {
 
-    try (FileOutputStream fileOutputStream = new FileOutputStream(path)) {
-      this.keyStore.store(fileOutputStream, password);
-      log.info("Successfully saved KeyStore to disk: {}", path);
-    } catch (IOException e) {
-      log.warn("Could not save KeyStore to {}: {}", path, e.getMessage());
+    synchronized (this.saveLock) {
+      try {
+        ByteArrayOutputStream snapshot = new ByteArrayOutputStream();
+        synchronized (this.indexLock) {
+          this.keyStore.store(snapshot, password);
+        }
+
+        writeAtomically(Paths.get(path).toAbsolutePath(), snapshot.toByteArray());
+        log.info("Successfully saved KeyStore to disk: {}", path);
+      } catch (IOException e) {
+        log.warn("Could not save KeyStore to {}: {}", path, e.getMessage());
+      }
+    }
+  }
+
+  private static void writeAtomically(Path target, byte[] content) throws IOException {
+    Path temp = Files.createTempFile(target.getParent(), target.getFileName().toString(), ".tmp");
+    try {
+      try (FileChannel channel = FileChannel.open(temp, StandardOpenOption.WRITE)) {
+        ByteBuffer buffer = ByteBuffer.wrap(content);
+        while (buffer.hasRemaining()) channel.write(buffer);
+        channel.force(true);
+      }
+
+      try {
+        Files.move(
+            temp, target, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+      } catch (AtomicMoveNotSupportedException e) {
+        Files.move(temp, target, StandardCopyOption.REPLACE_EXISTING);
+      }
+
+    } finally {
+      Files.deleteIfExists(temp);
     }
   }
 }
@@ -0,0 +1,215 @@
+package com.github.coenraadhuman.certificatedownloader.net;
+
+import com.github.coenraadhuman.certificatedownloader.utils.Fingerprints;
+import com.github.coenraadhuman.certificatedownloader.utils.ScanMetrics;
+import com.github.coenraadhuman.certificatedownloader.utils.TimerWheel;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PreDestroy;
+import java.io.File;
+import java.io.IOException;
+import java.security.GeneralSecurityException;
+import java.security.cert.CertificateEncodingException;
+import java.security.cert.X509Certificate;
+import java.util.Objects;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Collects downloaded certificates into a keystore file over the course of a run. In merge mode
+ * an existing file is loaded once and added to, otherwise it is replaced. Additions are batched
+ * and the file is only rewritten once enough certificates are pending or, through the TimerWheel,
+ * once the flush interval passes, rather than after every target. Files are written by a flush
+ * thread from a snapshot of the store, so adding certificates never waits for the disk.
+ * Certificates already in the store are skipped, and aliases are their SHA-256 fingerprints so
+ * that repeated runs stay free of duplicates.
+ */
+@Slf4j
+@Component
+public class KeyStoreWriter {
+
+  private final int flushEntries;
+  private final long flushInterval;
+  private final TimerWheel timerWheel;
+  private final ScanMetrics scanMetrics;
+  private final ThreadPoolExecutor flusher;
+  private final Object flushLock = new Object();
+  private KeyStore keyStore;
+  private String path;
+  private char[] password;
+  private int pending;
+  private boolean flushQueued;
+  private TimerWheel.Timeout interval;
+
+  @Autowired
+  public KeyStoreWriter(
+      @Value("${keystore.flush-entries}") String flushEntries,
+      @Value("${keystore.flush-interval}") String flushInterval,
+      TimerWheel timerWheel,
+      ScanMetrics scanMetrics) {
+    this.flushEntries = Integer.parseInt(flushEntries);
+    this.flushInterval = Long.parseLong(flushInterval);
+    this.timerWheel = timerWheel;
+    this.scanMetrics = scanMetrics;
+    this.flusher =
+        new ThreadPoolExecutor(
+            1,
+            1,
+            60,
+            TimeUnit.SECONDS,
+            new LinkedBlockingQueue<>(),
+            runnable -> {
+              Thread thread = new Thread(runnable, "keystore-flush");
+              thread.setDaemon(true);
+              return thread;
+            });
+    this.flusher.allowCoreThreadTimeOut(true);
+  }
+
+  /**
+   * Opens the keystore file to write to, this must be called before certificates are added.
+   *
+   * @param path Path of the keystore file.
+   * @param password Password of the keystore file.
+   * @param merge Whether to add to an existing file rather than replace it.
+   * @throws IOException when the in-memory keystore could not be created.
+   */
+  public synchronized void open(String path, char[] password, boolean merge) throws IOException {
+    this.path = path;
+    this.password = password;
+    this.pending = 0;
+
+    if (merge && new File(path).exists()) {
+      this.keyStore = new FileBasedKeyStore(path, password);
+      log.info("Merging into KeyStore {} holding {} certificate(s).", path, keyStore.getCount());
+    } else {
+      try {
+        this.keyStore = new InMemoryKeyStore();
+      } catch (GeneralSecurityException e) {
+        throw new IOException("Could not create in-memory keystore", e);
+      }
+    }
+    scheduleInterval();
+  }
+
+  public synchronized boolean isOpen() {
+    return this.keyStore != null;
+  }
+
+  /**
+   * Adds the certificate unless already present, handing a flush to the flush thread once enough
+   * certificates are pending.
+   *
+   * @param cert X509Certificate to add.
+   * @return true when the certificate was new to the store.
+   */
+  public synchronized boolean add(X509Certificate cert) {
+    if (!isOpen()) throw new IllegalStateException("KeyStoreWriter has not been opened.");
+    if (keyStore.contains(cert)) return false;
+
+    try {
+      if (!keyStore.add(cert, Fingerprints.sha256(cert))) return false;
+    } catch (CertificateEncodingException e) {
+      log.warn("Unable to add certificate '{}': {}", cert.getSubjectDN(), e.getMessage());
+      return false;
+    }
+
+    pending++;
+    if (pending >= flushEntries) queueFlush();
+
+    return true;
+  }
+
+  /**
+   * Schedules the next interval flush. It fires on the timer thread, so it only hands the flush
+   * to the flush thread.
+   */
+  private synchronized void scheduleInterval() {
+    if (Objects.nonNull(interval)) interval.cancel();
+    if (flushInterval <= 0 || !isOpen()) return;
+
+    interval =
+        timerWheel.schedule(
+            () -> {
+              synchronized (this) {
+                if (!isOpen()) return;
+                if (pending > 0) queueFlush();
+              }
+              scheduleInterval();
+            },
+            flushInterval,
+            TimeUnit.MILLISECONDS);
+  }
+
+  private synchronized void queueFlush() {
+    if (flushQueued) return;
+
+    flushQueued = true;
+    flusher.execute(
+        () -> {
+          synchronized (this) {
+            flushQueued = false;
+          }
+          flush();
+        });
+  }
+
+  /**
+   * Writes pending additions to disk, does nothing when there are none. Certificates may be added
+   * while the file is written, they are left pending for the next flush.
+   */
+  public void flush() {
+    synchronized (flushLock) {
+      KeyStore store;
+      String file;
+      char[] secret;
+      int flushed;
+      synchronized (this) {
+        if (!isOpen() || pending == 0) return;
+
+        store = keyStore;
+        file = path;
+        secret = password;
+        flushed = pending;
+        pending = 0;
+      }
+
+      try {
+        // Snapshots the store under its own lock, then writes the snapshot outside of it.
+        scanMetrics.time(
+            ScanMetrics.KEYSTORE_SAVE,
+            () -> {
+              store.save(file, secret);
+              return null;
+            });
+        log.info("Flushed {} new certificate(s) to KeyStore {}.", flushed, file);
+
+      } catch (GeneralSecurityException e) {
+        log.warn("Unable to save KeyStore to {}: {}", file, e.getMessage());
+        synchronized (this) {
+          if (store == keyStore) pending += flushed;
+        }
+      }
+    }
+  }
+
+  /**
+   * Flushes pending additions, waiting for a flush in progress on the flush thread. The writer
+   * must be opened again before further use.
+   */
+  @PreDestroy
+  public void close() {
+    synchronized (flushLock) {
+      flush();
+      synchronized (this) {
+        if (Objects.nonNull(interval)) interval.cancel();
+        interval = null;
+        keyStore = null;
+      }
+    }
+  }
+}
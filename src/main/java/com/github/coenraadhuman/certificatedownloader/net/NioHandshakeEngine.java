@@ -0,0 +1,638 @@
+package com.github.coenraadhuman.certificatedownloader.net;
+
+import com.github.coenraadhuman.certificatedownloader.scan.ScanResult;
+import com.github.coenraadhuman.certificatedownloader.scan.ScanTarget;
+import com.github.coenraadhuman.certificatedownloader.utils.ScanMetrics;
+import com.github.coenraadhuman.certificatedownloader.utils.TimerWheel;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PreDestroy;
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLEngineResult;
+import javax.net.ssl.SSLException;
+import javax.net.ssl.SSLPeerUnverifiedException;
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.security.cert.Certificate;
+import java.security.cert.X509Certificate;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Objects;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Performs handshakes with non-blocking SocketChannels and SSLEngines multiplexed over a small
+ * number of selector threads, so that an in-flight handshake costs a pair of pooled buffers rather
+ * than a thread. Network buffers are only held while they contain data, an idle connection waiting
+ * on the server holds none. Delegated engine tasks, such as key agreement, run on a separate pool
+ * so that they never stall a selector.
+ */
+@Slf4j
+@Component
+public class NioHandshakeEngine {
+
+  private static final ByteBuffer EMPTY = ByteBuffer.allocate(0);
+
+  private final SSLSocketFactory sslSocketFactory;
+  private final HostResolver hostResolver;
+  private final TimerWheel timerWheel;
+  private final ScanMetrics scanMetrics;
+  private final int selectorCount;
+  private final AtomicInteger next = new AtomicInteger();
+  private volatile SelectorLoop[] loops;
+  private ExecutorService taskExecutor;
+  private DirectBufferPool bufferPool;
+  private int applicationBufferSize;
+
+  @Autowired
+  public NioHandshakeEngine(
+      SSLSocketFactory sslSocketFactory,
+      HostResolver hostResolver,
+      TimerWheel timerWheel,
+      ScanMetrics scanMetrics,
+      @Value("${nio.selectors}") String selectorCount) {
+    this.sslSocketFactory = sslSocketFactory;
+    this.hostResolver = hostResolver;
+    this.timerWheel = timerWheel;
+    this.scanMetrics = scanMetrics;
+    int count = Integer.parseInt(selectorCount);
+    this.selectorCount =
+        count > 0 ? count : Math.min(4, Runtime.getRuntime().availableProcessors());
+  }
+
+  /**
+   * Starts a handshake with the target and returns immediately. The future is completed from a
+   * selector thread and never exceptionally, failures are reported through the ScanResult.
+   *
+   * @param target Server to download the certificates from.
+   * @return CompletableFuture of the ScanResult, equivalent to that of the blocking path.
+   */
+  public CompletableFuture<ScanResult> handshake(ScanTarget target) {
+    CompletableFuture<ScanResult> future = new CompletableFuture<>();
+    long start = System.nanoTime();
+    ScanMetrics.Phase download = scanMetrics.start(ScanMetrics.DOWNLOAD);
+    ScanMetrics.Phase dns = null;
+    CompletableFuture<List<InetAddress>> resolved;
+    if (Objects.isNull(target.getAddress())) {
+      dns = scanMetrics.start(ScanMetrics.DNS);
+      resolved = hostResolver.resolveAsync(target.getHost());
+    } else {
+      try {
+        resolved =
+            CompletableFuture.completedFuture(
+                Collections.singletonList(InetAddress.getByName(target.getAddress())));
+      } catch (UnknownHostException e) {
+        resolved = CompletableFuture.failedFuture(e);
+      }
+    }
+
+    // Lookups complete on the resolver pool, handshakes never wait on DNS in this thread.
+    ScanMetrics.Phase lookup = dns;
+    resolved.whenComplete(
+        (addresses, error) -> {
+          try {
+            if (Objects.nonNull(error)) {
+              throw error.getCause() instanceof IOException
+                  ? (IOException) error.getCause()
+                  : new UnknownHostException(target.getHost());
+            }
+            if (Objects.nonNull(lookup)) lookup.stop();
+            connect(target, addresses, future, start, download);
+
+          } catch (IOException e) {
+            if (Objects.nonNull(lookup)) lookup.fail(e);
+            download.fail(e);
+            log.warn("Connection failed to {}; {}", target, e.getMessage());
+            future.complete(
+                ScanResult.failure(target, e, System.nanoTime() - start));
+          }
+        });
+
+    return future;
+  }
+
+  private void connect(
+      ScanTarget target,
+      List<InetAddress> addresses,
+      CompletableFuture<ScanResult> future,
+      long start,
+      ScanMetrics.Phase download)
+      throws IOException {
+    SelectorLoop[] started = start();
+    SSLEngine engine = sslSocketFactory.createEngine(target.getHost(), target.getPort());
+    SelectorLoop loop = started[Math.floorMod(next.getAndIncrement(), started.length)];
+    Connection connection = new Connection(loop, target, engine, future, start, download);
+    loop.execute(() -> connection.connect(addresses));
+  }
+
+  private SelectorLoop[] start() throws IOException {
+    SelectorLoop[] current = this.loops;
+    if (current != null) return current;
+
+    synchronized (this) {
+      if (this.loops != null) return this.loops;
+
+      // Size the buffers from a throwaway engine, these do not change per connection.
+      SSLEngine prototype = sslSocketFactory.createEngine(null, -1);
+      this.bufferPool =
+          new DirectBufferPool(prototype.getSession().getPacketBufferSize(), 4096);
+      this.applicationBufferSize = prototype.getSession().getApplicationBufferSize();
+      this.taskExecutor =
+          Executors.newFixedThreadPool(
+              Runtime.getRuntime().availableProcessors(),
+              runnable -> {
+                Thread thread = new Thread(runnable, "nio-handshake-task");
+                thread.setDaemon(true);
+                return thread;
+              });
+
+      SelectorLoop[] created = new SelectorLoop[selectorCount];
+      for (int i = 0; i < created.length; i++) {
+        created[i] = new SelectorLoop(i);
+        created[i].start();
+      }
+      log.info("Started {} selector thread(s) for non-blocking handshakes.", created.length);
+
+      this.loops = created;
+      return created;
+    }
+  }
+
+  @PreDestroy
+  public synchronized void close() {
+    if (this.loops == null) return;
+
+    for (SelectorLoop loop : this.loops) loop.shutdown();
+    this.taskExecutor.shutdownNow();
+    this.loops = null;
+  }
+
+  private final class SelectorLoop extends Thread {
+
+    private final Selector selector;
+    private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+    // Handshake records carry no application data, so one scratch buffer per thread suffices.
+    private final ByteBuffer scratch = ByteBuffer.allocateDirect(applicationBufferSize);
+    private volatile boolean running = true;
+
+    private SelectorLoop(int index) throws IOException {
+      super("nio-selector-" + index);
+      this.selector = Selector.open();
+      setDaemon(true);
+    }
+
+    private void execute(Runnable task) {
+      tasks.add(task);
+      selector.wakeup();
+    }
+
+    private void shutdown() {
+      running = false;
+      selector.wakeup();
+    }
+
+    @Override
+    public void run() {
+      while (running) {
+        try {
+          selector.select();
+        } catch (IOException e) {
+          log.warn("Selector failed: {}", e.getMessage());
+          break;
+        }
+
+        Runnable task;
+        while ((task = tasks.poll()) != null) task.run();
+
+        for (SelectionKey key : selector.selectedKeys()) {
+          ((Connection) key.attachment()).handle(key);
+        }
+        selector.selectedKeys().clear();
+      }
+
+      for (SelectionKey key : selector.keys()) {
+        ((Connection) key.attachment()).fail(new IOException("Handshake engine shut down"));
+      }
+      try {
+        selector.close();
+      } catch (IOException ignored) {
+      }
+    }
+  }
+
+  private final class Connection {
+
+    private final SelectorLoop loop;
+    private final ScanTarget target;
+    private final SSLEngine engine;
+    private final CompletableFuture<ScanResult> future;
+    private final long start;
+    private final ScanMetrics.Phase download;
+    private final TimerWheel.Timeout targetDeadline;
+    private TimerWheel.Timeout phaseDeadline;
+    private ScanMetrics.Phase phase;
+    private final List<SocketChannel> attempts = new ArrayList<>();
+    private List<InetAddress> addresses;
+    private int attempted;
+    private TimerWheel.Timeout attemptTimer;
+    private InetSocketAddress address;
+    private long connecting;
+    private long handshaking;
+    private SocketChannel channel;
+    private SelectionKey key;
+    private ByteBuffer netIn;
+    private ByteBuffer netOut;
+    private boolean done;
+
+    private Connection(
+        SelectorLoop loop,
+        ScanTarget target,
+        SSLEngine engine,
+        CompletableFuture<ScanResult> future,
+        long start,
+        ScanMetrics.Phase download) {
+      this.loop = loop;
+      this.target = target;
+      this.engine = engine;
+      this.future = future;
+      this.start = start;
+      this.download = download;
+      this.targetDeadline =
+          schedule(DeadlineExceededException.TARGET, sslSocketFactory.getTargetTimeout(), start);
+    }
+
+    /**
+     * Fails the connection on its selector thread once the timeout counted from the given time
+     * expires, unless it is done or the returned Timeout is cancelled first.
+     */
+    private TimerWheel.Timeout schedule(String phase, int timeout, long since) {
+      if (timeout <= 0) return null;
+
+      long delay = since + TimeUnit.MILLISECONDS.toNanos(timeout) - System.nanoTime();
+      return timerWheel.schedule(
+          () -> loop.execute(() -> fail(new DeadlineExceededException(phase, timeout))),
+          delay,
+          TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * Connects to one of the addresses as {@link SSLSocketFactory#connect} does, racing them by
+     * family with the attempt delay between starts, within a single connect timeout.
+     */
+    private void connect(List<InetAddress> addresses) {
+      if (done) return;
+
+      this.addresses = addresses.size() > 1 ? SSLSocketFactory.interleave(addresses) : addresses;
+      connecting = System.nanoTime();
+      phaseDeadline =
+          schedule(
+              DeadlineExceededException.CONNECT, sslSocketFactory.getConnectTimeout(), connecting);
+      phase = scanMetrics.start(ScanMetrics.CONNECT);
+      if (this.addresses.isEmpty()) {
+        fail(new UnknownHostException("No addresses to connect to"));
+        return;
+      }
+      attempt();
+    }
+
+    /** Starts connecting to the next address, alongside the attempts still in flight. */
+    private void attempt() {
+      if (done || channel != null || attempted >= addresses.size()) return;
+
+      InetSocketAddress next = new InetSocketAddress(addresses.get(attempted++), target.getPort());
+      SocketChannel attempt = null;
+      try {
+        attempt = SocketChannel.open();
+        attempts.add(attempt);
+        attempt.configureBlocking(false);
+        SelectionKey attemptKey = attempt.register(loop.selector, 0, this);
+        if (attempt.connect(next)) {
+          connected(attempt, attemptKey, next);
+          return;
+        }
+
+        attemptKey.interestOps(SelectionKey.OP_CONNECT);
+        int attemptDelay = sslSocketFactory.getAttemptDelay();
+        if (attempted < addresses.size() && attemptDelay > 0) {
+          attemptTimer =
+              timerWheel.schedule(
+                  () -> loop.execute(this::attempt), attemptDelay, TimeUnit.MILLISECONDS);
+        }
+
+      } catch (IOException | RuntimeException e) {
+        if (channel == null) {
+          attemptFailed(attempt, e);
+        } else {
+          fail(e);
+        }
+      }
+    }
+
+    private void attemptFailed(SocketChannel attempt, Exception e) {
+      if (attempt != null) {
+        attempts.remove(attempt);
+        closeQuietly(attempt);
+      }
+      log.debug("Connect attempt to {} failed: {}", target, e.getMessage());
+
+      // A failed attempt starts the next one at once.
+      if (attempted < addresses.size()) {
+        if (attemptTimer != null) attemptTimer.cancel();
+        attempt();
+      } else if (attempts.isEmpty()) {
+        fail(e);
+      }
+    }
+
+    private void connected(SocketChannel winner, SelectionKey winnerKey, InetSocketAddress to)
+        throws IOException {
+      if (attemptTimer != null) attemptTimer.cancel();
+      for (SocketChannel attempt : attempts) {
+        if (attempt != winner) closeQuietly(attempt);
+      }
+      attempts.clear();
+      log.debug("Connected to {} after {} attempt(s).", to, attempted);
+
+      channel = winner;
+      key = winnerKey;
+      address = to;
+      begin();
+    }
+
+    private void handle(SelectionKey selected) {
+      // Attempts that lost the race are closed while their keys may still be selected.
+      if (!selected.isValid()) return;
+
+      try {
+        if (!selected.isConnectable()) {
+          step();
+          return;
+        }
+
+        SocketChannel attempt = (SocketChannel) selected.channel();
+        boolean finished;
+        try {
+          finished = attempt.finishConnect();
+        } catch (IOException e) {
+          attemptFailed(attempt, e);
+          return;
+        }
+        if (finished) {
+          connected(attempt, selected, (InetSocketAddress) attempt.getRemoteAddress());
+        }
+
+      } catch (IOException | RuntimeException e) {
+        fail(e);
+      }
+    }
+
+    private void begin() throws IOException {
+      if (phaseDeadline != null) phaseDeadline.cancel();
+      handshaking = System.nanoTime();
+      phaseDeadline =
+          schedule(
+              DeadlineExceededException.HANDSHAKE,
+              sslSocketFactory.getHandshakeTimeout(),
+              handshaking);
+      phase.stop();
+      phase = scanMetrics.start(ScanMetrics.HANDSHAKE);
+      engine.beginHandshake();
+      step();
+    }
+
+    /** Drives the engine until it needs the network or a delegated task, or is done. */
+    private void step() throws IOException {
+      if (done) return;
+
+      while (true) {
+        if (netOut != null && !flush()) {
+          key.interestOps(SelectionKey.OP_WRITE);
+          return;
+        }
+
+        SSLEngineResult result;
+        switch (engine.getHandshakeStatus()) {
+          case NEED_WRAP:
+            netOut = bufferPool.acquire();
+            result = engine.wrap(EMPTY, netOut);
+            if (result.getStatus() == SSLEngineResult.Status.CLOSED) {
+              throw new SSLException("Engine closed during handshake");
+            }
+            if (result.getHandshakeStatus() == SSLEngineResult.HandshakeStatus.FINISHED) {
+              flush();
+              complete();
+              return;
+            }
+            break;
+
+          case NEED_UNWRAP:
+          case NEED_UNWRAP_AGAIN:
+            if (netIn == null) netIn = bufferPool.acquire();
+            netIn.flip();
+            result = engine.unwrap(netIn, loop.scratch);
+            netIn.compact();
+            loop.scratch.clear();
+
+            if (result.getStatus() == SSLEngineResult.Status.BUFFER_UNDERFLOW) {
+              int read = channel.read(netIn);
+              if (read < 0) throw new EOFException("Connection closed by peer during handshake");
+              if (read == 0) {
+                releaseInIfEmpty();
+                key.interestOps(SelectionKey.OP_READ);
+                return;
+              }
+            } else if (result.getStatus() == SSLEngineResult.Status.CLOSED) {
+              throw new SSLException("Engine closed during handshake");
+            } else if (result.getHandshakeStatus()
+                == SSLEngineResult.HandshakeStatus.FINISHED) {
+              complete();
+              return;
+            }
+            break;
+
+          case NEED_TASK:
+            key.interestOps(0);
+            List<Runnable> delegated = new ArrayList<>();
+            Runnable task;
+            while ((task = engine.getDelegatedTask()) != null) delegated.add(task);
+            taskExecutor.execute(
+                () -> {
+                  try {
+                    delegated.forEach(Runnable::run);
+                  } finally {
+                    loop.execute(this::resume);
+                  }
+                });
+            return;
+
+          default:
+            complete();
+            return;
+        }
+      }
+    }
+
+    private void resume() {
+      // Failed while the delegated tasks ran, which may have captured the chain since.
+      if (done) {
+        discardCapture();
+        return;
+      }
+
+      try {
+        step();
+      } catch (IOException | RuntimeException e) {
+        fail(e);
+      }
+    }
+
+    /**
+     * Writes pending outbound data, releasing the buffer once empty.
+     *
+     * @return true when everything was written.
+     */
+    private boolean flush() throws IOException {
+      netOut.flip();
+      channel.write(netOut);
+      boolean flushed = !netOut.hasRemaining();
+      netOut.compact();
+      if (flushed) {
+        bufferPool.release(netOut);
+        netOut = null;
+      }
+
+      return flushed;
+    }
+
+    private void releaseInIfEmpty() {
+      if (netIn != null && netIn.position() == 0) {
+        bufferPool.release(netIn);
+        netIn = null;
+      }
+    }
+
+    private void complete() throws IOException {
+      AcceptAllX509TrustManager tm = sslSocketFactory.getCapturingTrustManager();
+      CapturedChain captured = Objects.isNull(tm) ? null : tm.take(engine);
+
+      // The trust manager is not consulted when a cached session is resumed.
+      boolean resumed = Objects.nonNull(tm) && Objects.isNull(captured);
+      sslSocketFactory.handshakeCompleted(engine, resumed);
+      if (resumed) log.info("Resumed session with {}.", target);
+      complete(captured);
+    }
+
+    private void complete(CapturedChain captured) throws IOException {
+      long handshaken = System.nanoTime();
+      phase.stop();
+      List<X509Certificate> certificates =
+          scanMetrics.time(ScanMetrics.CAPTURE, () -> certificates(captured));
+      log.info("Retrieved {} certificate(s) from {}.", certificates.size(), target);
+
+      finish(
+          ScanResult.success(target, certificates, System.nanoTime() - start)
+              .withConnection(
+                  address.getAddress().getHostAddress(),
+                  Objects.isNull(captured)
+                      ? engine.getSession().getProtocol()
+                      : captured.getProtocol(),
+                  Objects.isNull(captured)
+                      ? engine.getSession().getCipherSuite()
+                      : captured.getCipherSuite(),
+                  handshaking - connecting,
+                  handshaken - handshaking));
+    }
+
+    private List<X509Certificate> certificates(CapturedChain captured)
+        throws SSLPeerUnverifiedException {
+      List<X509Certificate> certificates = new ArrayList<>();
+      if (Objects.nonNull(captured)) {
+        certificates.addAll(captured.getCertificates());
+        return certificates;
+      }
+
+      for (Certificate cert : engine.getSession().getPeerCertificates()) {
+        if (cert instanceof X509Certificate) certificates.add((X509Certificate) cert);
+      }
+      return certificates;
+    }
+
+    private void fail(Exception e) {
+      if (done) return;
+
+      AcceptAllX509TrustManager tm = sslSocketFactory.getCapturingTrustManager();
+      CapturedChain captured = Objects.isNull(tm) ? null : tm.take(engine);
+
+      // In chain-only mode the handshake is aborted on purpose once the chain is captured.
+      if (Objects.nonNull(captured) && ChainCapturedException.isCauseOf(e)) {
+        log.info("Captured chain of {}, ended handshake early.", target);
+        try {
+          complete(captured);
+          return;
+        } catch (IOException ignored) {
+          // Unreachable, a captured chain does not need the session.
+        }
+      }
+
+      if (phase != null) phase.fail(e);
+      download.fail(e);
+      log.warn("Connection failed to {}; {}", target, e.getMessage());
+      finish(ScanResult.failure(target, e, System.nanoTime() - start));
+    }
+
+    private void discardCapture() {
+      AcceptAllX509TrustManager tm = sslSocketFactory.getCapturingTrustManager();
+      if (Objects.nonNull(tm)) tm.take(engine);
+    }
+
+    private void finish(ScanResult result) {
+      done = true;
+      discardCapture();
+      if (attemptTimer != null) attemptTimer.cancel();
+      attempts.forEach(NioHandshakeEngine::closeQuietly);
+      attempts.clear();
+      download.stop();
+      if (targetDeadline != null) targetDeadline.cancel();
+      if (phaseDeadline != null) phaseDeadline.cancel();
+      engine.closeOutbound();
+      if (key != null) key.cancel();
+      if (channel != null) {
+        try {
+          channel.close();
+        } catch (IOException ignored) {
+        }
+      }
+      bufferPool.release(netIn);
+      bufferPool.release(netOut);
+      netIn = null;
+      netOut = null;
+
+      future.complete(result);
+    }
+  }
+
+  private static void closeQuietly(SocketChannel channel) {
+    try {
+      channel.close();
+    } catch (IOException ignored) {
+      // Closing only abandons a connect attempt or a finished connection.
+    }
+  }
+}
@@ -0,0 +1,117 @@
+package com.github.coenraadhuman.certificatedownloader.net;
+
+import com.github.coenraadhuman.certificatedownloader.scan.ScanTarget;
+import com.github.coenraadhuman.certificatedownloader.utils.ScanMetrics;
+import com.github.coenraadhuman.certificatedownloader.utils.TimerWheel;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.channels.AsynchronousSocketChannel;
+import java.nio.channels.CompletionHandler;
+import java.util.Objects;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Checks whether a port accepts TCP connections before a handshake is attempted with it, which in
+ * a sweep rules out the closed and filtered ports that make up most targets at the cost of a
+ * single round trip. Connects are asynchronous, so any number of probes may be in flight without
+ * tying up threads, and are abandoned once the probe timeout expires.
+ */
+@Slf4j
+@Component
+public class PortProbe {
+
+  private final TimerWheel timerWheel;
+  private final ScanMetrics scanMetrics;
+  private final int timeout;
+
+  @Autowired
+  public PortProbe(
+      TimerWheel timerWheel,
+      ScanMetrics scanMetrics,
+      @Value("${sweep.probe-timeout}") String timeout) {
+    this.timerWheel = timerWheel;
+    this.scanMetrics = scanMetrics;
+    this.timeout = Integer.parseInt(timeout);
+  }
+
+  /**
+   * Connects to the address of the target, or its host when not pinned to one, and closes the
+   * connection right away.
+   *
+   * @param target Target to probe, its host must be an IP address unless the target is pinned.
+   * @return CompletableFuture completed with whether the port accepted the connection, never
+   *     exceptionally.
+   */
+  public CompletableFuture<Boolean> probe(ScanTarget target) {
+    CompletableFuture<Boolean> open = new CompletableFuture<>();
+    ScanMetrics.Phase phase = scanMetrics.start(ScanMetrics.PROBE);
+    AsynchronousSocketChannel channel = null;
+    try {
+      String host = Objects.isNull(target.getAddress()) ? target.getHost() : target.getAddress();
+      InetSocketAddress address =
+          new InetSocketAddress(InetAddress.getByName(host), target.getPort());
+      channel = AsynchronousSocketChannel.open();
+      AsynchronousSocketChannel connecting = channel;
+      AtomicBoolean expired = new AtomicBoolean();
+      TimerWheel.Timeout deadline =
+          timeout > 0
+              ? timerWheel.schedule(
+                  () -> {
+                    expired.set(true);
+                    close(connecting);
+                  },
+                  timeout,
+                  TimeUnit.MILLISECONDS)
+              : null;
+
+      channel.connect(
+          address,
+          null,
+          new CompletionHandler<Void, Void>() {
+            @Override
+            public void completed(Void result, Void attachment) {
+              if (Objects.nonNull(deadline)) deadline.cancel();
+              phase.stop();
+              close(connecting);
+              open.complete(true);
+            }
+
+            @Override
+            public void failed(Throwable e, Void attachment) {
+              if (Objects.nonNull(deadline)) deadline.cancel();
+              phase.fail(
+                  expired.get()
+                      ? new DeadlineExceededException(DeadlineExceededException.CONNECT, timeout)
+                      : e);
+              close(connecting);
+              log.debug("{} is closed: {}", target, e.getMessage());
+              open.complete(false);
+            }
+          });
+
+    } catch (IOException | RuntimeException e) {
+      if (Objects.nonNull(channel)) close(channel);
+      phase.fail(e);
+      log.debug("Unable to probe {}: {}", target, e.getMessage());
+      open.complete(false);
+    }
+
+    return open;
+  }
+
+  private static void close(AsynchronousSocketChannel channel) {
+    try {
+      channel.close();
+    } catch (IOException ignored) {
+      // Closing only aborts the connect, if it is still pending.
+    }
+  }
+}
@@ -0,0 +1,287 @@
+package com.github.coenraadhuman.certificatedownloader.net;
+
+import com.github.coenraadhuman.certificatedownloader.scan.ScanResult;
+import com.github.coenraadhuman.certificatedownloader.scan.ScanTarget;
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PreDestroy;
+import javax.net.ssl.SSLException;
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.SocketTimeoutException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+
+/**
+ * Negotiates a protocol version per target using the prebuilt per-version contexts of the
+ * SSLSocketFactory. Versions are tried most preferred first, and the next one is started as soon
+ * as a handshake is rejected or once the fallback delay passes without an answer, so an endpoint
+ * that only speaks a legacy version does not pay for each rejected version in turn. The first
+ * successful handshake wins and its version is remembered for the target, later scans start with
+ * that version. Attempts run on at most <i>protocol.threads</i> pooled threads, and those still
+ * waiting or in flight once negotiation ends are cancelled and their sockets closed.
+ */
+@Slf4j
+@Component
+public class ProtocolNegotiator {
+
+  /** A handshake with the target restricted to a single protocol version. */
+  @FunctionalInterface
+  public interface Attempt {
+
+    /**
+     * @param protocol Protocol version to restrict the handshake to.
+     * @param opened Receives what the attempt opens, closed from another thread to abort it.
+     * @return ScanResult of the successful handshake.
+     * @throws SSLException when the handshake was rejected, the next version is then tried, as it
+     *     is on a SocketTimeoutException since some servers ignore versions they do not know.
+     * @throws IOException when the target could not be reached, or a connect or target {@link
+     *     DeadlineExceededException}, no other versions are tried.
+     */
+    ScanResult handshake(String protocol, Consumer<Closeable> opened) throws IOException;
+  }
+
+  /** An attempt started by a negotiation, aborted once the negotiation ended. */
+  private static final class Running {
+
+    private final List<Closeable> opened = new ArrayList<>();
+    private Future<?> future;
+    private boolean cancelled;
+
+    private synchronized void open(Closeable closeable) {
+      if (cancelled) {
+        closeQuietly(closeable);
+      } else {
+        opened.add(closeable);
+      }
+    }
+
+    private synchronized void start(Future<?> future) {
+      this.future = future;
+      if (cancelled) future.cancel(false);
+    }
+
+    private synchronized boolean isCancelled() {
+      return cancelled;
+    }
+
+    private synchronized void cancel() {
+      cancelled = true;
+      if (future != null) future.cancel(false);
+      opened.forEach(Running::closeQuietly);
+      opened.clear();
+    }
+
+    private static void closeQuietly(Closeable closeable) {
+      try {
+        closeable.close();
+      } catch (IOException ignored) {
+        // Aborting the attempt, it fails on its own.
+      }
+    }
+  }
+
+  private final SSLSocketFactory sslSocketFactory;
+  private final long fallbackDelayMillis;
+  private final Map<String, String> accepted = new ConcurrentHashMap<>();
+  private final ThreadPoolExecutor executor;
+  private volatile boolean enabled;
+
+  @Autowired
+  public ProtocolNegotiator(
+      SSLSocketFactory sslSocketFactory,
+      @Value("${protocol.fallback-delay}") String fallbackDelay,
+      @Value("${protocol.threads}") String threads) {
+    this.sslSocketFactory = sslSocketFactory;
+    this.fallbackDelayMillis = Long.parseLong(fallbackDelay);
+    int size = Integer.parseInt(threads);
+    this.executor =
+        new ThreadPoolExecutor(
+            size,
+            size,
+            60,
+            TimeUnit.SECONDS,
+            new LinkedBlockingQueue<>(),
+            runnable -> {
+              Thread thread = new Thread(runnable, "protocol-attempt");
+              thread.setDaemon(true);
+              return thread;
+            });
+    executor.allowCoreThreadTimeOut(true);
+  }
+
+  /**
+   * Sets whether targets are scanned with per-version negotiation rather than the single default
+   * SSLContext.
+   *
+   * @param enabled Whether to negotiate.
+   */
+  @Value("${protocol.negotiation}")
+  public void setEnabled(boolean enabled) {
+    this.enabled = enabled;
+  }
+
+  public boolean isEnabled() {
+    return enabled;
+  }
+
+  /**
+   * Returns the version the target accepted in an earlier negotiation.
+   *
+   * @param target Target to look up.
+   * @return Protocol version, or null when the target has not been negotiated with.
+   */
+  public String getAcceptedProtocol(ScanTarget target) {
+    return accepted.get(target.toString());
+  }
+
+  /**
+   * Runs attempts for the target until one succeeds, blocking until then.
+   *
+   * @param target Target being scanned.
+   * @param attempt Performs a handshake restricted to a version, called from pooled threads. The
+   *     attempts that lost are aborted by closing what they opened.
+   * @return ScanResult of the first successful attempt.
+   * @throws IOException of the last rejected attempt when every version was rejected, or of the
+   *     first attempt that could not reach the target.
+   */
+  public ScanResult negotiate(ScanTarget target, Attempt attempt) throws IOException {
+    List<String> order = order(target);
+    if (order.isEmpty()) throw new SSLException("No protocol versions available to negotiate");
+
+    Negotiation negotiation = new Negotiation(target, attempt, order);
+    negotiation.launch();
+
+    try {
+      while (true) {
+        try {
+          return negotiation.winner.get(fallbackDelayMillis, TimeUnit.MILLISECONDS);
+        } catch (TimeoutException e) {
+          // No answer yet, race the next version alongside those in flight.
+          if (negotiation.next.get() < order.size()) {
+            log.debug(
+                "No answer from {} yet, also trying {}.",
+                target,
+                order.get(negotiation.next.get()));
+            negotiation.launch();
+          } else {
+            return negotiation.winner.get();
+          }
+        }
+      }
+
+    } catch (ExecutionException e) {
+      if (e.getCause() instanceof IOException) throw (IOException) e.getCause();
+      throw new IOException(e.getCause());
+
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new IOException("Interrupted while negotiating with " + target, e);
+
+    } finally {
+      negotiation.end();
+    }
+  }
+
+  private List<String> order(ScanTarget target) throws IOException {
+    List<String> order = new ArrayList<>(sslSocketFactory.getProtocolVersions());
+    String remembered = accepted.get(target.toString());
+    if (remembered != null && order.remove(remembered)) order.add(0, remembered);
+    return order;
+  }
+
+  /** The attempts of a single negotiation with a target. */
+  @RequiredArgsConstructor
+  private final class Negotiation {
+
+    private final ScanTarget target;
+    private final Attempt attempt;
+    private final List<String> order;
+    private final CompletableFuture<ScanResult> winner = new CompletableFuture<>();
+    private final AtomicInteger next = new AtomicInteger();
+    private final AtomicInteger rejected = new AtomicInteger();
+    private final List<Running> running = new CopyOnWriteArrayList<>();
+
+    private void launch() {
+      int index = next.getAndIncrement();
+      if (index >= order.size() || winner.isDone()) return;
+
+      String protocol = order.get(index);
+      Running started = new Running();
+      running.add(started);
+      // Ended in the meantime, after it cancelled the attempts it knew of.
+      if (winner.isDone()) {
+        started.cancel();
+        return;
+      }
+      started.start(executor.submit(() -> run(protocol, started)));
+    }
+
+    private void run(String protocol, Running started) {
+      try {
+        ScanResult result = attempt.handshake(protocol, started::open);
+        // Remembered before completing, so that it is known once negotiate returns.
+        if (!winner.isDone()) {
+          String previous = accepted.put(target.toString(), protocol);
+          if (winner.complete(result) && !protocol.equals(previous)) {
+            log.info("Negotiated {} with {}.", protocol, target);
+          }
+        }
+
+      } catch (SSLException | SocketTimeoutException e) {
+        if (started.isCancelled()) return;
+        if (!isRejection(e)) {
+          winner.completeExceptionally(e);
+          return;
+        }
+        log.debug("{} rejected {}: {}", target, protocol, e.getMessage());
+        accepted.remove(target.toString(), protocol);
+        if (rejected.incrementAndGet() == order.size()) {
+          winner.completeExceptionally(e);
+        } else {
+          launch();
+        }
+
+      } catch (IOException | RuntimeException e) {
+        winner.completeExceptionally(e);
+      }
+    }
+
+    /** Ends the negotiation, aborting the attempts still waiting or in flight. */
+    private void end() {
+      winner.cancel(false);
+      running.forEach(Running::cancel);
+    }
+  }
+
+  /**
+   * Whether the attempt failed because of its version. Servers that ignore versions they do not
+   * know stall the handshake, unreachable targets and expired target deadlines fail every version.
+   */
+  private static boolean isRejection(IOException e) {
+    if (!(e instanceof DeadlineExceededException)) return true;
+
+    return DeadlineExceededException.HANDSHAKE.equals(((DeadlineExceededException) e).getPhase());
+  }
+
+  @PreDestroy
+  public void close() {
+    executor.shutdownNow();
+  }
+}
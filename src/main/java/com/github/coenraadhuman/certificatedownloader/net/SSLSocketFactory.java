@@ -7,31 +7,102 @@ import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Component;
 
-import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
 import javax.net.SocketFactory;
 import javax.net.ssl.*;
 import java.io.IOException;
+import java.io.InterruptedIOException;
 import java.net.InetAddress;
+import java.net.InetSocketAddress;
 import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.net.UnknownHostException;
 import java.security.KeyManagementException;
 import java.security.KeyStoreException;
 import java.security.NoSuchAlgorithmException;
 import java.security.NoSuchProviderException;
 import java.security.cert.CertificateException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
 
 @Slf4j
 @Component
 public class SSLSocketFactory extends SocketFactory {
 
+  private static final String TLS_13 = "TLSv1.3";
+  private static final int DEFAULT_ATTEMPT_THREADS = 128;
+  private static final int DEFAULT_TICKET_THREADS = 16;
   private static final String COULD_NOT_CREATE_SOCKET_DUE_TO_KEY_MANAGEMENT_ISSUES =
       "Could not create socket due to key management issues: {}";
 
   private final int defaultTimeout;
   private final String[] protocols;
+  private boolean chainOnly;
+  private boolean resumption;
+  private int ticketWait;
+  private int sessionCacheSize;
+  private int connectTimeout;
+  private int handshakeTimeout;
+  private int targetTimeout;
+  private int attemptDelay;
+  private final ThreadPoolExecutor attemptExecutor =
+      new ThreadPoolExecutor(
+          DEFAULT_ATTEMPT_THREADS,
+          DEFAULT_ATTEMPT_THREADS,
+          60,
+          TimeUnit.SECONDS,
+          new LinkedBlockingQueue<>(),
+          runnable -> {
+            Thread thread = new Thread(runnable, "connect-attempt");
+            thread.setDaemon(true);
+            return thread;
+          });
+  private final ThreadPoolExecutor ticketExecutor =
+      new ThreadPoolExecutor(
+          DEFAULT_TICKET_THREADS,
+          DEFAULT_TICKET_THREADS,
+          60,
+          TimeUnit.SECONDS,
+          new LinkedBlockingQueue<>(),
+          runnable -> {
+            Thread thread = new Thread(runnable, "session-ticket");
+            thread.setDaemon(true);
+            return thread;
+          });
+  private final Map<String, Map<SSLSessionContext, SSLSession>> peerSessions =
+      new LinkedHashMap<>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(
+            Map.Entry<String, Map<SSLSessionContext, SSLSession>> eldest) {
+          return sessionCacheSize > 0 && size() > sessionCacheSize;
+        }
+      };
+  private final AtomicLong resumedHandshakes = new AtomicLong();
+  private final AtomicLong fullHandshakes = new AtomicLong();
   private final KeyManagers keyManagers = new KeyManagers();
   private final TrustManagers trustManagers = new TrustManagers();
   private SSLContext context;
-  private boolean initContext;
+  private String[] protocolVersions = new String[0];
+  private final Map<String, SSLContext> protocolContexts = new ConcurrentHashMap<>();
+  private final Set<String> unavailableProtocols = ConcurrentHashMap.newKeySet();
+  private volatile boolean initContext;
   private KeyStore keyStore;
 
   @Autowired
@@ -40,10 +111,17 @@ public class SSLSocketFactory extends SocketFactory {
       @Value("${default.protocols}") String[] protocols) {
     this.defaultTimeout = Integer.parseInt(defaultTimeout);
     this.protocols = protocols;
+    this.attemptExecutor.allowCoreThreadTimeOut(true);
   }
 
-  @PostConstruct
-  public void init() {
+  /**
+   * Loads the SSLContext of the first available protocol of {@code default.protocols}. Called on
+   * first use rather than on construction, so that starting the application does not pay for
+   * loading the JSSE provider.
+   */
+  public synchronized void init() {
+    if (this.context != null) return;
+
     int i = 0;
     while (this.context == null) {
       try {
@@ -58,7 +136,7 @@ public class SSLSocketFactory extends SocketFactory {
       }
 
       i++;
-      if (i >= protocols.length) {
+      if (this.context == null && i >= protocols.length) {
         log.warn("Could not load any valid protocols. Connections will likely fail!  :(  ");
         break;
       }
@@ -67,6 +145,221 @@ public class SSLSocketFactory extends SocketFactory {
     this.initContext = false;
   }
 
+  /**
+   * Sets whether handshakes end as soon as the server chain is captured, see {@link
+   * AcceptAllX509TrustManager#setChainOnly(boolean)}. Applies to the default trust management.
+   *
+   * @param chainOnly Whether to end handshakes early.
+   */
+  @Value("${capture.chain-only}")
+  public void setChainOnly(boolean chainOnly) {
+    this.chainOnly = chainOnly;
+    AcceptAllX509TrustManager tm = this.getCapturingTrustManager();
+    if (tm != null) tm.setChainOnly(chainOnly);
+  }
+
+  public boolean isChainOnly() {
+    return this.chainOnly;
+  }
+
+  /**
+   * Sets whether sessions are kept in the client session cache, keyed by host:port, so that later
+   * handshakes with the same peer resume them. Resumed handshakes skip the certificate exchange,
+   * the certificates are then taken from the cached session. When disabled every session is
+   * invalidated once established and each handshake transfers the chain.
+   *
+   * @param resumption Whether to resume sessions.
+   */
+  @Value("${session.resumption}")
+  public void setResumption(boolean resumption) {
+    this.resumption = resumption;
+  }
+
+  public boolean isResumption() {
+    return this.resumption;
+  }
+
+  /**
+   * Sets how long to wait for the session ticket after a TLS 1.3 handshake when resuming. TLS 1.3
+   * sessions can only be resumed with a ticket, which servers send after the handshake completes
+   * and which is used up by the next handshake. The wait happens on a background thread once the
+   * caller is done with the socket, see {@link #closeAfterTicket(SSLSocket)}.
+   *
+   * @param ticketWait Milliseconds to wait, 0 to not wait.
+   */
+  @Value("${session.ticket-wait}")
+  public void setTicketWait(int ticketWait) {
+    this.ticketWait = ticketWait;
+  }
+
+  /**
+   * Sets how many sockets wait for their session ticket at once. Sockets beyond it wait for a
+   * thread, still within the ticket wait of their handshake.
+   *
+   * @param ticketThreads Maximum number of ticket threads.
+   */
+  @Value("${session.ticket-threads}")
+  public synchronized void setTicketThreads(int ticketThreads) {
+    if (ticketThreads > this.ticketExecutor.getMaximumPoolSize()) {
+      this.ticketExecutor.setMaximumPoolSize(ticketThreads);
+      this.ticketExecutor.setCorePoolSize(ticketThreads);
+    } else {
+      this.ticketExecutor.setCorePoolSize(ticketThreads);
+      this.ticketExecutor.setMaximumPoolSize(ticketThreads);
+    }
+  }
+
+  /**
+   * Sets the maximum number of sessions in the client session cache, applied on first use.
+   *
+   * @param sessionCacheSize Number of sessions, 0 for no limit.
+   */
+  @Value("${session.cache-size}")
+  public void setSessionCacheSize(int sessionCacheSize) {
+    this.sessionCacheSize = sessionCacheSize;
+  }
+
+  /**
+   * Sets how long connecting may take before failing with a {@link DeadlineExceededException},
+   * rather than waiting out the connect timeout of the operating system on unresponsive hosts.
+   *
+   * @param connectTimeout Milliseconds, 0 to wait indefinitely.
+   */
+  @Value("${timeout.connect}")
+  public void setConnectTimeout(int connectTimeout) {
+    this.connectTimeout = connectTimeout;
+  }
+
+  public int getConnectTimeout() {
+    return this.connectTimeout;
+  }
+
+  /**
+   * Sets how long to wait for a connection attempt before racing the next address of the peer,
+   * the Connection Attempt Delay of RFC 8305.
+   *
+   * @param attemptDelay Milliseconds, 0 to only try the next address once an attempt failed.
+   */
+  @Value("${connect.attempt-delay}")
+  public void setAttemptDelay(int attemptDelay) {
+    this.attemptDelay = attemptDelay;
+  }
+
+  public int getAttemptDelay() {
+    return this.attemptDelay;
+  }
+
+  /**
+   * Sets how many connection attempts run at once across all peers. Attempts beyond it wait for
+   * a thread, still within the connect timeout of their peer.
+   *
+   * @param attemptThreads Maximum number of attempt threads.
+   */
+  @Value("${connect.attempt-threads}")
+  public synchronized void setAttemptThreads(int attemptThreads) {
+    if (attemptThreads > this.attemptExecutor.getMaximumPoolSize()) {
+      this.attemptExecutor.setMaximumPoolSize(attemptThreads);
+      this.attemptExecutor.setCorePoolSize(attemptThreads);
+    } else {
+      this.attemptExecutor.setCorePoolSize(attemptThreads);
+      this.attemptExecutor.setMaximumPoolSize(attemptThreads);
+    }
+  }
+
+  /**
+   * Sets how long a handshake may take once connected, regardless of how much data trickles in.
+   * The default timeout still applies to each read.
+   *
+   * @param handshakeTimeout Milliseconds, 0 for no limit.
+   */
+  @Value("${timeout.handshake}")
+  public void setHandshakeTimeout(int handshakeTimeout) {
+    this.handshakeTimeout = handshakeTimeout;
+  }
+
+  public int getHandshakeTimeout() {
+    return this.handshakeTimeout;
+  }
+
+  /**
+   * Sets how long scanning a single target may take in total, including every connection made
+   * while negotiating its protocol version.
+   *
+   * @param targetTimeout Milliseconds, 0 for no limit.
+   */
+  @Value("${timeout.target}")
+  public void setTargetTimeout(int targetTimeout) {
+    this.targetTimeout = targetTimeout;
+  }
+
+  public int getTargetTimeout() {
+    return this.targetTimeout;
+  }
+
+  /**
+   * Sets the protocol versions to prebuild an SSLContext for, see {@link #getProtocolVersions()}.
+   *
+   * @param protocolVersions Versions such as TLSv1.2, most preferred first.
+   */
+  @Value("${protocol.versions}")
+  public void setProtocolVersions(String[] protocolVersions) {
+    this.protocolVersions = protocolVersions;
+  }
+
+  /**
+   * Returns the protocol versions that sockets can be restricted to, most preferred first. Versions
+   * that could not be loaded or are disabled by the security properties of the runtime are left
+   * out.
+   *
+   * @return Usable protocol versions.
+   * @throws IOException when the SSLContexts could not be initialized.
+   */
+  public List<String> getProtocolVersions() throws IOException {
+    List<String> versions = new ArrayList<>(this.protocolVersions.length);
+    try {
+      for (String version : this.protocolVersions) {
+        if (this.getVersionContext(version) != null) versions.add(version);
+      }
+    } catch (KeyManagementException e) {
+      throw new IOException("Could not create contexts due to key management issues", e);
+    }
+
+    return versions;
+  }
+
+  /**
+   * Returns every cipher suite the prebuilt SSLContext of the protocol version supports that can
+   * be negotiated with that version, in the order the client prefers them.
+   *
+   * @param protocol One of {@link #getProtocolVersions()}.
+   * @return Cipher suite names.
+   * @throws IOException when the SSLContexts could not be initialized.
+   */
+  public List<String> getCipherSuites(String protocol) throws IOException {
+    if (!this.getProtocolVersions().contains(protocol)) {
+      throw new IllegalArgumentException(String.format("Protocol %s is not available", protocol));
+    }
+
+    // TLS 1.3 suites only name the AEAD and hash, earlier ones name the key exchange WITH them.
+    boolean tls13 = TLS_13.equals(protocol);
+    List<String> suites = new ArrayList<>();
+    for (String suite :
+        this.protocolContexts.get(protocol).getSupportedSSLParameters().getCipherSuites()) {
+      if (suite.endsWith("_SCSV")) continue;
+      if (tls13 != suite.contains("_WITH_")) suites.add(suite);
+    }
+
+    return suites;
+  }
+
+  public long getResumedHandshakes() {
+    return this.resumedHandshakes.get();
+  }
+
+  public long getFullHandshakes() {
+    return this.fullHandshakes.get();
+  }
+
   public KeyStore getKeyStore() {
     return this.keyStore;
   }
@@ -103,9 +396,30 @@ public class SSLSocketFactory extends SocketFactory {
     return this.trustManagers;
   }
 
-  private SSLSocket createSocket(String host, int port, int timeout)
-      throws KeyManagementException, IOException {
+  /**
+   * Returns the trust manager that captures the certificate chains of this factory's handshakes.
+   *
+   * @return AcceptAllX509TrustManager in use, or null when other trust management was specified.
+   */
+  public AcceptAllX509TrustManager getCapturingTrustManager() {
+    for (TrustManager tm : this.trustManagers) {
+      if (tm instanceof AcceptAllX509TrustManager) return (AcceptAllX509TrustManager) tm;
+    }
+
+    return null;
+  }
+
+  /**
+   * Initializes the SSLContext on first use. Synchronized so that concurrent first connections,
+   * as made by batch scans, only initialize the context and its managers once.
+   */
+  private synchronized void initContext() throws KeyManagementException, IOException {
     if (!this.initContext) {
+      this.init();
+      if (this.context == null) {
+        throw new IOException(
+            String.format("None of the protocols %s could be loaded", Arrays.toString(protocols)));
+      }
 
       // If there is no KeyStore, we will need to use a custom one.
       if (this.keyManagers.size() == 0) {
@@ -118,25 +432,430 @@ public class SSLSocketFactory extends SocketFactory {
 
       // If there are no trust managers present at this point, we will go ahead and accept all.
       if (this.trustManagers.size() == 0) {
-        this.trustManagers.add(new AcceptAllX509TrustManager());
+        AcceptAllX509TrustManager tm = new AcceptAllX509TrustManager();
+        tm.setChainOnly(this.chainOnly);
+        this.trustManagers.add(tm);
         log.info("No specified trust management, defaulting to accepting all certificates.");
       }
 
       this.context.init(
           this.keyManagers.getKeyManagers(), this.trustManagers.getTrustManagers(), null);
+      this.context.getClientSessionContext().setSessionCacheSize(this.sessionCacheSize);
+
       log.info(
           "Initialized SSLContext: {}, {}",
           this.context.getProtocol(),
           this.context.getProvider().getClass().getName());
       this.initContext = true;
     }
+  }
+
+  /**
+   * Returns the SSLContext restricted to the protocol version, building it on first use so that
+   * only the versions actually negotiated are paid for.
+   *
+   * @return SSLContext, or null when the version is not loadable or disabled by the runtime.
+   */
+  private SSLContext getVersionContext(String version) throws KeyManagementException, IOException {
+    SSLContext versionContext = this.protocolContexts.get(version);
+    if (versionContext != null || this.unavailableProtocols.contains(version)) {
+      return versionContext;
+    }
+
+    synchronized (this) {
+      if (!this.initContext) this.initContext();
+      versionContext = this.protocolContexts.get(version);
+      if (versionContext != null || this.unavailableProtocols.contains(version)) {
+        return versionContext;
+      }
+
+      try {
+        versionContext = SSLContext.getInstance(version, "SunJSSE");
+        versionContext.init(
+            this.keyManagers.getKeyManagers(), this.trustManagers.getTrustManagers(), null);
+        versionContext.getClientSessionContext().setSessionCacheSize(this.sessionCacheSize);
+        if (!Arrays.asList(versionContext.getDefaultSSLParameters().getProtocols())
+            .contains(version)) {
+          log.info("Protocol {} is disabled by this runtime, skipping it.", version);
+          this.unavailableProtocols.add(version);
+          return null;
+        }
+        this.protocolContexts.put(version, versionContext);
+        return versionContext;
+
+      } catch (NoSuchAlgorithmException | NoSuchProviderException e) {
+        log.warn("Unable to load protocol {}: {}", version, e.getMessage());
+        this.unavailableProtocols.add(version);
+        return null;
+      }
+    }
+  }
 
-    javax.net.ssl.SSLSocketFactory factory = this.context.getSocketFactory();
-    SSLSocket s = (SSLSocket) factory.createSocket(host, port);
+  private SSLSocket createSocket(String host, int port, int timeout)
+      throws KeyManagementException, IOException {
+    if (!this.initContext) this.initContext();
+
+    SSLSocket s = this.layer(this.connect(host, port), host, port, this.context);
     s.setSoTimeout(timeout);
     return s;
   }
 
+  /**
+   * Creates a socket from the prebuilt SSLContext of the given protocol version, only that version
+   * is enabled on it.
+   *
+   * @param host Peer host.
+   * @param port Peer port.
+   * @param protocol One of {@link #getProtocolVersions()}.
+   * @return Connected SSLSocket, the handshake has not been started.
+   * @throws IOException when the connection could not be made.
+   */
+  public SSLSocket createSocket(String host, int port, String protocol) throws IOException {
+    SSLContext versionContext = this.getContext(protocol);
+    SSLSocket s = this.layer(this.connect(host, port), host, port, versionContext);
+    s.setSoTimeout(this.defaultTimeout);
+    s.setEnabledProtocols(new String[] {protocol});
+    return s;
+  }
+
+  /**
+   * Creates a socket connected to the given address rather than whatever the host resolves to, the
+   * host is still used for SNI and session caching.
+   *
+   * @param host Peer host.
+   * @param address Address of the peer to connect to.
+   * @param port Peer port.
+   * @param protocol One of {@link #getProtocolVersions()} to restrict the socket to, or null to use
+   *     the default SSLContext.
+   * @return Connected SSLSocket, the handshake has not been started.
+   * @throws IOException when the connection could not be made.
+   */
+  public SSLSocket createSocket(String host, InetAddress address, int port, String protocol)
+      throws IOException {
+    return this.createSocket(
+        this.connect(Collections.singletonList(address), port, Socket::new), host, port, protocol);
+  }
+
+  /**
+   * Layers TLS over a socket connected by {@link #connect(List, int, Supplier)}. Closing the plain
+   * socket from another thread aborts a handshake in progress, unlike closing the SSLSocket, which
+   * may block until the handshake ends.
+   *
+   * @param plain Connected socket, closed when TLS could not be layered over it.
+   * @param host Peer host, used for SNI and session caching.
+   * @param port Peer port.
+   * @param protocol One of {@link #getProtocolVersions()}, or null to use the default SSLContext.
+   * @return SSLSocket, the handshake has not been started.
+   * @throws IOException when TLS could not be layered over the socket.
+   */
+  public SSLSocket createSocket(Socket plain, String host, int port, String protocol)
+      throws IOException {
+    SSLContext socketContext;
+    try {
+      socketContext = this.getContext(protocol);
+    } catch (IOException | RuntimeException e) {
+      plain.close();
+      throw e;
+    }
+
+    SSLSocket s = this.layer(plain, host, port, socketContext);
+    s.setSoTimeout(this.defaultTimeout);
+    if (protocol != null) s.setEnabledProtocols(new String[] {protocol});
+    return s;
+  }
+
+  /**
+   * Connects to one of the addresses of a peer, racing them as Happy Eyeballs (RFC 8305) does.
+   * Addresses are interleaved by family, starting with the family of the first, and each attempt
+   * starts once the previous one failed or the attempt delay passed without it connecting. The
+   * first connection made wins and every other attempt is closed, so a broken IPv6 path costs the
+   * attempt delay rather than the connect timeout.
+   *
+   * @param addresses Addresses of the peer, most preferred first.
+   * @param port Peer port.
+   * @param sockets Supplies the unconnected socket of each attempt. Closing one from another
+   *     thread aborts its attempt, or a later handshake over it.
+   * @return Connected socket.
+   * @throws IOException of the last attempt when none connected, a {@link
+   *     DeadlineExceededException} when none connected within the connect timeout.
+   */
+  public Socket connect(List<InetAddress> addresses, int port, Supplier<Socket> sockets)
+      throws IOException {
+    if (addresses.isEmpty()) throw new UnknownHostException("No addresses to connect to");
+    if (addresses.size() == 1) {
+      return this.connect(sockets.get(), new InetSocketAddress(addresses.get(0), port));
+    }
+
+    List<InetAddress> ordered = interleave(addresses);
+    BlockingQueue<Object> outcomes = new LinkedBlockingQueue<>();
+    List<Socket> started = new ArrayList<>();
+    boolean racing = this.attemptDelay > 0;
+    long start = System.nanoTime();
+    long deadline = start + TimeUnit.MILLISECONDS.toNanos(this.connectTimeout);
+    long nextAttempt = start;
+    int running = 0;
+    IOException last = null;
+    Socket winner = null;
+    try {
+      while (true) {
+        long now = System.nanoTime();
+        if (this.connectTimeout > 0 && now - deadline >= 0) {
+          throw new DeadlineExceededException(
+              DeadlineExceededException.CONNECT, this.connectTimeout);
+        }
+
+        boolean more = started.size() < ordered.size();
+        if (more && (running == 0 || (racing && now - nextAttempt >= 0))) {
+          Socket plain = sockets.get();
+          InetSocketAddress address = new InetSocketAddress(ordered.get(started.size()), port);
+          started.add(plain);
+          running++;
+          nextAttempt = now + TimeUnit.MILLISECONDS.toNanos(this.attemptDelay);
+          this.attemptExecutor.execute(
+              () -> {
+                try {
+                  outcomes.add(this.connect(plain, address));
+                } catch (IOException e) {
+                  outcomes.add(e);
+                }
+              });
+          continue;
+        }
+        if (running == 0) throw last;
+
+        long wait = Long.MAX_VALUE;
+        if (more && racing) wait = nextAttempt - now;
+        if (this.connectTimeout > 0) wait = Math.min(wait, deadline - now);
+        Object outcome = outcomes.poll(wait, TimeUnit.NANOSECONDS);
+        if (outcome == null) continue;
+
+        running--;
+        if (outcome instanceof Socket) {
+          winner = (Socket) outcome;
+          log.debug(
+              "Connected to {} after {} attempt(s).", winner.getInetAddress(), started.size());
+          return winner;
+        }
+        // A failed attempt starts the next one at once.
+        last = (IOException) outcome;
+        nextAttempt = System.nanoTime();
+      }
+
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new InterruptedIOException("Interrupted while connecting");
+
+    } finally {
+      for (Socket plain : started) {
+        if (plain != winner) closeQuietly(plain);
+      }
+    }
+  }
+
+  /** Orders addresses alternating between families, starting with that of the first. */
+  static List<InetAddress> interleave(List<InetAddress> addresses) {
+    Class<?> firstFamily = addresses.get(0).getClass();
+    Deque<InetAddress> first = new ArrayDeque<>();
+    Deque<InetAddress> other = new ArrayDeque<>();
+    for (InetAddress address : addresses) {
+      (address.getClass() == firstFamily ? first : other).add(address);
+    }
+
+    List<InetAddress> ordered = new ArrayList<>(addresses.size());
+    while (!first.isEmpty() || !other.isEmpty()) {
+      if (!first.isEmpty()) ordered.add(first.poll());
+      if (!other.isEmpty()) ordered.add(other.poll());
+    }
+
+    return ordered;
+  }
+
+  private static void closeQuietly(Socket socket) {
+    try {
+      socket.close();
+    } catch (IOException ignored) {
+      // Only aborts an attempt that lost the race.
+    }
+  }
+
+  private SSLContext getContext(String protocol) throws IOException {
+    SSLContext socketContext;
+    try {
+      if (!this.initContext) this.initContext();
+      if (protocol == null) {
+        socketContext = this.context;
+      } else if (Arrays.asList(this.protocolVersions).contains(protocol)) {
+        socketContext = this.getVersionContext(protocol);
+      } else {
+        socketContext = null;
+      }
+    } catch (KeyManagementException e) {
+      throw new IOException("Could not create socket due to key management issues", e);
+    }
+
+    if (socketContext == null) {
+      throw new IllegalArgumentException(String.format("Protocol %s is not available", protocol));
+    }
+
+    return socketContext;
+  }
+
+  private Socket connect(String host, int port) throws IOException {
+    return this.connect(Arrays.asList(InetAddress.getAllByName(host)), port, Socket::new);
+  }
+
+  private Socket connect(Socket plain, InetSocketAddress address) throws IOException {
+    try {
+      plain.connect(address, this.connectTimeout);
+      return plain;
+
+    } catch (SocketTimeoutException e) {
+      plain.close();
+      throw new DeadlineExceededException(DeadlineExceededException.CONNECT, this.connectTimeout);
+
+    } catch (IOException e) {
+      plain.close();
+      throw e;
+    }
+  }
+
+  private SSLSocket layer(Socket plain, String host, int port, SSLContext socketContext)
+      throws IOException {
+    try {
+      return (SSLSocket) socketContext.getSocketFactory().createSocket(plain, host, port, true);
+    } catch (IOException e) {
+      plain.close();
+      throw e;
+    }
+  }
+
+  /**
+   * Creates a client-mode SSLEngine for the given peer from the same SSLContext, and so the same
+   * key and trust managers, as the sockets of this factory.
+   *
+   * @param host Peer host, used for SNI and session caching.
+   * @param port Peer port.
+   * @return SSLEngine ready to begin a handshake.
+   * @throws IOException when the SSLContext could not be initialized.
+   */
+  public SSLEngine createEngine(String host, int port) throws IOException {
+    try {
+      if (!this.initContext) this.initContext();
+    } catch (KeyManagementException e) {
+      throw new IOException("Could not create engine due to key management issues", e);
+    }
+
+    SSLEngine engine = this.context.createSSLEngine(host, port);
+    engine.setUseClientMode(true);
+    return engine;
+  }
+
+  /**
+   * Records a completed handshake of a socket from this factory, invalidating its session unless
+   * sessions are resumed.
+   *
+   * @param s SSLSocket that completed its handshake.
+   * @param resumed Whether the handshake resumed a cached session.
+   */
+  public void handshakeCompleted(SSLSocket s, boolean resumed) {
+    this.handshakeCompleted(s.getSession(), resumed);
+  }
+
+  /**
+   * Records a completed handshake of an engine from this factory. Engines do not wait for TLS 1.3
+   * session tickets, so only TLS 1.2 and earlier sessions are resumed through them.
+   *
+   * @param engine SSLEngine that completed its handshake.
+   * @param resumed Whether the handshake resumed a cached session.
+   */
+  public void handshakeCompleted(SSLEngine engine, boolean resumed) {
+    this.handshakeCompleted(engine.getSession(), resumed);
+  }
+
+  private void handshakeCompleted(SSLSession session, boolean resumed) {
+    (resumed ? this.resumedHandshakes : this.fullHandshakes).incrementAndGet();
+    if (!this.resumption) {
+      session.invalidate();
+      return;
+    }
+
+    // Tickets of a TLS 1.3 session are invalidated along with it, so the session is all it takes.
+    String peer = peerOf(session.getPeerHost(), session.getPeerPort());
+    synchronized (this.peerSessions) {
+      this.peerSessions
+          .computeIfAbsent(peer, k -> new HashMap<>())
+          .put(session.getSessionContext(), session);
+    }
+  }
+
+  /**
+   * Closes a socket from this factory once the caller is done with it. When resuming, a TLS 1.3
+   * socket is first read on a background thread until <i>session.ticket-wait</i> after the call, so
+   * that the session ticket the server sends after the handshake is cached without holding up the
+   * caller.
+   *
+   * @param s SSLSocket that completed its handshake.
+   * @return Whether the socket is closed later, otherwise the caller closes it.
+   */
+  public boolean closeAfterTicket(SSLSocket s) {
+    if (!this.resumption
+        || this.ticketWait <= 0
+        || !TLS_13.equals(s.getSession().getProtocol())
+        || this.ticketExecutor.isShutdown()) {
+      return false;
+    }
+
+    long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(this.ticketWait);
+    try {
+      this.ticketExecutor.execute(() -> this.readTicket(s, deadline));
+      return true;
+    } catch (RejectedExecutionException e) {
+      return false;
+    }
+  }
+
+  private void readTicket(SSLSocket s, long deadline) {
+    try (s) {
+      // Queued past the deadline, still pick up a ticket that has already arrived.
+      long remaining = TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime());
+      s.setSoTimeout((int) Math.max(1, remaining));
+      s.getInputStream().read();
+    } catch (SocketTimeoutException ignored) {
+      // The ticket, if any, has been processed by now.
+    } catch (IOException e) {
+      log.debug("No session ticket from {}: {}", s.getSession().getPeerHost(), e.getMessage());
+    }
+  }
+
+  /**
+   * Invalidates the sessions established with the given peer, so that the next handshake with it
+   * is a full one and transfers the certificate chain.
+   *
+   * @param host Peer host.
+   * @param port Peer port.
+   */
+  public void forgetSessions(String host, int port) {
+    Map<SSLSessionContext, SSLSession> sessions;
+    synchronized (this.peerSessions) {
+      sessions = this.peerSessions.remove(peerOf(host, port));
+    }
+    if (sessions != null) sessions.values().forEach(SSLSession::invalidate);
+  }
+
+  private static String peerOf(String host, int port) {
+    return host.toLowerCase(Locale.ROOT) + ":" + port;
+  }
+
+  public int getDefaultTimeout() {
+    return this.defaultTimeout;
+  }
+
+  @PreDestroy
+  public void close() {
+    this.attemptExecutor.shutdownNow();
+    this.ticketExecutor.shutdownNow();
+  }
+
   @Override
   public Socket createSocket(String host, int port) throws IOException {
     try {
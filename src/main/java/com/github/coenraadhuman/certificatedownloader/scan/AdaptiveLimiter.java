@@ -0,0 +1,275 @@
+package com.github.coenraadhuman.certificatedownloader.scan;
+
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Limits the handshakes in flight per destination subnet, adapting each limit to how the subnet
+ * responds (AIMD). A limit grows while the average latency of its handshakes stays within a
+ * tolerance of the lowest average seen, by one per handshake until it first backs off and
+ * by one per limit worth of handshakes after that. It is cut by the backoff factor when a
+ * handshake times out or is reset, or when the latency rises beyond the tolerance. Other
+ * failures, such as refused connections, leave the limit as it is. Targets are grouped as the
+ * RateLimiter groups them, by host where they are not IP addresses. Handshakes beyond the limit of
+ * their subnet wait in its queue and are admitted as earlier ones release their permits, so a
+ * saturated subnet holds back only its own targets. Subnets are forgotten least recently used
+ * first once there are too many, but never while handshakes are in flight or waiting with them.
+ */
+@Slf4j
+@Component
+public class AdaptiveLimiter {
+
+  private static final int MAX_SUBNETS = 65536;
+  private static final double WEIGHT = 0.2;
+
+  /** Adaptive limit of a single subnet. */
+  public final class Limit {
+
+    private final String subnet;
+    private double limit;
+    private int inFlight;
+    private double latency;
+    private double baseline;
+    private boolean slowStart = true;
+    private long samples;
+    private final Deque<CompletableFuture<Permit>> waiting = new ArrayDeque<>();
+
+    private Limit(String subnet) {
+      this.subnet = subnet;
+      this.limit = initial;
+    }
+
+    /**
+     * Waits until fewer handshakes than the limit are in flight.
+     *
+     * @return Permit to release once the handshake completes.
+     */
+    public Permit acquire() {
+      return acquireAsync().join();
+    }
+
+    /**
+     * Admits a handshake at once when fewer than the limit are in flight, otherwise queues it
+     * behind those already waiting with the subnet.
+     *
+     * @return CompletableFuture of the Permit to release once the handshake completes, completed
+     *     by the thread releasing an earlier permit when the handshake had to wait.
+     */
+    public synchronized CompletableFuture<Permit> acquireAsync() {
+      if (waiting.isEmpty() && inFlight < (int) limit) {
+        inFlight++;
+        return CompletableFuture.completedFuture(new Permit(this));
+      }
+
+      CompletableFuture<Permit> admitted = new CompletableFuture<>();
+      waiting.add(admitted);
+      return admitted;
+    }
+
+    public synchronized int getLimit() {
+      return (int) limit;
+    }
+
+    public synchronized int getInFlight() {
+      return inFlight;
+    }
+
+    public synchronized int getWaiting() {
+      return waiting.size();
+    }
+
+    private synchronized boolean isIdle() {
+      return inFlight == 0 && waiting.isEmpty();
+    }
+
+    private void release(long latencyNanos, boolean dropped) {
+      List<CompletableFuture<Permit>> admitted = new ArrayList<>();
+      synchronized (this) {
+        adapt(latencyNanos, dropped);
+        while (!waiting.isEmpty() && inFlight < (int) limit) {
+          inFlight++;
+          admitted.add(waiting.poll());
+        }
+      }
+      // Completed outside the monitor, the waiting handshakes start on this thread.
+      for (CompletableFuture<Permit> next : admitted) next.complete(new Permit(this));
+    }
+
+    private void adapt(long latencyNanos, boolean dropped) {
+      inFlight--;
+      samples++;
+      double previous = limit;
+      if (dropped) {
+        backOff();
+      } else if (latencyNanos > 0) {
+        latency = average(latency, latencyNanos);
+        // The lowest latency seen is that of an idle path. A path that stays slower at the
+        // minimum limit has changed, it becomes the new baseline.
+        if (baseline == 0 || latency < baseline || limit <= min) baseline = latency;
+
+        if (latency > tolerance * baseline) {
+          backOff();
+        } else if (inFlight + 1 >= limit / 2) {
+          // Only grow while the limit is actually in use, not when the scan feeds it slowly.
+          limit = Math.min(max, slowStart ? limit + 1 : limit + 1 / limit);
+        }
+      }
+
+      if ((int) previous != (int) limit) {
+        log.debug("Limit of {} is now {}, {} in flight.", subnet, (int) limit, inFlight);
+      }
+    }
+
+    /** Cuts the limit, at most once per limit worth of handshakes so a burst counts once. */
+    private void backOff() {
+      if (samples < limit) return;
+
+      slowStart = false;
+      samples = 0;
+      limit = Math.max(min, limit * backoff);
+    }
+  }
+
+  /** A handshake admitted by a Limit. */
+  public static final class Permit {
+
+    private final Limit limit;
+    private boolean released;
+
+    private Permit(Limit limit) {
+      this.limit = limit;
+    }
+
+    /**
+     * Releases the permit, adapting its limit to the result. Ignored once released.
+     *
+     * @param result ScanResult of the handshake, null when no handshake took place.
+     */
+    public void release(ScanResult result) {
+      if (Objects.nonNull(result) && isCongestion(result.getCause())) {
+        release(0, true);
+      } else if (Objects.isNull(result) || Objects.isNull(result.getAddress())) {
+        release(0, false);
+      } else {
+        release(result.getConnectNanos() + result.getHandshakeNanos(), false);
+      }
+    }
+
+    /**
+     * Releases the permit, adapting its limit to the outcome. Ignored once released.
+     *
+     * @param latencyNanos Time the handshake took, 0 when unknown.
+     * @param dropped Whether the handshake timed out or was reset.
+     */
+    public synchronized void release(long latencyNanos, boolean dropped) {
+      if (released) return;
+
+      released = true;
+      limit.release(latencyNanos, dropped);
+    }
+  }
+
+  private final RateLimiter rateLimiter;
+  private final boolean enabled;
+  private final int initial;
+  private final int min;
+  private final int max;
+  private final double backoff;
+  private final double tolerance;
+  private final Map<String, Limit> limits = new LinkedHashMap<>(16, 0.75f, true);
+
+  @Autowired
+  public AdaptiveLimiter(
+      RateLimiter rateLimiter,
+      @Value("${limiter.adaptive}") String enabled,
+      @Value("${limiter.initial}") String initial,
+      @Value("${limiter.min}") String min,
+      @Value("${limiter.max}") String max,
+      @Value("${limiter.backoff}") String backoff,
+      @Value("${limiter.tolerance}") String tolerance) {
+    this.rateLimiter = rateLimiter;
+    this.enabled = Boolean.parseBoolean(enabled);
+    this.initial = Integer.parseInt(initial);
+    this.min = Math.max(1, Integer.parseInt(min));
+    this.max = Integer.parseInt(max);
+    this.backoff = Double.parseDouble(backoff);
+    this.tolerance = Double.parseDouble(tolerance);
+  }
+
+  public boolean isEnabled() {
+    return enabled;
+  }
+
+  /**
+   * Returns the limit of the subnet of the target, creating it at the initial limit.
+   *
+   * @param target Target to look up.
+   * @return Limit of its subnet.
+   */
+  public Limit of(ScanTarget target) {
+    String subnet = rateLimiter.subnetOf(target);
+    synchronized (limits) {
+      Limit limit = limits.computeIfAbsent(subnet, Limit::new);
+      if (limits.size() > MAX_SUBNETS) evictIdle();
+      return limit;
+    }
+  }
+
+  /** Forgets the least recently used subnets with nothing in flight or waiting. */
+  private void evictIdle() {
+    Iterator<Limit> eldest = limits.values().iterator();
+    while (limits.size() > MAX_SUBNETS && eldest.hasNext()) {
+      if (eldest.next().isIdle()) eldest.remove();
+    }
+  }
+
+  /**
+   * Waits until the subnet of the target admits another handshake.
+   *
+   * @param target Target to connect to.
+   * @return Permit to release with the result, or null when the limiter is disabled.
+   */
+  public Permit acquire(ScanTarget target) {
+    return enabled ? of(target).acquire() : null;
+  }
+
+  /**
+   * Admits a handshake with the subnet of the target, at once or once it is its turn.
+   *
+   * @param target Target to connect to.
+   * @return CompletableFuture of the Permit to release with the result, of null when the limiter
+   *     is disabled.
+   */
+  public CompletableFuture<Permit> acquireAsync(ScanTarget target) {
+    return enabled ? of(target).acquireAsync() : CompletableFuture.completedFuture(null);
+  }
+
+  /**
+   * Returns whether the failure is a sign of an overloaded path rather than of the target itself,
+   * that is a connect or handshake that timed out or a reset connection.
+   *
+   * @param cause Cause of a failed ScanResult, may be null.
+   * @return Whether the limit should back off.
+   */
+  static boolean isCongestion(ScanResult.Cause cause) {
+    return cause == ScanResult.Cause.CONNECT_TIMEOUT
+        || cause == ScanResult.Cause.HANDSHAKE_TIMEOUT
+        || cause == ScanResult.Cause.RESET;
+  }
+
+  private static double average(double average, long sample) {
+    return average == 0 ? sample : average + WEIGHT * (sample - average);
+  }
+}
@@ -0,0 +1,615 @@
+package com.github.coenraadhuman.certificatedownloader.scan;
+
+import com.github.coenraadhuman.certificatedownloader.net.DeadlineExceededException;
+import com.github.coenraadhuman.certificatedownloader.net.HostResolver;
+import com.github.coenraadhuman.certificatedownloader.net.NioHandshakeEngine;
+import com.github.coenraadhuman.certificatedownloader.net.PortProbe;
+import com.github.coenraadhuman.certificatedownloader.net.SSLSocketFactory;
+import com.github.coenraadhuman.certificatedownloader.store.ResultCache;
+import com.github.coenraadhuman.certificatedownloader.utils.CertDownload;
+import com.github.coenraadhuman.certificatedownloader.utils.Fingerprints;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.security.cert.CertificateEncodingException;
+import java.security.cert.X509Certificate;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.StringJoiner;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Phaser;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+import java.util.function.Function;
+
+/**
+ * Downloads the certificate chains of many targets using a bounded pool of workers. Targets are
+ * read lazily so that only as many as there are free workers are held in memory at a time.
+ */
+@Slf4j
+@Component
+public class BatchScanner {
+
+  private final CertDownload certDownload;
+  private final NioHandshakeEngine nioHandshakeEngine;
+  private final SSLSocketFactory sslSocketFactory;
+  private final CipherEnumerator cipherEnumerator;
+  private final HostResolver hostResolver;
+  private final ResultCache resultCache;
+  private final PortProbe portProbe;
+  private final RateLimiter rateLimiter;
+  private final AdaptiveLimiter adaptiveLimiter;
+  private final CircuitBreaker circuitBreaker;
+  private final int defaultWorkers;
+  private final int runTimeout;
+
+  @Autowired
+  public BatchScanner(
+      CertDownload certDownload,
+      NioHandshakeEngine nioHandshakeEngine,
+      SSLSocketFactory sslSocketFactory,
+      CipherEnumerator cipherEnumerator,
+      HostResolver hostResolver,
+      ResultCache resultCache,
+      PortProbe portProbe,
+      RateLimiter rateLimiter,
+      AdaptiveLimiter adaptiveLimiter,
+      CircuitBreaker circuitBreaker,
+      @Value("${batch.workers}") String defaultWorkers,
+      @Value("${timeout.run}") String runTimeout) {
+    this.certDownload = certDownload;
+    this.nioHandshakeEngine = nioHandshakeEngine;
+    this.sslSocketFactory = sslSocketFactory;
+    this.cipherEnumerator = cipherEnumerator;
+    this.hostResolver = hostResolver;
+    this.resultCache = resultCache;
+    this.portProbe = portProbe;
+    this.rateLimiter = rateLimiter;
+    this.adaptiveLimiter = adaptiveLimiter;
+    this.circuitBreaker = circuitBreaker;
+    this.defaultWorkers = Integer.parseInt(defaultWorkers);
+    this.runTimeout = Integer.parseInt(runTimeout);
+  }
+
+  /**
+   * Returns the number of workers to use when none are specified. Handshakes spend most of their
+   * time waiting on the network, so the pool is sized well beyond the number of cores.
+   *
+   * @return Count of workers.
+   */
+  public int getDefaultWorkers() {
+    if (defaultWorkers > 0) return defaultWorkers;
+
+    return Math.max(64, Runtime.getRuntime().availableProcessors() * 32);
+  }
+
+  /**
+   * Scans every <i>host:port</i> line of the given reader, blank lines and lines starting with '#'
+   * are ignored. Blocks until every target has completed. Targets with a recent result in the
+   * ResultCache are served from it without connecting, and targets the CircuitBreaker holds open
+   * are reported with their last failure. Once the run deadline expires the remaining targets are
+   * reported as failures without connecting, those in flight are bounded by their own deadlines.
+   *
+   * @param reader Source of targets, one per line.
+   * @param workers Maximum number of handshakes in flight, 0 or less to use the default. Within it
+   *     the AdaptiveLimiter bounds the handshakes in flight with each subnet.
+   * @param nio Whether to use the non-blocking handshake engine instead of a thread per target, in
+   *     which case the workers only run the consumer.
+   * @param everyAddress Whether to scan every address each host resolves to, with the host as SNI,
+   *     rather than only the first. Hosts are then resolved ahead of scanning on the resolver pool
+   *     and the results of a host are passed to the consumer together.
+   * @param consumer Receives the result of each target, called from the worker threads.
+   * @throws IOException when the targets could not be read.
+   */
+  public void scan(
+      BufferedReader reader,
+      int workers,
+      boolean nio,
+      boolean everyAddress,
+      Consumer<ScanResult> consumer)
+      throws IOException {
+    if (workers <= 0) workers = getDefaultWorkers();
+
+    ExecutorService executor =
+        Executors.newFixedThreadPool(
+            nio ? Runtime.getRuntime().availableProcessors() : workers);
+    Semaphore inFlight = new Semaphore(workers);
+    AtomicInteger succeeded = new AtomicInteger();
+    AtomicInteger failed = new AtomicInteger();
+    AtomicLong submitted = new AtomicLong();
+    AtomicInteger skipped = new AtomicInteger();
+    long resumedBefore = sslSocketFactory.getResumedHandshakes();
+    long fullBefore = sslSocketFactory.getFullHandshakes();
+    long start = System.nanoTime();
+    log.info(
+        "Scanning targets using {} {}.", workers, nio ? "non-blocking handshake(s)" : "worker(s)");
+
+    Function<ScanTarget, CompletableFuture<ScanResult>> connect = connector(nio, executor);
+    long deadline = start + TimeUnit.MILLISECONDS.toNanos(runTimeout);
+    Function<ScanTarget, CompletableFuture<ScanResult>> handshake =
+        target -> {
+          if (runTimeout > 0 && System.nanoTime() - deadline >= 0) {
+            DeadlineExceededException expired =
+                new DeadlineExceededException(DeadlineExceededException.RUN, runTimeout);
+            log.warn("Skipped {}; {}", target, expired.getMessage());
+            return CompletableFuture.completedFuture(ScanResult.failure(target, expired, 0));
+          }
+
+          ScanResult skip = circuitBreaker.check(target);
+          if (skip != null) {
+            skipped.incrementAndGet();
+            return CompletableFuture.completedFuture(skip);
+          }
+          return limited(target, connect, executor);
+        };
+    Consumer<ScanResult> deliver =
+        result ->
+            accept(
+                result.getTarget(),
+                result,
+                result.isSuccess(),
+                consumer,
+                succeeded,
+                failed,
+                () -> {});
+    Phaser groups = new Phaser(1);
+
+    try {
+      Deque<Map.Entry<ScanTarget, CompletableFuture<List<InetAddress>>>> resolving =
+          new ArrayDeque<>();
+      ScanTarget target;
+      while ((target = nextTarget(reader)) != null) {
+        if (everyAddress) {
+          // Resolve up to one host per worker ahead of the one being scanned.
+          resolving.add(Map.entry(target, hostResolver.resolveAsync(target.getHost())));
+          if (resolving.size() >= workers) {
+            submitted.addAndGet(
+                scanGroup(resolving.poll(), handshake, deliver, inFlight, groups, executor));
+          }
+          continue;
+        }
+
+        inFlight.acquireUninterruptibly();
+        submitted.incrementAndGet();
+        handshake
+            .apply(target)
+            .thenAcceptAsync(
+                result ->
+                    accept(
+                        result.getTarget(),
+                        result,
+                        result.isSuccess(),
+                        consumer,
+                        succeeded,
+                        failed,
+                        inFlight::release),
+                executor);
+      }
+      while (!resolving.isEmpty()) {
+        submitted.addAndGet(
+            scanGroup(resolving.poll(), handshake, deliver, inFlight, groups, executor));
+      }
+
+      // Non-blocking handshakes are not tracked by the executor, so wait for every permit.
+      inFlight.acquireUninterruptibly(workers);
+      groups.arriveAndAwaitAdvance();
+
+    } finally {
+      await(executor);
+    }
+
+    logThroughput("Scanned", submitted.get(), succeeded.get(), failed.get(), start);
+    logSkipped(skipped.get());
+    if (sslSocketFactory.isResumption()) {
+      log.info(
+          "Session resumption: {} resumed, {} full handshake(s).",
+          sslSocketFactory.getResumedHandshakes() - resumedBefore,
+          sslSocketFactory.getFullHandshakes() - fullBefore);
+    }
+  }
+
+  /**
+   * Sweeps every target of the Sweep as {@link #scan(BufferedReader, int, boolean, boolean,
+   * Consumer)} scans the targets of a reader. Each target first waits for the RateLimiter and then
+   * has to accept a TCP connection through the PortProbe before a handshake is attempted with it.
+   * Closed ports are counted but not passed to the consumer, targets the CircuitBreaker holds open
+   * are passed on with their last failure. Once the run deadline expires the sweep stops without
+   * connecting to the remaining targets.
+   *
+   * @param sweep Targets to sweep.
+   * @param workers Maximum number of probes and handshakes in flight, 0 or less to use the
+   *     default. Within it the AdaptiveLimiter bounds those in flight with each subnet.
+   * @param nio Whether to use the non-blocking handshake engine instead of a thread per target.
+   * @param consumer Receives the result of each open target, called from the worker threads.
+   */
+  public void sweep(Sweep sweep, int workers, boolean nio, Consumer<ScanResult> consumer) {
+    if (workers <= 0) workers = getDefaultWorkers();
+
+    ExecutorService executor =
+        Executors.newFixedThreadPool(
+            nio ? Runtime.getRuntime().availableProcessors() : workers);
+    Semaphore inFlight = new Semaphore(workers);
+    AtomicInteger succeeded = new AtomicInteger();
+    AtomicInteger failed = new AtomicInteger();
+    AtomicLong closed = new AtomicLong();
+    int skipped = 0;
+    long submitted = 0;
+    long start = System.nanoTime();
+    long deadline = start + TimeUnit.MILLISECONDS.toNanos(runTimeout);
+    log.info(
+        "Sweeping {} target(s) using {} {}.",
+        sweep.size(),
+        workers,
+        nio ? "non-blocking handshake(s)" : "worker(s)");
+
+    Function<ScanTarget, CompletableFuture<ScanResult>> connect = connector(nio, executor);
+    try {
+      while (sweep.hasNext()) {
+        if (runTimeout > 0 && System.nanoTime() - deadline >= 0) {
+          log.warn(
+              "Stopped sweep with {} target(s) left; {}",
+              sweep.size() - submitted,
+              new DeadlineExceededException(DeadlineExceededException.RUN, runTimeout)
+                  .getMessage());
+          break;
+        }
+
+        ScanTarget target = sweep.next();
+        inFlight.acquireUninterruptibly();
+        submitted++;
+        ScanResult skip = circuitBreaker.check(target);
+        CompletableFuture<ScanResult> handshake;
+        if (skip != null) {
+          skipped++;
+          handshake = CompletableFuture.completedFuture(skip);
+        } else {
+          rateLimiter.acquire(target);
+          handshake =
+              limited(
+                  target,
+                  next ->
+                      portProbe
+                          .probe(next)
+                          .thenCompose(
+                              open ->
+                                  open
+                                      ? connect.apply(next)
+                                      : CompletableFuture.completedFuture(null)),
+                  executor);
+        }
+        handshake.thenAcceptAsync(
+            result -> {
+              if (result == null) {
+                closed.incrementAndGet();
+                inFlight.release();
+                return;
+              }
+              accept(
+                  target,
+                  result,
+                  result.isSuccess(),
+                  consumer,
+                  succeeded,
+                  failed,
+                  inFlight::release);
+            },
+            executor);
+      }
+
+      inFlight.acquireUninterruptibly(workers);
+
+    } finally {
+      await(executor);
+    }
+
+    logThroughput("Swept", submitted - closed.get(), succeeded.get(), failed.get(), start);
+    log.info("{} of {} swept target(s) did not accept a connection.", closed.get(), submitted);
+    logSkipped(skipped);
+  }
+
+  /**
+   * Applies the guarded handshake once the AdaptiveLimiter admits another one with the subnet of
+   * the target, and adapts the limit of the subnet to its result. A handshake that has to wait is
+   * queued with its subnet and started on the executor once admitted, so the calling thread goes
+   * on with targets of other subnets.
+   */
+  private CompletableFuture<ScanResult> limited(
+      ScanTarget target,
+      Function<ScanTarget, CompletableFuture<ScanResult>> handshake,
+      Executor executor) {
+    Function<AdaptiveLimiter.Permit, CompletableFuture<ScanResult>> admit =
+        permit -> {
+          CompletableFuture<ScanResult> result = guarded(target, handshake);
+          if (permit != null) result.thenAccept(permit::release);
+          return result;
+        };
+
+    CompletableFuture<AdaptiveLimiter.Permit> admitted = adaptiveLimiter.acquireAsync(target);
+    if (admitted.isDone()) return admit.apply(admitted.join());
+
+    return admitted.thenComposeAsync(admit, executor);
+  }
+
+  /**
+   * Applies the handshake, reporting an unexpected exception, whether thrown or completing the
+   * handshake, as a failure of the target. The returned future never completes exceptionally, so
+   * the stages that release permits and deliver results always run.
+   */
+  static CompletableFuture<ScanResult> guarded(
+      ScanTarget target, Function<ScanTarget, CompletableFuture<ScanResult>> handshake) {
+    CompletableFuture<ScanResult> result;
+    try {
+      result = handshake.apply(target);
+    } catch (RuntimeException e) {
+      result = CompletableFuture.failedFuture(e);
+    }
+
+    return result.handle(
+        (completed, error) -> {
+          if (error == null) return completed;
+
+          Throwable cause = error instanceof CompletionException ? error.getCause() : error;
+          log.warn("Unexpected failure scanning {}: {}", target, cause.toString());
+          return ScanResult.failure(target, cause.toString(), ScanResult.Cause.OTHER, 0);
+        });
+  }
+
+  private static void logSkipped(int skipped) {
+    if (skipped > 0) {
+      log.info("Skipped {} target(s) that kept failing, reporting their last failure.", skipped);
+    }
+  }
+
+  /**
+   * Returns the handshake of a target, which is served from the ResultCache when it holds a recent
+   * result of the target and is otherwise cached once done. Its result opens or closes the
+   * circuits of the target in the CircuitBreaker.
+   */
+  private Function<ScanTarget, CompletableFuture<ScanResult>> connector(
+      boolean nio, ExecutorService executor) {
+    Function<ScanTarget, CompletableFuture<ScanResult>> network =
+        nio
+            ? nioHandshakeEngine::handshake
+            : target ->
+                CompletableFuture.supplyAsync(() -> certDownload.download(target), executor);
+
+    return target -> {
+      ScanResult cached = resultCache.get(target);
+      if (cached != null) return CompletableFuture.completedFuture(cached);
+
+      // Cached off the selector threads, writing may block on the disk.
+      return network
+          .apply(target)
+          .thenApplyAsync(
+              result -> {
+                // Neither may turn the result into a failure, or keep it from being delivered.
+                try {
+                  resultCache.put(result);
+                  circuitBreaker.record(result);
+                } catch (RuntimeException e) {
+                  log.warn("Unable to record result of {}: {}", target, e.toString());
+                }
+                return result;
+              },
+              executor);
+    };
+  }
+
+  /**
+   * Starts a handshake with every address of a resolved host. Each releases its permit when done,
+   * the results of the group are compared and delivered together once all of them are in.
+   *
+   * @return Number of results the group will deliver.
+   */
+  private static int scanGroup(
+      Map.Entry<ScanTarget, CompletableFuture<List<InetAddress>>> resolution,
+      Function<ScanTarget, CompletableFuture<ScanResult>> handshake,
+      Consumer<ScanResult> deliver,
+      Semaphore inFlight,
+      Phaser groups,
+      ExecutorService executor) {
+    ScanTarget target = resolution.getKey();
+    List<InetAddress> addresses;
+    try {
+      addresses = resolution.getValue().join();
+    } catch (CompletionException e) {
+      log.warn("Connection failed to {}; {}", target, e.getCause().getMessage());
+      deliver.accept(ScanResult.failure(target, e.getCause(), 0));
+      return 1;
+    }
+
+    groups.register();
+    List<CompletableFuture<ScanResult>> results = new ArrayList<>();
+    for (InetAddress address : addresses) {
+      inFlight.acquireUninterruptibly();
+      CompletableFuture<ScanResult> result =
+          handshake.apply(target.withAddress(address.getHostAddress()));
+      result.whenComplete((ignored, error) -> inFlight.release());
+      results.add(result);
+    }
+
+    CompletableFuture.allOf(results.toArray(new CompletableFuture[0]))
+        .thenRunAsync(
+            () -> {
+              try {
+                List<ScanResult> group = new ArrayList<>();
+                for (CompletableFuture<ScanResult> result : results) group.add(result.join());
+                compare(target, group);
+                group.forEach(deliver);
+              } finally {
+                groups.arriveAndDeregister();
+              }
+            },
+            executor);
+
+    return results.size();
+  }
+
+  /** Warns when the addresses of a host do not all serve the same chain. */
+  private static void compare(ScanTarget target, List<ScanResult> group) {
+    Map<List<String>, List<String>> addressesByChain = new LinkedHashMap<>();
+    for (ScanResult result : group) {
+      if (!result.isSuccess()) continue;
+
+      List<String> chain = new ArrayList<>();
+      try {
+        for (X509Certificate cert : result.getCertificates()) chain.add(Fingerprints.sha256(cert));
+      } catch (CertificateEncodingException e) {
+        continue;
+      }
+      addressesByChain
+          .computeIfAbsent(chain, key -> new ArrayList<>())
+          .add(result.getTarget().getAddress());
+    }
+
+    if (addressesByChain.size() > 1) {
+      StringJoiner detail = new StringJoiner(", ");
+      addressesByChain.forEach(
+          (chain, addresses) ->
+              detail.add(
+                  String.join("/", addresses)
+                      + "="
+                      + (chain.isEmpty() ? "none" : chain.get(0).substring(0, 16))));
+      log.warn(
+          "Inconsistent deployment of {}: {} different chains across {} address(es): {}.",
+          target,
+          addressesByChain.size(),
+          group.size(),
+          detail);
+    } else if (group.size() > 1) {
+      log.info("{} serves the same chain from {} address(es).", target, group.size());
+    }
+  }
+
+  /**
+   * Enumerates the cipher suites of every <i>host:port</i> line of the given reader, as {@link
+   * #scan(BufferedReader, int, boolean, boolean, Consumer)} reads them. Each target already runs
+   * up to the per-host limit of probes concurrently, so the default number of targets is divided
+   * by it.
+   *
+   * @param reader Source of targets, one per line.
+   * @param workers Maximum number of targets in flight, 0 or less to use the default.
+   * @param consumer Receives the report of each target, called from the worker threads.
+   * @throws IOException when the targets could not be read.
+   */
+  public void enumerate(BufferedReader reader, int workers, Consumer<CipherReport> consumer)
+      throws IOException {
+    if (workers <= 0) {
+      workers = Math.max(1, getDefaultWorkers() / cipherEnumerator.getHostConcurrency());
+    }
+
+    ExecutorService executor = Executors.newFixedThreadPool(workers);
+    Semaphore inFlight = new Semaphore(workers);
+    AtomicInteger succeeded = new AtomicInteger();
+    AtomicInteger failed = new AtomicInteger();
+    AtomicLong submitted = new AtomicLong();
+    long start = System.nanoTime();
+    log.info("Enumerating targets using {} worker(s).", workers);
+
+    try {
+      ScanTarget target;
+      while ((target = nextTarget(reader)) != null) {
+        inFlight.acquireUninterruptibly();
+        submitted.incrementAndGet();
+        ScanTarget next = target;
+        executor.execute(
+            () -> {
+              CipherReport report;
+              try {
+                report = cipherEnumerator.enumerate(next);
+              } catch (RuntimeException e) {
+                log.warn("Unexpected failure enumerating {}: {}", next, e.toString());
+                report = new CipherReport(next, Collections.emptyMap(), 0, e.toString(), 0);
+              }
+              accept(
+                  next,
+                  report,
+                  report.isSuccess(),
+                  consumer,
+                  succeeded,
+                  failed,
+                  inFlight::release);
+            });
+      }
+
+    } finally {
+      await(executor);
+    }
+
+    logThroughput("Enumerated", submitted.get(), succeeded.get(), failed.get(), start);
+  }
+
+  static ScanTarget nextTarget(BufferedReader reader) throws IOException {
+    String line;
+    while ((line = reader.readLine()) != null) {
+      line = line.trim();
+      if (line.isEmpty() || line.startsWith("#")) continue;
+
+      try {
+        return ScanTarget.parse(line);
+      } catch (IllegalArgumentException e) {
+        log.warn("Skipping target: {}", e.getMessage());
+      }
+    }
+
+    return null;
+  }
+
+  static void await(ExecutorService executor) {
+    executor.shutdown();
+    try {
+      executor.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+    } catch (InterruptedException e) {
+      executor.shutdownNow();
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  private static void logThroughput(
+      String action, long submitted, int succeeded, int failed, long start) {
+    double seconds = (System.nanoTime() - start) / 1_000_000_000d;
+    log.info(
+        "{} {} target(s) ({} succeeded, {} failed) in {} s: {} targets/sec.",
+        action,
+        submitted,
+        succeeded,
+        failed,
+        String.format("%.3f", seconds),
+        String.format("%.1f", seconds > 0 ? submitted / seconds : 0));
+  }
+
+  private static <R> void accept(
+      ScanTarget target,
+      R result,
+      boolean success,
+      Consumer<R> consumer,
+      AtomicInteger succeeded,
+      AtomicInteger failed,
+      Runnable done) {
+    try {
+      (success ? succeeded : failed).incrementAndGet();
+      consumer.accept(result);
+    } catch (RuntimeException e) {
+      log.warn("Unexpected failure scanning {}: {}", target, e.getMessage());
+    } finally {
+      done.run();
+    }
+  }
+}
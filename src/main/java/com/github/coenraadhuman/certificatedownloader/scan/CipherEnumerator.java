@@ -0,0 +1,264 @@
+package com.github.coenraadhuman.certificatedownloader.scan;
+
+import com.github.coenraadhuman.certificatedownloader.net.AcceptAllX509TrustManager;
+import com.github.coenraadhuman.certificatedownloader.net.CapturedChain;
+import com.github.coenraadhuman.certificatedownloader.net.ChainCapturedException;
+import com.github.coenraadhuman.certificatedownloader.net.SSLSocketFactory;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PreDestroy;
+import javax.net.ssl.SSLException;
+import javax.net.ssl.SSLHandshakeException;
+import javax.net.ssl.SSLSocket;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Enumerates the protocol versions and cipher suites a target accepts. Rather than trying every
+ * combination, each probe offers all suites still in question and the server picks one, which is
+ * then recorded and removed before the next probe, so the number of handshakes is the number of
+ * accepted suites plus one per chain of probes. The suites of every protocol version are split
+ * into partitions that are probed concurrently, with no more than the per-host limit of
+ * handshakes with a target in flight at a time. A chain of probes only ends once the server
+ * declines the remaining suites with an alert. A probe failing for any other reason, such as a
+ * reset connection, is retried up to <i>enumeration.retries</i> times before the chain gives up
+ * and the report records the error.
+ */
+@Slf4j
+@Component
+public class CipherEnumerator {
+
+  private static final String ALERT = "Received fatal alert: ";
+  private static final Set<String> DECLINED =
+      Set.of("handshake_failure", "insufficient_security", "protocol_version");
+
+  private final SSLSocketFactory sslSocketFactory;
+  private final int hostConcurrency;
+  private final int partitions;
+  private final int retries;
+  private final ExecutorService executor;
+
+  @Autowired
+  public CipherEnumerator(
+      SSLSocketFactory sslSocketFactory,
+      @Value("${enumeration.host-concurrency}") String hostConcurrency,
+      @Value("${enumeration.partitions}") String partitions,
+      @Value("${enumeration.retries}") String retries,
+      @Value("${enumeration.threads}") String threads) {
+    this.sslSocketFactory = sslSocketFactory;
+    this.hostConcurrency = Integer.parseInt(hostConcurrency);
+    this.partitions = Math.max(1, Integer.parseInt(partitions));
+    this.retries = Math.max(0, Integer.parseInt(retries));
+    this.executor =
+        Executors.newFixedThreadPool(
+            Integer.parseInt(threads),
+            runnable -> {
+              Thread thread = new Thread(runnable, "cipher-probe");
+              thread.setDaemon(true);
+              return thread;
+            });
+  }
+
+  public int getHostConcurrency() {
+    return hostConcurrency;
+  }
+
+  /**
+   * Enumerates the target, blocking until every probe has completed.
+   *
+   * @param target Server to enumerate.
+   * @return CipherReport listing the accepted suites per protocol version, in the order the
+   *     client prefers them.
+   */
+  public CipherReport enumerate(ScanTarget target) {
+    log.info("Enumerating cipher suites of {}, please wait.", target);
+    long start = System.nanoTime();
+    Semaphore permits = new Semaphore(hostConcurrency);
+    AtomicInteger handshakes = new AtomicInteger();
+    AtomicReference<String> failure = new AtomicReference<>();
+    Map<String, List<String>> suitesByProtocol = new LinkedHashMap<>();
+    String error = null;
+
+    try {
+      Map<String, List<CompletableFuture<List<String>>>> probes = new LinkedHashMap<>();
+      Map<String, List<String>> offered = new LinkedHashMap<>();
+      for (String protocol : sslSocketFactory.getProtocolVersions()) {
+        List<String> suites = sslSocketFactory.getCipherSuites(protocol);
+        offered.put(protocol, suites);
+
+        List<CompletableFuture<List<String>>> futures = new ArrayList<>();
+        for (List<String> partition : partition(suites)) {
+          futures.add(
+              CompletableFuture.supplyAsync(
+                  () -> prune(target, protocol, partition, permits, handshakes, failure),
+                  executor));
+        }
+        probes.put(protocol, futures);
+      }
+
+      for (Map.Entry<String, List<CompletableFuture<List<String>>>> entry : probes.entrySet()) {
+        List<String> accepted = new ArrayList<>();
+        for (CompletableFuture<List<String>> future : entry.getValue()) {
+          try {
+            accepted.addAll(future.join());
+          } catch (CompletionException e) {
+            if (error == null) error = e.getCause().getMessage();
+          }
+        }
+        accepted.sort(Comparator.comparingInt(offered.get(entry.getKey())::indexOf));
+        suitesByProtocol.put(entry.getKey(), accepted);
+      }
+      if (error == null) error = failure.get();
+
+    } catch (IOException e) {
+      error = e.getMessage();
+    }
+
+    CipherReport report =
+        new CipherReport(
+            target, suitesByProtocol, handshakes.get(), error, System.nanoTime() - start);
+    if (report.isSuccess()) {
+      log.info(
+          "Enumerated {} cipher suite(s) of {} in {} ms using {} handshake(s).",
+          report.getSuiteCount(),
+          target,
+          report.getDurationMillis(),
+          report.getHandshakes());
+    } else {
+      log.warn("Enumeration of {} incomplete; {}", target, error);
+    }
+
+    return report;
+  }
+
+  private List<List<String>> partition(List<String> suites) {
+    List<List<String>> result = new ArrayList<>();
+    for (int i = 0; i < Math.min(partitions, suites.size()); i++) result.add(new ArrayList<>());
+    // Round robin, so that each partition holds suites from the whole preference order.
+    for (int i = 0; i < suites.size(); i++) result.get(i % result.size()).add(suites.get(i));
+    return result;
+  }
+
+  /**
+   * Probes the suites until the server declines the rest, or a probe keeps failing for another
+   * reason, which is then kept as the failure of the enumeration unless one was kept already.
+   *
+   * @return Suites the server chose, in the order it chose them.
+   */
+  private List<String> prune(
+      ScanTarget target,
+      String protocol,
+      List<String> offered,
+      Semaphore permits,
+      AtomicInteger handshakes,
+      AtomicReference<String> failure) {
+    List<String> accepted = new ArrayList<>();
+    int attempts = 0;
+    while (!offered.isEmpty()) {
+      String chosen;
+      try {
+        chosen = probe(target, protocol, offered, permits, handshakes);
+      } catch (IOException e) {
+        // Says nothing about the suites, try again unless the target cannot be reached at all.
+        ScanResult.Cause cause = ScanResult.Cause.of(e);
+        if (++attempts > retries
+            || cause == ScanResult.Cause.UNKNOWN_HOST
+            || cause == ScanResult.Cause.UNREACHABLE) {
+          failure.compareAndSet(
+              null, Objects.isNull(e.getMessage()) ? e.toString() : e.getMessage());
+          break;
+        }
+        log.debug("Retrying {} probe of {}; {}", protocol, target, e.getMessage());
+        continue;
+      }
+      if (chosen == null || !offered.remove(chosen)) break;
+
+      attempts = 0;
+      accepted.add(chosen);
+      log.debug("{} accepts {} with {}.", target, protocol, chosen);
+    }
+
+    return accepted;
+  }
+
+  /**
+   * Performs a single handshake offering the given suites.
+   *
+   * @return Suite the server chose, or null when the server declined all of them.
+   * @throws IOException when the probe failed for any other reason.
+   */
+  private String probe(
+      ScanTarget target,
+      String protocol,
+      List<String> offered,
+      Semaphore permits,
+      AtomicInteger handshakes)
+      throws IOException {
+    permits.acquireUninterruptibly();
+    try (SSLSocket s =
+        sslSocketFactory.createSocket(target.getHost(), target.getPort(), protocol)) {
+      s.setEnabledCipherSuites(offered.toArray(new String[0]));
+      handshakes.incrementAndGet();
+
+      AcceptAllX509TrustManager tm = sslSocketFactory.getCapturingTrustManager();
+      CapturedChain captured = null;
+      try {
+        s.startHandshake();
+      } catch (SSLException e) {
+        // In chain-only mode the handshake is aborted once the chain, and so the suite, is known.
+        if (!ChainCapturedException.isCauseOf(e)) {
+          if (isDeclined(e)) return null;
+          throw e;
+        }
+      } finally {
+        if (Objects.nonNull(tm)) captured = tm.take(s);
+      }
+
+      if (Objects.nonNull(captured)) return captured.getCipherSuite();
+
+      // Never resume, every probe must let the server choose.
+      s.getSession().invalidate();
+      return s.getSession().getCipherSuite();
+
+    } finally {
+      permits.release();
+    }
+  }
+
+  /**
+   * Returns whether the handshake failed because the server, or the client itself, accepts none of
+   * the offered suites with the version. The JDK only tells the alerts received apart by their
+   * message.
+   *
+   * @param e SSLException of a probe.
+   * @return Whether the offered suites were declined.
+   */
+  static boolean isDeclined(SSLException e) {
+    if (!(e instanceof SSLHandshakeException) || Objects.isNull(e.getMessage())) return false;
+
+    String message = e.getMessage();
+    if (message.startsWith(ALERT)) return DECLINED.contains(message.substring(ALERT.length()));
+    return message.startsWith("No appropriate protocol");
+  }
+
+  @PreDestroy
+  public void close() {
+    executor.shutdownNow();
+  }
+}
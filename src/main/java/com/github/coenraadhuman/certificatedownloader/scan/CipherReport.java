@@ -0,0 +1,53 @@
+package com.github.coenraadhuman.certificatedownloader.scan;
+
+import lombok.Getter;
+import lombok.RequiredArgsConstructor;
+
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.StringJoiner;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Protocol and cipher suite support of a single {@link ScanTarget}. The error is set when some
+ * probes could not reach the target, the matrix then only holds what was found before that.
+ */
+@Getter
+@RequiredArgsConstructor
+public class CipherReport {
+
+  private final ScanTarget target;
+  private final Map<String, List<String>> suitesByProtocol;
+  private final int handshakes;
+  private final String error;
+  private final long durationNanos;
+
+  public boolean isSuccess() {
+    return Objects.isNull(error);
+  }
+
+  public int getSuiteCount() {
+    return suitesByProtocol.values().stream().mapToInt(List::size).sum();
+  }
+
+  public long getDurationMillis() {
+    return TimeUnit.NANOSECONDS.toMillis(durationNanos);
+  }
+
+  /**
+   * Returns the matrix as <i>protocol=suite,suite;protocol=suite</i>, leaving out protocols
+   * without any accepted suite.
+   *
+   * @return Matrix in a single line.
+   */
+  public String getMatrix() {
+    StringJoiner matrix = new StringJoiner(";");
+    suitesByProtocol.forEach(
+        (protocol, suites) -> {
+          if (!suites.isEmpty()) matrix.add(protocol + "=" + String.join(",", suites));
+        });
+
+    return matrix.toString();
+  }
+}
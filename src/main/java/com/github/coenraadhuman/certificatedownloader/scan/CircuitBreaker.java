@@ -0,0 +1,293 @@
+package com.github.coenraadhuman.certificatedownloader.scan;
+
+import com.github.coenraadhuman.certificatedownloader.store.CertificateStore;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PreDestroy;
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+
+/**
+ * Skips targets that keep failing instead of waiting out their deadlines on every run. A failed
+ * target is held in a negative cache for <i>breaker.ttl</i>, doubling with each consecutive
+ * failure up to <i>breaker.max-backoff</i>. Failures to reach a target also count against the
+ * circuits of its host and subnet, which open after <i>breaker.host-threshold</i> and
+ * <i>breaker.subnet-threshold</i> consecutive failures and back off the same way. Once a backoff
+ * expires a single target per backoff period is let through to try the circuit again, and a
+ * success closes the circuits of its target, host and subnet. Skipped targets are reported as
+ * failed with the reason of the last failure. The circuits are kept in <i>failures.tsv</i> in the
+ * root of the CertificateStore, so that they carry over to later runs. Off unless a time to live
+ * is set.
+ */
+@Slf4j
+@Component
+public class CircuitBreaker {
+
+  private static final String FAILURES = "failures.tsv";
+  private static final String TARGET = "target ";
+  private static final String HOST = "host ";
+  private static final String SUBNET = "subnet ";
+
+  /** Consecutive failures of a target, host or subnet. */
+  private static final class Circuit {
+
+    private int failures;
+    private long failedAt;
+    private long openUntil;
+    private String reason;
+
+    private boolean isOpen() {
+      return openUntil > 0;
+    }
+  }
+
+  private final CertificateStore certificateStore;
+  private final RateLimiter rateLimiter;
+  private final long ttl;
+  private final long maxBackoff;
+  private final int hostThreshold;
+  private final int subnetThreshold;
+  private final int maxEntries;
+  private boolean bypass;
+  private Map<String, Circuit> circuits;
+  private Path file;
+
+  @Autowired
+  public CircuitBreaker(
+      CertificateStore certificateStore,
+      RateLimiter rateLimiter,
+      @Value("${breaker.ttl}") String ttl,
+      @Value("${breaker.max-backoff}") String maxBackoff,
+      @Value("${breaker.host-threshold}") String hostThreshold,
+      @Value("${breaker.subnet-threshold}") String subnetThreshold,
+      @Value("${breaker.max-entries}") String maxEntries) {
+    this.certificateStore = certificateStore;
+    this.rateLimiter = rateLimiter;
+    this.ttl = Long.parseLong(ttl);
+    this.maxBackoff = Long.parseLong(maxBackoff);
+    this.hostThreshold = Integer.parseInt(hostThreshold);
+    this.subnetThreshold = Integer.parseInt(subnetThreshold);
+    this.maxEntries = Integer.parseInt(maxEntries);
+  }
+
+  /**
+   * Sets whether every target is let through regardless of its circuits. Results still open and
+   * close them.
+   *
+   * @param bypass Whether to bypass the circuit breaker.
+   */
+  public synchronized void setBypass(boolean bypass) {
+    this.bypass = bypass;
+  }
+
+  public boolean isEnabled() {
+    return ttl > 0;
+  }
+
+  /**
+   * Returns whether the target should be skipped because it, its host or its subnet keeps failing.
+   *
+   * @param target Target about to be scanned.
+   * @return ScanResult reporting the last failure when the target is skipped, otherwise null.
+   */
+  public synchronized ScanResult check(ScanTarget target) {
+    if (!isEnabled() || bypass) return null;
+
+    open();
+    long now = System.currentTimeMillis();
+    List<String> keys = keys(target);
+    for (String key : keys) {
+      Circuit circuit = circuits.get(key);
+      if (Objects.isNull(circuit) || !circuit.isOpen() || now >= circuit.openUntil) continue;
+
+      log.info("Skipped {}, {} keeps failing.", target, key);
+      return ScanResult.failure(
+          target,
+          String.format(
+              "Skipped after %d failure(s) of %s; %s", circuit.failures, key, circuit.reason),
+          ScanResult.Cause.SKIPPED,
+          0);
+    }
+
+    // Let this target try the expired circuits, others wait for another backoff period.
+    for (String key : keys) {
+      Circuit circuit = circuits.get(key);
+      if (Objects.nonNull(circuit) && circuit.isOpen()) {
+        circuit.openUntil = now + backoff(circuit.failures - thresholdOf(key));
+      }
+    }
+    return null;
+  }
+
+  /**
+   * Closes the circuits of the target when the result succeeded, otherwise counts the failure
+   * against the target and, when the target could not be reached, against its host and subnet.
+   *
+   * @param result ScanResult of a handshake.
+   */
+  public synchronized void record(ScanResult result) {
+    if (!isEnabled()) return;
+
+    open();
+    ScanTarget target = result.getTarget();
+    List<String> keys = keys(target);
+    if (result.isSuccess()) {
+      keys.forEach(circuits::remove);
+      return;
+    }
+
+    long now = System.currentTimeMillis();
+    fail(keys.get(0), result.getError(), now);
+    if (!isUnreachable(result.getCause())) return;
+    for (String key : keys.subList(1, keys.size())) fail(key, result.getError(), now);
+  }
+
+  private void fail(String key, String reason, long now) {
+    Circuit circuit = circuits.computeIfAbsent(key, k -> new Circuit());
+    circuit.failures++;
+    circuit.failedAt = now;
+    circuit.reason = Objects.isNull(reason) ? "Unknown failure" : reason;
+    int threshold = thresholdOf(key);
+    if (circuit.failures >= threshold) {
+      circuit.openUntil = now + backoff(circuit.failures - threshold);
+      log.debug("Opened circuit of {} for {} ms.", key, circuit.openUntil - now);
+    }
+  }
+
+  /**
+   * Returns the keys of the target, its host and, for IP addresses, its subnet. A target pinned to
+   * an address counts against that address rather than its host name, so that unreachable
+   * addresses of a host, such as a broken IPv6 path, do not skip its healthy ones.
+   */
+  private List<String> keys(ScanTarget target) {
+    String host = Objects.isNull(target.getAddress()) ? target.getHost() : target.getAddress();
+    List<String> keys = new ArrayList<>(3);
+    keys.add(TARGET + target);
+    keys.add(HOST + host);
+    String subnet = rateLimiter.subnetOf(target);
+    if (!subnet.equals(host)) keys.add(SUBNET + subnet);
+    return keys;
+  }
+
+  private int thresholdOf(String key) {
+    if (key.startsWith(HOST)) return hostThreshold;
+    if (key.startsWith(SUBNET)) return subnetThreshold;
+    return 1;
+  }
+
+  private long backoff(int doublings) {
+    return Math.min(maxBackoff, ttl << Math.min(Math.max(0, doublings), 30));
+  }
+
+  /**
+   * Returns whether the failure means the target could not be reached at all, as opposed to a
+   * reachable port that does not speak TLS, which says nothing about the rest of the host.
+   *
+   * @param cause Cause of a failed ScanResult, may be null.
+   * @return Whether the failure counts against the host and subnet.
+   */
+  static boolean isUnreachable(ScanResult.Cause cause) {
+    return cause == ScanResult.Cause.UNKNOWN_HOST
+        || cause == ScanResult.Cause.UNREACHABLE
+        || cause == ScanResult.Cause.CONNECT_TIMEOUT;
+  }
+
+  /** Loads the circuits on first use, forgetting those that have not failed for long. */
+  private void open() {
+    if (Objects.nonNull(circuits)) return;
+
+    circuits =
+        new LinkedHashMap<>(16, 0.75f, true) {
+          @Override
+          protected boolean removeEldestEntry(Map.Entry<String, Circuit> eldest) {
+            return size() > maxEntries;
+          }
+        };
+    file = certificateStore.getRoot().resolve(FAILURES);
+    if (!Files.exists(file)) return;
+
+    long now = System.currentTimeMillis();
+    try (BufferedReader reader = Files.newBufferedReader(file, StandardCharsets.UTF_8)) {
+      String line;
+      while ((line = reader.readLine()) != null) {
+        String[] fields = line.split("\t", 5);
+        if (fields.length < 5) continue;
+
+        Circuit circuit = new Circuit();
+        circuit.failures = Integer.parseInt(fields[1]);
+        circuit.failedAt = Long.parseLong(fields[2]);
+        circuit.openUntil = Long.parseLong(fields[3]);
+        circuit.reason = fields[4];
+        if (!isForgotten(circuit, now)) circuits.put(fields[0], circuit);
+      }
+      log.info("Loaded {} failing circuit(s) from '{}'.", circuits.size(), file);
+
+    } catch (IOException | NumberFormatException e) {
+      log.warn("Unable to read failures from '{}': {}", file, e.getMessage());
+    }
+  }
+
+  private boolean isForgotten(Circuit circuit, long now) {
+    return now - Math.max(circuit.failedAt, circuit.openUntil) >= maxBackoff;
+  }
+
+  /** Writes the circuits back to the file, replacing it at once. */
+  @PreDestroy
+  public synchronized void close() {
+    if (Objects.isNull(circuits)) return;
+
+    long now = System.currentTimeMillis();
+    Path temp = null;
+    try {
+      Files.createDirectories(file.toAbsolutePath().getParent());
+      temp = Files.createTempFile(file.toAbsolutePath().getParent(), FAILURES, ".tmp");
+      try (BufferedWriter writer = Files.newBufferedWriter(temp, StandardCharsets.UTF_8)) {
+        for (Map.Entry<String, Circuit> entry : circuits.entrySet()) {
+          Circuit circuit = entry.getValue();
+          if (isForgotten(circuit, now)) continue;
+
+          writer.write(
+              String.join(
+                  "\t",
+                  entry.getKey(),
+                  String.valueOf(circuit.failures),
+                  String.valueOf(circuit.failedAt),
+                  String.valueOf(circuit.openUntil),
+                  circuit.reason.replaceAll("[\t\r\n]+", " ")));
+          writer.newLine();
+        }
+      }
+      try {
+        Files.move(temp, file, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+      } catch (AtomicMoveNotSupportedException e) {
+        Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING);
+      }
+
+    } catch (IOException e) {
+      log.warn("Unable to write failures to '{}': {}", file, e.getMessage());
+    } finally {
+      if (Objects.nonNull(temp)) {
+        try {
+          Files.deleteIfExists(temp);
+        } catch (IOException ignored) {
+          // Left behind, replaced on the next run.
+        }
+      }
+    }
+    circuits = null;
+  }
+}
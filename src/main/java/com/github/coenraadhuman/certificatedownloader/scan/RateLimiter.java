@@ -0,0 +1,103 @@
+package com.github.coenraadhuman.certificatedownloader.scan;
+
+import com.github.coenraadhuman.certificatedownloader.utils.TokenBucket;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Objects;
+
+/**
+ * Paces the connections of a sweep with a global token bucket and one per subnet, so that neither
+ * the network as a whole nor any single subnet sees more than its configured rate of new
+ * connections. A rate of 0 disables that limit. Buckets of the least recently swept subnets are
+ * dropped beyond a bound, such a subnet starts over with a full bucket.
+ */
+@Component
+public class RateLimiter {
+
+  private static final int MAX_SUBNETS = 65536;
+
+  private final double subnetRate;
+  private final int subnetPrefix;
+  private final int subnetPrefixV6;
+  private final TokenBucket global;
+  private final Map<String, TokenBucket> subnets =
+      new LinkedHashMap<>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, TokenBucket> eldest) {
+          return size() > MAX_SUBNETS;
+        }
+      };
+
+  @Autowired
+  public RateLimiter(
+      @Value("${sweep.rate}") String rate,
+      @Value("${sweep.subnet-rate}") String subnetRate,
+      @Value("${sweep.subnet-prefix}") String subnetPrefix,
+      @Value("${sweep.subnet-prefix-v6}") String subnetPrefixV6) {
+    double globalRate = Double.parseDouble(rate);
+    this.global = globalRate > 0 ? new TokenBucket(globalRate) : null;
+    this.subnetRate = Double.parseDouble(subnetRate);
+    this.subnetPrefix = Integer.parseInt(subnetPrefix);
+    this.subnetPrefixV6 = Integer.parseInt(subnetPrefixV6);
+  }
+
+  public int getSubnetPrefix() {
+    return subnetPrefix;
+  }
+
+  public int getSubnetPrefixV6() {
+    return subnetPrefixV6;
+  }
+
+  /**
+   * Waits until the target may be connected to under both the limit of its subnet and the global
+   * limit, in that order so that a token of the global bucket is never held while waiting.
+   *
+   * @param target Target to connect to.
+   */
+  public void acquire(ScanTarget target) {
+    if (subnetRate > 0) {
+      TokenBucket bucket;
+      synchronized (subnets) {
+        bucket = subnets.computeIfAbsent(subnetOf(target), key -> new TokenBucket(subnetRate));
+      }
+      bucket.acquire();
+    }
+
+    if (Objects.nonNull(global)) global.acquire();
+  }
+
+  /**
+   * Returns the subnet of the address of the target, or its host when it is not an IP address.
+   *
+   * @param target Target to look up.
+   * @return Subnet in the form <i>address/prefix</i>.
+   */
+  public String subnetOf(ScanTarget target) {
+    String host = Objects.isNull(target.getAddress()) ? target.getHost() : target.getAddress();
+    if (!Sweep.isLiteral(host)) return host;
+
+    byte[] address;
+    try {
+      address = InetAddress.getByName(host).getAddress();
+    } catch (UnknownHostException e) {
+      return host;
+    }
+
+    int prefix = Math.min(address.length * 8, address.length == 4 ? subnetPrefix : subnetPrefixV6);
+    for (int bit = prefix; bit < address.length * 8; bit++) {
+      address[bit / 8] &= (byte) ~(0x80 >>> (bit % 8));
+    }
+    try {
+      return InetAddress.getByAddress(address).getHostAddress() + "/" + prefix;
+    } catch (UnknownHostException e) {
+      throw new IllegalStateException("Address of valid length rejected", e);
+    }
+  }
+}
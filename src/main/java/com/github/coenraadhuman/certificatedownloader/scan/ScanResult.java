@@ -0,0 +1,163 @@
+package com.github.coenraadhuman.certificatedownloader.scan;
+
+import com.github.coenraadhuman.certificatedownloader.net.DeadlineExceededException;
+import lombok.AccessLevel;
+import lombok.Getter;
+import lombok.RequiredArgsConstructor;
+
+import javax.net.ssl.SSLException;
+import java.io.EOFException;
+import java.net.ConnectException;
+import java.net.NoRouteToHostException;
+import java.net.PortUnreachableException;
+import java.net.SocketException;
+import java.net.SocketTimeoutException;
+import java.net.UnknownHostException;
+import java.security.cert.X509Certificate;
+import java.util.Collections;
+import java.util.List;
+import java.util.Objects;
+import java.util.concurrent.TimeUnit;
+
+/** Outcome of downloading the certificate chain of a single {@link ScanTarget}. */
+@Getter
+@RequiredArgsConstructor(access = AccessLevel.PRIVATE)
+public class ScanResult {
+
+  /** Kind of failure of a result, classified by the exception it failed with. */
+  public enum Cause {
+    /** The host did not resolve to any address. */
+    UNKNOWN_HOST,
+    /** The connection was refused or there was no route to the host. */
+    UNREACHABLE,
+    /** No connection was made within the connect deadline. */
+    CONNECT_TIMEOUT,
+    /** The handshake stalled, past its deadline or a read timeout. */
+    HANDSHAKE_TIMEOUT,
+    /** The connection was reset or closed by the peer. */
+    RESET,
+    /** The target or run deadline expired. */
+    DEADLINE,
+    /** The peer does not speak TLS or rejected the handshake. */
+    PROTOCOL,
+    /** The target was skipped without connecting. */
+    SKIPPED,
+    /** Any other failure. */
+    OTHER;
+
+    /**
+     * Classifies the exception a scan failed with, or the first of its causes that can be.
+     *
+     * @param e Exception the scan failed with.
+     * @return Cause of the failure.
+     */
+    public static Cause of(Throwable e) {
+      for (Throwable t = e; t != null; t = t.getCause()) {
+        if (t instanceof DeadlineExceededException) {
+          String phase = ((DeadlineExceededException) t).getPhase();
+          if (DeadlineExceededException.CONNECT.equals(phase)) return CONNECT_TIMEOUT;
+          if (DeadlineExceededException.HANDSHAKE.equals(phase)) return HANDSHAKE_TIMEOUT;
+          return DEADLINE;
+        }
+        if (t instanceof UnknownHostException) return UNKNOWN_HOST;
+        if (t instanceof ConnectException
+            || t instanceof NoRouteToHostException
+            || t instanceof PortUnreachableException) {
+          return UNREACHABLE;
+        }
+        if (t instanceof SocketTimeoutException) return HANDSHAKE_TIMEOUT;
+        if (t instanceof SocketException || t instanceof EOFException) return RESET;
+      }
+
+      return e instanceof SSLException ? PROTOCOL : OTHER;
+    }
+  }
+
+  private final ScanTarget target;
+  private final List<X509Certificate> certificates;
+  private final String error;
+
+  /** Kind of failure, null when the result succeeded. */
+  private final Cause cause;
+
+  private final long durationNanos;
+
+  /** IP address connected to, null when the result did not come from a connection. */
+  private final String address;
+
+  private final String protocol;
+  private final String cipherSuite;
+  private final long connectNanos;
+  private final long handshakeNanos;
+
+  public static ScanResult success(
+      ScanTarget target, List<X509Certificate> certificates, long durationNanos) {
+    return new ScanResult(
+        target,
+        Collections.unmodifiableList(certificates),
+        null,
+        null,
+        durationNanos,
+        null,
+        null,
+        null,
+        0,
+        0);
+  }
+
+  public static ScanResult failure(ScanTarget target, String error, long durationNanos) {
+    return failure(target, error, Cause.OTHER, durationNanos);
+  }
+
+  /**
+   * Returns a failure with the message of the exception, classified by its type.
+   *
+   * @param target Target that failed.
+   * @param e Exception it failed with.
+   * @param durationNanos Time taken until it failed.
+   * @return ScanResult of the failure.
+   */
+  public static ScanResult failure(ScanTarget target, Throwable e, long durationNanos) {
+    String error = Objects.isNull(e.getMessage()) ? e.toString() : e.getMessage();
+    return failure(target, error, Cause.of(e), durationNanos);
+  }
+
+  public static ScanResult failure(
+      ScanTarget target, String error, Cause cause, long durationNanos) {
+    return new ScanResult(
+        target, Collections.emptyList(), error, cause, durationNanos, null, null, null, 0, 0);
+  }
+
+  /**
+   * Returns this result with the details of the connection it came from.
+   *
+   * @param address IP address connected to.
+   * @param protocol Negotiated protocol version, null when unknown.
+   * @param cipherSuite Negotiated cipher suite, null when unknown.
+   * @param connectNanos Time taken to connect.
+   * @param handshakeNanos Time taken by the handshake.
+   * @return ScanResult holding the same outcome.
+   */
+  public ScanResult withConnection(
+      String address, String protocol, String cipherSuite, long connectNanos, long handshakeNanos) {
+    return new ScanResult(
+        target,
+        certificates,
+        error,
+        cause,
+        durationNanos,
+        address,
+        protocol,
+        cipherSuite,
+        connectNanos,
+        handshakeNanos);
+  }
+
+  public boolean isSuccess() {
+    return Objects.isNull(error);
+  }
+
+  public long getDurationMillis() {
+    return TimeUnit.NANOSECONDS.toMillis(durationNanos);
+  }
+}
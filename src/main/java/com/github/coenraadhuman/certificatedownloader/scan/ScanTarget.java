@@ -0,0 +1,67 @@
+package com.github.coenraadhuman.certificatedownloader.scan;
+
+import lombok.AllArgsConstructor;
+import lombok.Value;
+
+import java.util.Objects;
+
+@Value
+@AllArgsConstructor
+public class ScanTarget {
+
+  String host;
+  int port;
+
+  /** IP address to connect to instead of resolving the host, which is still sent as SNI. */
+  String address;
+
+  public ScanTarget(String host, int port) {
+    this(host, port, null);
+  }
+
+  /**
+   * Returns this target pinned to one of the addresses of its host.
+   *
+   * @param address IP address to connect to.
+   * @return ScanTarget for the same host and port.
+   */
+  public ScanTarget withAddress(String address) {
+    return new ScanTarget(host, port, address);
+  }
+
+  /**
+   * Parses a target in the form <i>host:port</i>, splitting on the last colon so that bracketless
+   * IPv6 literals still resolve to the correct port.
+   *
+   * @param target String to parse.
+   * @return ScanTarget for the given String.
+   * @throws IllegalArgumentException when the String is not in the form <i>host:port</i>.
+   */
+  public static ScanTarget parse(String target) {
+    int separator = target.lastIndexOf(':');
+    if (separator <= 0 || separator == target.length() - 1) {
+      throw new IllegalArgumentException(
+          String.format("Target '%s' is not in the form host:port.", target));
+    }
+
+    String host = target.substring(0, separator);
+    if (host.startsWith("[") && host.endsWith("]")) host = host.substring(1, host.length() - 1);
+
+    try {
+      return new ScanTarget(host, Integer.parseInt(target.substring(separator + 1)));
+    } catch (NumberFormatException e) {
+      throw new IllegalArgumentException(
+          String.format("Target '%s' does not have a valid port.", target));
+    }
+  }
+
+  /**
+   * Returns <i>host:port</i>, followed by <i>@address</i> when pinned to an address.
+   *
+   * @return String form of the target.
+   */
+  @Override
+  public String toString() {
+    return Objects.isNull(address) ? host + ":" + port : host + ":" + port + "@" + address;
+  }
+}
@@ -0,0 +1,184 @@
+package com.github.coenraadhuman.certificatedownloader.scan;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+/**
+ * Lazily expands CIDR blocks and port ranges into targets, holding only the position of the sweep
+ * rather than a list of them. Each port is swept across every block in turn, and the addresses of
+ * a block are visited round robin across its subnets, so that consecutive targets land on
+ * different subnets and per-subnet rate limits rarely hold the sweep back.
+ */
+public class Sweep implements Iterator<ScanTarget> {
+
+  /** Largest number of host bits in a block, a /0 for IPv4 and a /96 for IPv6. */
+  private static final int MAX_HOST_BITS = 32;
+
+  private static final class Block {
+
+    private final byte[] base;
+    private final long size;
+    private final long subnets;
+    private final long subnetSize;
+
+    private Block(byte[] base, int hostBits, int subnetHostBits) {
+      this.base = base;
+      this.size = 1L << hostBits;
+      this.subnets = 1L << Math.max(0, hostBits - subnetHostBits);
+      this.subnetSize = size / subnets;
+    }
+
+    /** Returns the address at the index of the round robin order across the subnets. */
+    private String address(long index) {
+      long offset = (index % subnets) * subnetSize + index / subnets;
+      byte[] address = base.clone();
+      for (int i = address.length - 1; offset != 0; i--) {
+        address[i] |= (byte) offset;
+        offset >>>= 8;
+      }
+
+      try {
+        return InetAddress.getByAddress(address).getHostAddress();
+      } catch (UnknownHostException e) {
+        throw new IllegalStateException("Address of valid length rejected", e);
+      }
+    }
+  }
+
+  private final List<Block> blocks;
+  private final BitSet ports;
+  private final long size;
+  private int port;
+  private int block;
+  private long index;
+
+  private Sweep(List<Block> blocks, BitSet ports) {
+    this.blocks = blocks;
+    this.ports = ports;
+    this.size = blocks.stream().mapToLong(b -> b.size).sum() * ports.cardinality();
+    this.port = ports.nextSetBit(0);
+  }
+
+  /**
+   * Parses a sweep in the form <i>blocks:ports</i>, where blocks is a comma separated list of
+   * CIDR blocks or single addresses and ports a comma separated list of ports and ranges, for
+   * example <i>10.0.0.0/16,192.0.2.1:443,8000-8443</i>. Host bits set in a block are ignored.
+   *
+   * @param spec String to parse.
+   * @param subnetPrefix Prefix length of the IPv4 subnets to interleave.
+   * @param subnetPrefixV6 Prefix length of the IPv6 subnets to interleave.
+   * @return Sweep positioned at its first target.
+   * @throws IllegalArgumentException when the String is not a valid sweep.
+   */
+  public static Sweep parse(String spec, int subnetPrefix, int subnetPrefixV6) {
+    int separator = spec.lastIndexOf(':');
+    if (separator <= 0 || separator == spec.length() - 1) {
+      throw new IllegalArgumentException(
+          String.format("Sweep '%s' is not in the form blocks:ports.", spec));
+    }
+
+    List<Block> blocks = new ArrayList<>();
+    for (String cidr : spec.substring(0, separator).split(",")) {
+      blocks.add(block(cidr.trim(), subnetPrefix, subnetPrefixV6));
+    }
+
+    return new Sweep(blocks, ports(spec.substring(separator + 1)));
+  }
+
+  private static Block block(String cidr, int subnetPrefix, int subnetPrefixV6) {
+    int slash = cidr.indexOf('/');
+    String literal = slash < 0 ? cidr : cidr.substring(0, slash);
+    byte[] base;
+    try {
+      // Only literals, a host name here would be resolved on the calling thread.
+      if (!isLiteral(literal)) throw new UnknownHostException(literal);
+      base = InetAddress.getByName(literal).getAddress();
+    } catch (UnknownHostException e) {
+      throw new IllegalArgumentException(String.format("'%s' is not an IP address.", literal));
+    }
+
+    int bits = base.length * 8;
+    int prefix;
+    try {
+      prefix = slash < 0 ? bits : Integer.parseInt(cidr.substring(slash + 1));
+    } catch (NumberFormatException e) {
+      prefix = -1;
+    }
+    if (prefix < 0 || prefix > bits) {
+      throw new IllegalArgumentException(String.format("'%s' has an invalid prefix.", cidr));
+    }
+    if (bits - prefix > MAX_HOST_BITS) {
+      throw new IllegalArgumentException(
+          String.format("'%s' holds more than 2^%d addresses.", cidr, MAX_HOST_BITS));
+    }
+
+    for (int bit = prefix; bit < bits; bit++) base[bit / 8] &= (byte) ~(0x80 >>> (bit % 8));
+    int subnetHostBits = bits - (base.length == 4 ? subnetPrefix : subnetPrefixV6);
+    return new Block(base, bits - prefix, Math.max(0, subnetHostBits));
+  }
+
+  /** Returns whether the address is an IP literal, which resolves without a lookup. */
+  static boolean isLiteral(String address) {
+    if (address.isEmpty()) return false;
+
+    boolean v6 = address.indexOf(':') >= 0;
+    for (int i = 0; i < address.length(); i++) {
+      char c = address.charAt(i);
+      if (c != '.' && c != ':' && Character.digit(c, v6 ? 16 : 10) < 0) return false;
+    }
+    return true;
+  }
+
+  private static BitSet ports(String list) {
+    BitSet ports = new BitSet(65536);
+    for (String range : list.split(",")) {
+      range = range.trim();
+      int dash = range.indexOf('-');
+      try {
+        int from = Integer.parseInt(dash < 0 ? range : range.substring(0, dash).trim());
+        int to = dash < 0 ? from : Integer.parseInt(range.substring(dash + 1).trim());
+        if (from < 1 || to > 65535 || from > to) throw new NumberFormatException();
+        ports.set(from, to + 1);
+      } catch (NumberFormatException e) {
+        throw new IllegalArgumentException(String.format("'%s' is not a valid port range.", range));
+      }
+    }
+
+    return ports;
+  }
+
+  /**
+   * Returns the total number of targets of the sweep.
+   *
+   * @return Count of addresses times the count of ports.
+   */
+  public long size() {
+    return size;
+  }
+
+  @Override
+  public boolean hasNext() {
+    return port >= 0;
+  }
+
+  @Override
+  public ScanTarget next() {
+    if (port < 0) throw new NoSuchElementException();
+
+    ScanTarget target = new ScanTarget(blocks.get(block).address(index), port);
+    if (++index == blocks.get(block).size) {
+      index = 0;
+      if (++block == blocks.size()) {
+        block = 0;
+        port = ports.nextSetBit(port + 1);
+      }
+    }
+
+    return target;
+  }
+}
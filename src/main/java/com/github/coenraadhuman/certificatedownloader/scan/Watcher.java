@@ -0,0 +1,258 @@
+package com.github.coenraadhuman.certificatedownloader.scan;
+
+import com.github.coenraadhuman.certificatedownloader.utils.CertDownload;
+import com.github.coenraadhuman.certificatedownloader.utils.Fingerprints;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.logging.LogLevel;
+import org.springframework.boot.logging.LoggerConfiguration;
+import org.springframework.boot.logging.LoggingSystem;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PreDestroy;
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.security.cert.CertificateEncodingException;
+import java.security.cert.X509Certificate;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Objects;
+import java.util.concurrent.DelayQueue;
+import java.util.concurrent.Delayed;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+
+/**
+ * Rescans a fixed set of targets until closed, passing a result on only when the chain of its
+ * target changed. Each target is rescanned after a fraction of the remaining validity of its
+ * chain, bounded by the minimum and maximum interval, so chains close to expiry are checked more
+ * often. Intervals are jittered so that targets added together spread out over time.
+ */
+@Slf4j
+@Component
+public class Watcher {
+
+  private static final long POLL_MILLIS = 1000;
+  private static final String CERT_DOWNLOAD = CertDownload.class.getName();
+
+  /** A target and what its last scan found, queued until it is due again. */
+  private static final class Watched implements Delayed {
+
+    private final ScanTarget target;
+    private volatile long due;
+    private List<String> fingerprints;
+    private String error;
+
+    private Watched(ScanTarget target, long due) {
+      this.target = target;
+      this.due = due;
+    }
+
+    @Override
+    public long getDelay(TimeUnit unit) {
+      return unit.convert(due - System.nanoTime(), TimeUnit.NANOSECONDS);
+    }
+
+    @Override
+    public int compareTo(Delayed other) {
+      return Long.compare(due, ((Watched) other).due);
+    }
+  }
+
+  private final CertDownload certDownload;
+  private final long minInterval;
+  private final long maxInterval;
+  private final long failureInterval;
+  private final int expiryDivisor;
+  private final double jitter;
+  private final DelayQueue<Watched> queue = new DelayQueue<>();
+  private final AtomicLong scans = new AtomicLong();
+  private final AtomicLong changes = new AtomicLong();
+  private volatile boolean running;
+
+  @Autowired
+  public Watcher(
+      CertDownload certDownload,
+      @Value("${watch.min-interval}") String minInterval,
+      @Value("${watch.max-interval}") String maxInterval,
+      @Value("${watch.failure-interval}") String failureInterval,
+      @Value("${watch.expiry-divisor}") String expiryDivisor,
+      @Value("${watch.jitter}") String jitter) {
+    this.certDownload = certDownload;
+    this.minInterval = Long.parseLong(minInterval);
+    this.maxInterval = Long.parseLong(maxInterval);
+    this.failureInterval = Long.parseLong(failureInterval);
+    this.expiryDivisor = Math.max(1, Integer.parseInt(expiryDivisor));
+    this.jitter = Double.parseDouble(jitter);
+  }
+
+  /**
+   * Watches every <i>host:port</i> line of the given reader, read as {@link BatchScanner} does,
+   * blocking until {@link #close()} is called or the thread is interrupted. Each scan is a full
+   * handshake, so that session resumption never hides a changed chain. Per-handshake logging is
+   * lowered to errors while watching and restored afterwards, changes and failures are logged once
+   * each by the watcher instead.
+   *
+   * @param reader Source of targets, one per line, read completely before watching starts.
+   * @param workers Maximum number of scans in flight, at least 1.
+   * @param consumer Receives the first result of each target and every result whose chain
+   *     differs from the previous one, called from the worker threads.
+   * @throws IOException when the targets could not be read.
+   */
+  public void watch(BufferedReader reader, int workers, Consumer<ScanResult> consumer)
+      throws IOException {
+    queue.clear();
+    long now = System.nanoTime();
+    ScanTarget target;
+    while ((target = BatchScanner.nextTarget(reader)) != null) queue.add(new Watched(target, now));
+
+    log.info("Watching {} target(s) using {} worker(s).", queue.size(), workers);
+
+    LoggingSystem loggingSystem = LoggingSystem.get(getClass().getClassLoader());
+    LoggerConfiguration logger = loggingSystem.getLoggerConfiguration(CERT_DOWNLOAD);
+    LogLevel level = Objects.isNull(logger) ? null : logger.getConfiguredLevel();
+    loggingSystem.setLogLevel(CERT_DOWNLOAD, LogLevel.ERROR);
+
+    ExecutorService executor = Executors.newFixedThreadPool(workers);
+    Semaphore inFlight = new Semaphore(workers);
+    running = true;
+    try {
+      while (running) {
+        Watched watched = queue.poll(POLL_MILLIS, TimeUnit.MILLISECONDS);
+        if (watched == null) continue;
+
+        inFlight.acquire();
+        executor.execute(
+            () -> {
+              try {
+                check(watched, consumer);
+              } catch (RuntimeException e) {
+                log.warn("Unexpected failure watching {}: {}", watched.target, e.getMessage());
+                watched.due = System.nanoTime() + jittered(failureInterval);
+              } finally {
+                queue.add(watched);
+                inFlight.release();
+              }
+            });
+      }
+
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+
+    } finally {
+      running = false;
+      BatchScanner.await(executor);
+      loggingSystem.setLogLevel(CERT_DOWNLOAD, level);
+      log.info("Stopped watching after {} scan(s), {} change(s).", scans.get(), changes.get());
+    }
+  }
+
+  private void check(Watched watched, Consumer<ScanResult> consumer) {
+    ScanResult result = certDownload.download(watched.target, true);
+    scans.incrementAndGet();
+
+    if (!result.isSuccess()) {
+      if (!Objects.equals(result.getError(), watched.error)) {
+        log.warn("{} is failing: {}", watched.target, result.getError());
+      }
+      watched.error = result.getError();
+      watched.due = System.nanoTime() + jittered(failureInterval);
+      return;
+    }
+
+    if (Objects.nonNull(watched.error)) log.info("{} is reachable again.", watched.target);
+    watched.error = null;
+
+    List<String> fingerprints = fingerprints(result.getCertificates());
+    Instant expiry = expiry(result.getCertificates());
+    if (!fingerprints.equals(watched.fingerprints)) {
+      if (Objects.isNull(watched.fingerprints)) {
+        log.info("Watching {}, chain expires {}.", watched.target, expiry);
+      } else {
+        changes.incrementAndGet();
+        log.info(
+            "Chain of {} changed from {} to {}, expires {}.",
+            watched.target,
+            leaf(watched.fingerprints),
+            leaf(fingerprints),
+            expiry);
+      }
+      watched.fingerprints = fingerprints;
+      consumer.accept(result);
+    }
+
+    long interval = interval(expiry, Instant.now());
+    watched.due = System.nanoTime() + jittered(interval);
+    log.debug("Next scan of {} in {} ms.", watched.target, interval);
+  }
+
+  /**
+   * Returns the time until the next scan of a chain expiring at the given instant, a fraction of
+   * its remaining validity within the configured bounds.
+   *
+   * @param expiry Earliest expiry of the chain, null when it holds no certificates.
+   * @param now Current time.
+   * @return Milliseconds until the next scan, before jitter.
+   */
+  long interval(Instant expiry, Instant now) {
+    if (Objects.isNull(expiry)) return maxInterval;
+
+    long remaining = expiry.toEpochMilli() - now.toEpochMilli();
+    return Math.max(minInterval, Math.min(maxInterval, remaining / expiryDivisor));
+  }
+
+  private long jittered(long interval) {
+    double factor = 1 + jitter * (2 * ThreadLocalRandom.current().nextDouble() - 1);
+    return TimeUnit.MILLISECONDS.toNanos(Math.max(1, (long) (interval * factor)));
+  }
+
+  private static Instant expiry(List<X509Certificate> certificates) {
+    Instant earliest = null;
+    for (X509Certificate cert : certificates) {
+      Instant notAfter = cert.getNotAfter().toInstant();
+      if (Objects.isNull(earliest) || notAfter.isBefore(earliest)) earliest = notAfter;
+    }
+
+    return earliest;
+  }
+
+  private static List<String> fingerprints(List<X509Certificate> certificates) {
+    List<String> fingerprints = new ArrayList<>(certificates.size());
+    for (X509Certificate cert : certificates) {
+      try {
+        fingerprints.add(Fingerprints.sha256(cert));
+      } catch (CertificateEncodingException e) {
+        // Compared by position, an unencodable certificate still counts towards the chain.
+        fingerprints.add("");
+      }
+    }
+
+    return fingerprints;
+  }
+
+  private static String leaf(List<String> fingerprints) {
+    String leaf = fingerprints.isEmpty() ? "" : fingerprints.get(0);
+    return leaf.isEmpty() ? "none" : leaf.substring(0, 16);
+  }
+
+  public long getScanCount() {
+    return scans.get();
+  }
+
+  public long getChangeCount() {
+    return changes.get();
+  }
+
+  /** Stops a running {@link #watch} once the scans in flight complete. */
+  @PreDestroy
+  public void close() {
+    running = false;
+  }
+}
@@ -0,0 +1,155 @@
+package com.github.coenraadhuman.certificatedownloader.service;
+
+import com.github.coenraadhuman.certificatedownloader.scan.ScanResult;
+import com.github.coenraadhuman.certificatedownloader.scan.ScanTarget;
+import com.github.coenraadhuman.certificatedownloader.utils.CertDownload;
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PreDestroy;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Looks up the chains of targets on behalf of concurrent callers. Lookups of a target share a
+ * single in-flight handshake, and its result is kept for the response time to live, so that a
+ * burst of requests for the same target costs one connection. Failures are kept for no longer
+ * than <i>http.failure-ttl</i>, so that a target that was down briefly is retried soon after.
+ */
+@Slf4j
+@Component
+public class ChainLookup {
+
+  @RequiredArgsConstructor
+  private static final class Response {
+
+    private final ScanResult result;
+    private final long expiresAt;
+  }
+
+  private final CertDownload certDownload;
+  private final long ttlNanos;
+  private final long failureTtlNanos;
+  private final int maxEntries;
+  private final ExecutorService executor;
+  private final Map<String, CompletableFuture<ScanResult>> inFlight = new ConcurrentHashMap<>();
+  private final Map<String, Response> responses = new ConcurrentHashMap<>();
+  private final AtomicLong handshakes = new AtomicLong();
+  private final AtomicLong coalesced = new AtomicLong();
+  private final AtomicLong cached = new AtomicLong();
+
+  @Autowired
+  public ChainLookup(
+      CertDownload certDownload,
+      @Value("${http.cache-ttl}") String ttl,
+      @Value("${http.failure-ttl}") String failureTtl,
+      @Value("${http.cache-size}") String cacheSize,
+      @Value("${http.handshake-threads}") String threads) {
+    this.certDownload = certDownload;
+    this.ttlNanos = TimeUnit.MILLISECONDS.toNanos(Long.parseLong(ttl));
+    this.failureTtlNanos =
+        Math.min(ttlNanos, TimeUnit.MILLISECONDS.toNanos(Long.parseLong(failureTtl)));
+    this.maxEntries = Integer.parseInt(cacheSize);
+    this.executor =
+        Executors.newFixedThreadPool(
+            Integer.parseInt(threads),
+            runnable -> {
+              Thread thread = new Thread(runnable, "chain-lookup");
+              thread.setDaemon(true);
+              return thread;
+            });
+  }
+
+  /**
+   * Returns the chain of the target from the response cache, or joins the handshake in flight
+   * with it, or else starts one.
+   *
+   * @param target Target to look up.
+   * @return CompletableFuture of the ScanResult, never completed exceptionally.
+   */
+  public CompletableFuture<ScanResult> lookup(ScanTarget target) {
+    String key = target.toString();
+    long now = System.nanoTime();
+    Response response = responses.get(key);
+    if (response != null && now - response.expiresAt < 0) {
+      cached.incrementAndGet();
+      return CompletableFuture.completedFuture(response.result);
+    }
+
+    CompletableFuture<ScanResult> created = new CompletableFuture<>();
+    CompletableFuture<ScanResult> existing = inFlight.putIfAbsent(key, created);
+    if (existing != null) {
+      coalesced.incrementAndGet();
+      return existing;
+    }
+
+    handshakes.incrementAndGet();
+    try {
+      executor.execute(
+          () -> {
+            ScanResult result = null;
+            try {
+              result = certDownload.download(target);
+            } catch (RuntimeException e) {
+              result = ScanResult.failure(target, e, 0);
+            } finally {
+              // An Error still ends the flight before it reaches the thread.
+              if (result == null) {
+                result = ScanResult.failure(target, "Lookup of " + target + " failed", 0);
+              }
+              complete(key, created, result);
+            }
+          });
+
+    } catch (RejectedExecutionException e) {
+      complete(key, created, ScanResult.failure(target, e, 0));
+    }
+
+    return created;
+  }
+
+  private void complete(String key, CompletableFuture<ScanResult> created, ScanResult result) {
+    // Cached before leaving flight, so later callers never miss both.
+    long responseTtl = result.isSuccess() ? ttlNanos : failureTtlNanos;
+    if (responseTtl > 0) {
+      if (responses.size() >= maxEntries) evictExpired(System.nanoTime());
+      responses.put(key, new Response(result, System.nanoTime() + responseTtl));
+    } else {
+      responses.remove(key);
+    }
+    inFlight.remove(key, created);
+    created.complete(result);
+  }
+
+  private void evictExpired(long now) {
+    responses.values().removeIf(response -> now - response.expiresAt >= 0);
+    // Still full of live responses, start over rather than grow without bound.
+    if (responses.size() >= maxEntries) responses.clear();
+  }
+
+  public long getHandshakeCount() {
+    return handshakes.get();
+  }
+
+  public long getCoalescedCount() {
+    return coalesced.get();
+  }
+
+  public long getCachedCount() {
+    return cached.get();
+  }
+
+  @PreDestroy
+  public void close() {
+    executor.shutdownNow();
+  }
+}
@@ -0,0 +1,246 @@
+package com.github.coenraadhuman.certificatedownloader.service;
+
+import com.github.coenraadhuman.certificatedownloader.scan.ScanResult;
+import com.github.coenraadhuman.certificatedownloader.scan.ScanTarget;
+import com.github.coenraadhuman.certificatedownloader.utils.Fingerprints;
+import com.github.coenraadhuman.certificatedownloader.utils.Pem;
+import com.github.coenraadhuman.certificatedownloader.utils.ScanMetrics;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PreDestroy;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.security.cert.CertificateEncodingException;
+import java.security.cert.X509Certificate;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import static com.github.coenraadhuman.certificatedownloader.utils.StringUtils.appendJson;
+
+/**
+ * Serves the chains of targets over HTTP, using the HTTP server of the JDK so that the service
+ * needs no dependencies beyond the CLI's. <i>GET /chain?target=host:port</i> returns the chain as
+ * JSON, or as concatenated PEM with <i>format=pem</i>. Lookups go through the {@link ChainLookup},
+ * so concurrent requests for a target share a handshake. <i>GET /health</i> returns 200 and
+ * <i>GET /metrics</i> the {@link ScanMetrics} in the Prometheus text format. Any caller that can
+ * reach the service can make it connect to any host and port, so it listens on
+ * <i>http.bind-address</i>, the loopback address unless configured otherwise.
+ */
+@Slf4j
+@Component
+public class HttpService {
+
+  private static final String JSON = "application/json; charset=utf-8";
+  private static final String PEM = "application/x-pem-file";
+  private static final String TEXT = "text/plain; charset=utf-8";
+  private static final String PROMETHEUS = "text/plain; version=0.0.4; charset=utf-8";
+
+  private final ChainLookup chainLookup;
+  private final ScanMetrics scanMetrics;
+  private final String bindAddress;
+  private final int threads;
+  private final long requestTimeout;
+  private HttpServer server;
+  private ExecutorService executor;
+
+  @Autowired
+  public HttpService(
+      ChainLookup chainLookup,
+      ScanMetrics scanMetrics,
+      @Value("${http.bind-address}") String bindAddress,
+      @Value("${http.threads}") String threads,
+      @Value("${http.request-timeout}") String requestTimeout) {
+    this.chainLookup = chainLookup;
+    this.scanMetrics = scanMetrics;
+    this.bindAddress = bindAddress;
+    this.threads = Integer.parseInt(threads);
+    this.requestTimeout = Long.parseLong(requestTimeout);
+  }
+
+  /**
+   * Starts serving on the port of the bind address, returning once the server is listening.
+   *
+   * @param port Port to listen on, 0 for any free port.
+   * @throws IOException when the bind address is unknown or the server could not be bound.
+   */
+  public void start(int port) throws IOException {
+    start(new InetSocketAddress(InetAddress.getByName(bindAddress), port));
+  }
+
+  /**
+   * Starts serving on the given address, returning once the server is listening.
+   *
+   * @param address Address to listen on, port 0 for any free port.
+   * @throws IOException when the server could not be bound.
+   */
+  public synchronized void start(InetSocketAddress address) throws IOException {
+    if (server != null) throw new IllegalStateException("Already serving on " + getAddress());
+
+    executor =
+        Executors.newFixedThreadPool(
+            threads,
+            runnable -> {
+              Thread thread = new Thread(runnable, "http-worker");
+              thread.setDaemon(true);
+              return thread;
+            });
+    server = HttpServer.create(address, 0);
+    server.setExecutor(executor);
+    server.createContext("/chain", this::handleChain);
+    server.createContext("/health", exchange -> send(exchange, 200, TEXT, "OK\n"));
+    server.createContext(
+        "/metrics", exchange -> send(exchange, 200, PROMETHEUS, scanMetrics.scrape()));
+    server.start();
+    log.info("Serving chains on http://{}:{}/chain", getAddress().getHostString(), getPort());
+  }
+
+  public synchronized InetSocketAddress getAddress() {
+    return server == null ? null : server.getAddress();
+  }
+
+  public synchronized int getPort() {
+    return server == null ? -1 : server.getAddress().getPort();
+  }
+
+  private void handleChain(HttpExchange exchange) throws IOException {
+    try {
+      if (!"GET".equals(exchange.getRequestMethod())) {
+        send(exchange, 405, TEXT, "Only GET is supported\n");
+        return;
+      }
+
+      Map<String, String> query;
+      try {
+        query = parseQuery(exchange.getRequestURI().getRawQuery());
+      } catch (IllegalArgumentException e) {
+        send(exchange, 400, TEXT, "Malformed query: " + e.getMessage() + "\n");
+        return;
+      }
+      String format = query.getOrDefault("format", "json");
+      if (!format.equals("json") && !format.equals("pem")) {
+        send(exchange, 400, TEXT, "format must be json or pem\n");
+        return;
+      }
+      ScanTarget target;
+      try {
+        target = ScanTarget.parse(query.getOrDefault("target", ""));
+      } catch (IllegalArgumentException e) {
+        send(exchange, 400, TEXT, e.getMessage() + "\n");
+        return;
+      }
+
+      ScanResult result;
+      try {
+        result = chainLookup.lookup(target).get(requestTimeout, TimeUnit.MILLISECONDS);
+      } catch (TimeoutException e) {
+        send(exchange, 504, TEXT, "Timed out waiting for " + target + "\n");
+        return;
+      } catch (InterruptedException | ExecutionException e) {
+        send(exchange, 500, TEXT, "Lookup of " + target + " failed\n");
+        return;
+      }
+
+      int status = result.isSuccess() ? 200 : 502;
+      if (format.equals("pem")) {
+        send(exchange, status, result.isSuccess() ? PEM : TEXT, toPem(result));
+      } else {
+        send(exchange, status, JSON, toJson(result));
+      }
+
+    } catch (CertificateEncodingException e) {
+      send(exchange, 500, TEXT, "Unable to encode chain: " + e.getMessage() + "\n");
+    }
+  }
+
+  private static Map<String, String> parseQuery(String rawQuery) {
+    Map<String, String> query = new HashMap<>();
+    if (rawQuery == null) return query;
+
+    for (String pair : rawQuery.split("&")) {
+      int equals = pair.indexOf('=');
+      if (equals <= 0) continue;
+      query.put(
+          URLDecoder.decode(pair.substring(0, equals), StandardCharsets.UTF_8),
+          URLDecoder.decode(pair.substring(equals + 1), StandardCharsets.UTF_8));
+    }
+
+    return query;
+  }
+
+  private static String toPem(ScanResult result) throws CertificateEncodingException {
+    if (!result.isSuccess()) return result.getError() + "\n";
+
+    StringBuilder pem = new StringBuilder();
+    for (X509Certificate cert : result.getCertificates()) pem.append(Pem.encode(cert));
+    return pem.toString();
+  }
+
+  private static String toJson(ScanResult result) throws CertificateEncodingException {
+    StringBuilder json = new StringBuilder(4096);
+    json.append("{\"target\":");
+    appendJson(json, result.getTarget().toString());
+    json.append(",\"durationMillis\":").append(result.getDurationMillis());
+    if (!result.isSuccess()) {
+      json.append(",\"error\":");
+      appendJson(json, result.getError());
+      return json.append("}\n").toString();
+    }
+
+    json.append(",\"certificates\":[");
+    for (int i = 0; i < result.getCertificates().size(); i++) {
+      X509Certificate cert = result.getCertificates().get(i);
+      if (i > 0) json.append(',');
+      json.append("{\"subject\":");
+      appendJson(json, cert.getSubjectX500Principal().getName());
+      json.append(",\"issuer\":");
+      appendJson(json, cert.getIssuerX500Principal().getName());
+      json.append(",\"serialNumber\":");
+      appendJson(json, cert.getSerialNumber().toString(16));
+      json.append(",\"notBefore\":");
+      appendJson(json, cert.getNotBefore().toInstant().toString());
+      json.append(",\"notAfter\":");
+      appendJson(json, cert.getNotAfter().toInstant().toString());
+      json.append(",\"sha256\":");
+      appendJson(json, Fingerprints.sha256(cert));
+      json.append(",\"pem\":");
+      appendJson(json, Pem.encode(cert));
+      json.append('}');
+    }
+
+    return json.append("]}\n").toString();
+  }
+
+  private static void send(HttpExchange exchange, int status, String contentType, String body)
+      throws IOException {
+    byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+    exchange.getResponseHeaders().set("Content-Type", contentType);
+    exchange.sendResponseHeaders(status, bytes.length);
+    try (OutputStream out = exchange.getResponseBody()) {
+      out.write(bytes);
+    }
+  }
+
+  /** Stops serving, requests in progress are given a second to complete. */
+  @PreDestroy
+  public synchronized void stop() {
+    if (server == null) return;
+
+    server.stop(1);
+    executor.shutdownNow();
+    server = null;
+  }
+}
@@ -0,0 +1,184 @@
+package com.github.coenraadhuman.certificatedownloader.store;
+
+import com.github.coenraadhuman.certificatedownloader.scan.ScanResult;
+import com.github.coenraadhuman.certificatedownloader.utils.Fingerprints;
+import com.github.coenraadhuman.certificatedownloader.utils.ScanMetrics;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PreDestroy;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.cert.CertificateEncodingException;
+import java.security.cert.X509Certificate;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.StringJoiner;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Content-addressed store for downloaded certificates. Each certificate is written once, as
+ * <i>certs/ab/cd/abcd...ef.cer</i> named by its SHA-256 fingerprint, no matter how many targets
+ * present it or how many runs see it. The targets themselves are recorded in <i>index.tsv</i>, one
+ * line per target holding <i>host:port</i> and the fingerprints of its chain, leaf first.
+ */
+@Slf4j
+@Component
+public class CertificateStore {
+
+  private static final String CERTIFICATES = "certs";
+  private static final String INDEX = "index.tsv";
+
+  private final ScanMetrics scanMetrics;
+  private final Set<String> written = ConcurrentHashMap.newKeySet();
+  private Path root;
+  private FileChannel index;
+
+  @Autowired
+  public CertificateStore(
+      @Value("${output.directory}") String directory, ScanMetrics scanMetrics) {
+    this.root = Paths.get(directory.isEmpty() ? System.getProperty("user.dir") : directory);
+    this.scanMetrics = scanMetrics;
+  }
+
+  public synchronized Path getRoot() {
+    return root;
+  }
+
+  /**
+   * Sets the directory to store certificates and the index in, must be called before storing.
+   *
+   * @param root Path of the output directory.
+   */
+  public synchronized void setRoot(Path root) {
+    close();
+    this.root = root;
+  }
+
+  /**
+   * Returns the path a certificate with the given fingerprint is stored at, sharded two levels
+   * deep so that no directory grows beyond 256 entries before the files themselves.
+   *
+   * @param fingerprint SHA-256 fingerprint in lower case hex.
+   * @return Path of the certificate file.
+   */
+  public Path pathOf(String fingerprint) {
+    return getRoot()
+        .resolve(CERTIFICATES)
+        .resolve(fingerprint.substring(0, 2))
+        .resolve(fingerprint.substring(2, 4))
+        .resolve(fingerprint + ".cer");
+  }
+
+  /**
+   * Writes every certificate of the result not yet stored and records the target in the index.
+   *
+   * @param result ScanResult to store, failures are ignored.
+   */
+  public void store(ScanResult result) {
+    store(Collections.singletonList(result));
+  }
+
+  /**
+   * Writes every certificate of the results not yet stored and records the targets in the index
+   * with a single append.
+   *
+   * @param results ScanResults to store, failures are ignored.
+   */
+  public void store(List<ScanResult> results) {
+    StringBuilder lines = new StringBuilder();
+    for (ScanResult result : results) {
+      if (!result.isSuccess()) continue;
+
+      StringJoiner fingerprints = new StringJoiner(",");
+      for (X509Certificate cert : result.getCertificates()) {
+        try {
+          String fingerprint = Fingerprints.sha256(cert);
+          fingerprints.add(fingerprint);
+          if (written.add(fingerprint)) write(fingerprint, cert.getEncoded());
+
+        } catch (CertificateEncodingException e) {
+          log.warn("Unable to encode certificate '{}': {}", cert.getSubjectDN(), e.getMessage());
+        }
+      }
+      lines.append(result.getTarget()).append('\t').append(fingerprints).append('\n');
+    }
+
+    if (lines.length() > 0) index(lines.toString());
+  }
+
+  private void write(String fingerprint, byte[] encoded) {
+    Path file = pathOf(fingerprint);
+    if (Files.exists(file)) return;
+
+    ScanMetrics.Phase phase = scanMetrics.start(ScanMetrics.WRITE);
+    try {
+      Files.createDirectories(file.getParent());
+      Path temp = Files.createTempFile(file.getParent(), fingerprint, ".tmp");
+      try {
+        try (FileChannel channel = FileChannel.open(temp, StandardOpenOption.WRITE)) {
+          writeFully(channel, ByteBuffer.wrap(encoded));
+        }
+        try {
+          Files.move(temp, file, StandardCopyOption.ATOMIC_MOVE);
+        } catch (AtomicMoveNotSupportedException e) {
+          Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING);
+        }
+      } finally {
+        Files.deleteIfExists(temp);
+      }
+      phase.stop();
+
+    } catch (IOException e) {
+      phase.fail(e);
+      written.remove(fingerprint);
+      log.warn("Unable to save certificate to filesystem '{}': {}", file, e.getMessage());
+    }
+  }
+
+  private synchronized void index(String lines) {
+    try {
+      if (index == null) {
+        Files.createDirectories(root);
+        index =
+            FileChannel.open(
+                root.resolve(INDEX),
+                StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE,
+                StandardOpenOption.APPEND);
+      }
+      writeFully(index, ByteBuffer.wrap(lines.getBytes(StandardCharsets.UTF_8)));
+
+    } catch (IOException e) {
+      log.warn("Unable to update index in '{}': {}", root, e.getMessage());
+    }
+  }
+
+  private static void writeFully(FileChannel channel, ByteBuffer buffer) throws IOException {
+    while (buffer.hasRemaining()) channel.write(buffer);
+  }
+
+  /** Closes the index, it is reopened on the next store. */
+  @PreDestroy
+  public synchronized void close() {
+    if (index == null) return;
+
+    try {
+      index.close();
+    } catch (IOException e) {
+      log.warn("Unable to close index in '{}': {}", root, e.getMessage());
+    }
+    index = null;
+  }
+}
@@ -0,0 +1,77 @@
+package com.github.coenraadhuman.certificatedownloader.store;
+
+import com.github.coenraadhuman.certificatedownloader.scan.CipherReport;
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PreDestroy;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Objects;
+
+/**
+ * Appends the support matrix of every enumerated target to <i>ciphers.tsv</i> in the root of the
+ * CertificateStore, one line per target holding <i>host:port</i>, the time taken in milliseconds,
+ * the number of handshakes, the matrix and the error, if any.
+ */
+@Slf4j
+@Component
+@RequiredArgsConstructor
+public class CipherReportWriter {
+
+  private static final String REPORT = "ciphers.tsv";
+
+  private final CertificateStore certificateStore;
+  private FileChannel channel;
+  private Path file;
+
+  public synchronized void write(CipherReport report) {
+    String line =
+        String.join(
+                "\t",
+                report.getTarget().toString(),
+                Long.toString(report.getDurationMillis()),
+                Integer.toString(report.getHandshakes()),
+                report.getMatrix(),
+                Objects.toString(report.getError(), ""))
+            + "\n";
+
+    try {
+      if (channel == null) {
+        file = certificateStore.getRoot().resolve(REPORT);
+        Files.createDirectories(file.getParent());
+        channel =
+            FileChannel.open(
+                file,
+                StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE,
+                StandardOpenOption.APPEND);
+      }
+
+      ByteBuffer buffer = ByteBuffer.wrap(line.getBytes(StandardCharsets.UTF_8));
+      while (buffer.hasRemaining()) channel.write(buffer);
+
+    } catch (IOException e) {
+      log.warn("Unable to write cipher report to '{}': {}", file, e.getMessage());
+    }
+  }
+
+  /** Closes the report, it is reopened on the next write. */
+  @PreDestroy
+  public synchronized void close() {
+    if (channel == null) return;
+
+    try {
+      channel.close();
+    } catch (IOException e) {
+      log.warn("Unable to close cipher report '{}': {}", file, e.getMessage());
+    }
+    channel = null;
+  }
+}
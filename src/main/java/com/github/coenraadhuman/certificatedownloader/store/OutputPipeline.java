@@ -0,0 +1,146 @@
+package com.github.coenraadhuman.certificatedownloader.store;
+
+import com.github.coenraadhuman.certificatedownloader.net.KeyStoreWriter;
+import com.github.coenraadhuman.certificatedownloader.scan.ScanResult;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PreDestroy;
+import java.security.cert.X509Certificate;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import static com.github.coenraadhuman.certificatedownloader.CertificateDownloaderApplication.*;
+
+/**
+ * Decouples persisting results from capturing them. Results are handed to a bounded queue and a
+ * single writer thread takes them off in batches, storing them in the CertificateStore, the
+ * KeyStoreWriter when a keystore is requested and the ResultWriter when it is open. When storage
+ * falls behind the queue fills up and submitting blocks, which holds back the scanners rather than
+ * buffering without limit.
+ */
+@Slf4j
+@Component
+public class OutputPipeline {
+
+  private static final long POLL_MILLIS = 100;
+
+  private final CertificateStore certificateStore;
+  private final KeyStoreWriter keyStoreWriter;
+  private final ResultWriter resultWriter;
+  private final BlockingQueue<ScanResult> queue;
+  private final int batchSize;
+  private volatile boolean closing;
+  private Thread writer;
+
+  @Autowired
+  public OutputPipeline(
+      CertificateStore certificateStore,
+      KeyStoreWriter keyStoreWriter,
+      ResultWriter resultWriter,
+      @Value("${output.queue-capacity}") String queueCapacity,
+      @Value("${output.batch-size}") String batchSize) {
+    this.certificateStore = certificateStore;
+    this.keyStoreWriter = keyStoreWriter;
+    this.resultWriter = resultWriter;
+    this.queue = new ArrayBlockingQueue<>(Integer.parseInt(queueCapacity));
+    this.batchSize = Integer.parseInt(batchSize);
+  }
+
+  /**
+   * Queues the result for the writer thread, blocking while the queue is full.
+   *
+   * @param result ScanResult to store.
+   */
+  public void submit(ScanResult result) {
+    start();
+    try {
+      queue.put(result);
+    } catch (InterruptedException e) {
+      // Never drop a result, store it on the calling thread instead.
+      Thread.currentThread().interrupt();
+      persist(Collections.singletonList(result));
+    }
+  }
+
+  public int getPendingCount() {
+    return queue.size();
+  }
+
+  private synchronized void start() {
+    if (writer != null) return;
+
+    writer = new Thread(this::drain, "output-writer");
+    writer.setDaemon(true);
+    writer.start();
+  }
+
+  private void drain() {
+    List<ScanResult> batch = new ArrayList<>(batchSize);
+    while (true) {
+      ScanResult first;
+      try {
+        first = queue.poll(POLL_MILLIS, TimeUnit.MILLISECONDS);
+      } catch (InterruptedException e) {
+        first = queue.poll();
+        closing = true;
+      }
+      if (first == null) {
+        if (closing) return;
+        continue;
+      }
+
+      batch.add(first);
+      queue.drainTo(batch, batchSize - 1);
+      persist(batch);
+      batch.clear();
+    }
+  }
+
+  private void persist(List<ScanResult> batch) {
+    try {
+      if (resultWriter.isOpen()) resultWriter.write(batch);
+      if (storeEachCert) certificateStore.store(batch);
+
+      if (storeAsKeyStore) {
+        for (ScanResult result : batch) {
+          for (X509Certificate cert : result.getCertificates()) keyStoreWriter.add(cert);
+        }
+      }
+    } catch (RuntimeException e) {
+      log.warn("Unable to store batch of {} result(s): {}", batch.size(), e.getMessage());
+    }
+  }
+
+  /**
+   * Waits for every queued result to be stored, then closes the CertificateStore and flushes the
+   * KeyStoreWriter. Results submitted afterwards start a new writer thread.
+   */
+  @PreDestroy
+  public synchronized void close() {
+    if (writer != null) {
+      closing = true;
+      try {
+        writer.join();
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+      writer = null;
+      closing = false;
+    }
+
+    // Anything submitted while the writer was exiting is stored here.
+    List<ScanResult> remaining = new ArrayList<>();
+    queue.drainTo(remaining);
+    if (!remaining.isEmpty()) persist(remaining);
+
+    certificateStore.close();
+    if (keyStoreWriter.isOpen()) keyStoreWriter.close();
+  }
+}
@@ -0,0 +1,433 @@
+package com.github.coenraadhuman.certificatedownloader.store;
+
+import com.github.coenraadhuman.certificatedownloader.scan.ScanResult;
+import com.github.coenraadhuman.certificatedownloader.scan.ScanTarget;
+import com.github.coenraadhuman.certificatedownloader.utils.Fingerprints;
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PreDestroy;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.cert.CertificateException;
+import java.security.cert.CertificateFactory;
+import java.security.cert.X509Certificate;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Caches successful results in <i>results.cache</i> in the root of the CertificateStore, so that
+ * repeated runs within the time to live are served without connecting. The file is an append-only
+ * log of records holding the <i>host:port</i> key, the time of the scan, the fingerprint of the
+ * leaf and the DER encoded chain. Only the offset of the latest record of each key is held in
+ * memory, records are read on a hit. The least recently used keys are evicted beyond the maximum
+ * number of entries, and the file is compacted once it holds more superseded than live records.
+ * Reads and appends of concurrent workers proceed in parallel, only compaction excludes them. Off
+ * unless a time to live is set.
+ */
+@Slf4j
+@Component
+public class ResultCache {
+
+  private static final String CACHE = "results.cache";
+  private static final int MAGIC = 0x43445243;
+  private static final int HEADER_BYTES = 8;
+  private static final long COMPACT_MIN_BYTES = 1 << 20;
+
+  @RequiredArgsConstructor
+  private static final class Entry {
+
+    private final long offset;
+    private final int length;
+    private final long scannedAt;
+  }
+
+  private final CertificateStore certificateStore;
+  private final long ttl;
+  private final int maxEntries;
+
+  /**
+   * Shared by reads and appends, which each work on their own part of the file, and held
+   * exclusively to open, compact and close the file. The index and counters are guarded by the
+   * monitor, which is never held while waiting for this lock.
+   */
+  private final ReadWriteLock io = new ReentrantReadWriteLock();
+
+  private volatile boolean bypass;
+  private Map<String, Entry> index;
+  private FileChannel channel;
+  private Path file;
+  private long end;
+  private long liveBytes;
+  private long deadBytes;
+
+  @Autowired
+  public ResultCache(
+      CertificateStore certificateStore,
+      @Value("${cache.ttl}") String ttl,
+      @Value("${cache.max-entries}") String maxEntries) {
+    this.certificateStore = certificateStore;
+    this.ttl = Long.parseLong(ttl);
+    this.maxEntries = Integer.parseInt(maxEntries);
+  }
+
+  /**
+   * Sets whether lookups always miss, so that every target is scanned. Fresh results are still
+   * cached.
+   *
+   * @param bypass Whether to bypass the cache.
+   */
+  public void setBypass(boolean bypass) {
+    this.bypass = bypass;
+  }
+
+  public boolean isEnabled() {
+    return ttl > 0;
+  }
+
+  /**
+   * Returns the cached result of the target when it was scanned within the time to live.
+   *
+   * @param target Target to look up.
+   * @return ScanResult holding the cached chain, or null on a miss.
+   */
+  public ScanResult get(ScanTarget target) {
+    if (!isEnabled() || bypass) return null;
+
+    String key = target.toString();
+    Entry entry = null;
+    try {
+      open();
+      Lock shared = io.readLock();
+      shared.lock();
+      try {
+        synchronized (this) {
+          if (index == null) return null;
+          entry = index.get(key);
+          if (entry == null) return null;
+        }
+        if (System.currentTimeMillis() - entry.scannedAt >= ttl) {
+          discard(key, entry);
+          return null;
+        }
+
+        List<X509Certificate> certificates = read(entry, key);
+        if (certificates == null) {
+          discard(key, entry);
+          return null;
+        }
+        log.info("Served {} from the result cache.", target);
+        return ScanResult.success(target, certificates, 0);
+
+      } finally {
+        shared.unlock();
+      }
+
+    } catch (IOException | CertificateException e) {
+      log.warn("Unable to read cached result of {}: {}", target, e.getMessage());
+      if (entry != null) discard(key, entry);
+      return null;
+    }
+  }
+
+  /**
+   * Caches the result when it succeeded, replacing any earlier result of its target.
+   *
+   * @param result ScanResult to cache.
+   */
+  public void put(ScanResult result) {
+    if (!isEnabled() || !result.isSuccess() || result.getCertificates().isEmpty()) return;
+
+    String key = result.getTarget().toString();
+    try {
+      long scannedAt = System.currentTimeMillis();
+      byte[] record = encode(key, scannedAt, result.getCertificates());
+      open();
+      boolean compact;
+      Lock shared = io.readLock();
+      shared.lock();
+      try {
+        long offset;
+        synchronized (this) {
+          if (index == null) return;
+          offset = end;
+          end += record.length;
+        }
+        // Appended at its own offset, concurrent appends and reads never overlap it.
+        write(channel, record, offset);
+        synchronized (this) {
+          Entry previous = index.put(key, new Entry(offset, record.length, scannedAt));
+          liveBytes += record.length;
+          if (previous != null) retire(previous);
+          compact = isCompactable();
+        }
+
+      } finally {
+        shared.unlock();
+      }
+      if (compact) compact();
+
+    } catch (IOException | CertificateException e) {
+      log.warn("Unable to cache result of {} in '{}': {}", key, file, e.getMessage());
+    }
+  }
+
+  public synchronized int getCachedCount() {
+    return index == null ? 0 : index.size();
+  }
+
+  /** Opens the cache and indexes its records on first use, truncating a torn last record. */
+  private void open() throws IOException {
+    synchronized (this) {
+      if (channel != null) return;
+    }
+
+    Lock exclusive = io.writeLock();
+    exclusive.lock();
+    try {
+      synchronized (this) {
+        if (channel != null) return;
+
+        index(certificateStore.getRoot().resolve(CACHE));
+      }
+
+    } finally {
+      exclusive.unlock();
+    }
+  }
+
+  private void index(Path cache) throws IOException {
+    file = cache;
+    Files.createDirectories(file.getParent());
+    channel =
+        FileChannel.open(
+            file, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+    index = newIndex();
+    liveBytes = 0;
+    deadBytes = 0;
+
+    long now = System.currentTimeMillis();
+    long size = channel.size();
+    long offset = 0;
+    ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES);
+    while (offset + HEADER_BYTES <= size) {
+      header.clear();
+      read(channel, header, offset);
+      int length = header.getInt(4);
+      if (header.getInt(0) != MAGIC || length < 0 || offset + HEADER_BYTES + length > size) break;
+
+      ByteBuffer payload = ByteBuffer.allocate(length);
+      read(channel, payload, offset + HEADER_BYTES);
+      DataInputStream in = new DataInputStream(new ByteArrayInputStream(payload.array()));
+      String key = in.readUTF();
+      long scannedAt = in.readLong();
+
+      int recordLength = HEADER_BYTES + length;
+      if (now - scannedAt < ttl) {
+        Entry previous = index.put(key, new Entry(offset, recordLength, scannedAt));
+        liveBytes += recordLength;
+        if (previous != null) retire(previous);
+      } else {
+        deadBytes += recordLength;
+      }
+      offset += recordLength;
+    }
+
+    if (offset < size) {
+      log.warn("Truncating damaged result cache '{}' at {} of {} bytes.", file, offset, size);
+      channel.truncate(offset);
+    }
+    end = offset;
+    if (isCompactable()) rewrite();
+    log.info("Loaded {} cached result(s) from '{}'.", index.size(), file);
+  }
+
+  private Map<String, Entry> newIndex() {
+    return new LinkedHashMap<>(16, 0.75f, true) {
+      @Override
+      protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest) {
+        if (size() <= maxEntries) return false;
+
+        retire(eldest.getValue());
+        return true;
+      }
+    };
+  }
+
+  private void retire(Entry entry) {
+    liveBytes -= entry.length;
+    deadBytes += entry.length;
+  }
+
+  /** Discards the entry of the key, unless it was replaced by a newer one meanwhile. */
+  private synchronized void discard(String key, Entry entry) {
+    if (index != null && index.remove(key, entry)) retire(entry);
+  }
+
+  private boolean isCompactable() {
+    return deadBytes > liveBytes && deadBytes > COMPACT_MIN_BYTES;
+  }
+
+  /** Compacts the file once no read or append is in progress. */
+  private void compact() throws IOException {
+    Lock exclusive = io.writeLock();
+    exclusive.lock();
+    try {
+      synchronized (this) {
+        if (channel != null && isCompactable()) rewrite();
+      }
+
+    } finally {
+      exclusive.unlock();
+    }
+  }
+
+  /** Rewrites the live records to a new file, which then replaces the cache. */
+  private void rewrite() throws IOException {
+    Path compacted = file.resolveSibling(CACHE + ".tmp");
+    Map<String, Entry> compactedIndex = newIndex();
+    long offset = 0;
+    try (FileChannel out =
+        FileChannel.open(
+            compacted,
+            StandardOpenOption.CREATE,
+            StandardOpenOption.WRITE,
+            StandardOpenOption.TRUNCATE_EXISTING)) {
+      for (Map.Entry<String, Entry> live : index.entrySet()) {
+        Entry entry = live.getValue();
+        ByteBuffer record = ByteBuffer.allocate(entry.length);
+        read(channel, record, entry.offset);
+        write(out, record.array(), offset);
+        compactedIndex.put(live.getKey(), new Entry(offset, entry.length, entry.scannedAt));
+        offset += entry.length;
+      }
+      out.force(false);
+    }
+
+    channel.close();
+    try {
+      Files.move(
+          compacted, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    } finally {
+      // Reopened whether or not the move succeeded, the uncompacted file is still in place if not.
+      try {
+        channel = FileChannel.open(file, StandardOpenOption.READ, StandardOpenOption.WRITE);
+      } catch (IOException e) {
+        // Opened and indexed again on next use.
+        channel = null;
+        index = null;
+        throw e;
+      }
+    }
+    log.debug(
+        "Compacted result cache '{}' from {} to {} bytes.", file, liveBytes + deadBytes, offset);
+    index = compactedIndex;
+    end = offset;
+    liveBytes = offset;
+    deadBytes = 0;
+  }
+
+  /** Returns the chain of the record, or null when it does not belong to the key or is damaged. */
+  private List<X509Certificate> read(Entry entry, String key)
+      throws IOException, CertificateException {
+    ByteBuffer record = ByteBuffer.allocate(entry.length);
+    read(channel, record, entry.offset);
+    DataInputStream in =
+        new DataInputStream(
+            new ByteArrayInputStream(
+                record.array(), HEADER_BYTES, entry.length - HEADER_BYTES));
+    if (record.getInt(0) != MAGIC || !key.equals(in.readUTF())) return null;
+    in.readLong();
+    String fingerprint = in.readUTF();
+
+    CertificateFactory factory = CertificateFactory.getInstance("X.509");
+    List<X509Certificate> certificates = new ArrayList<>();
+    int count = in.readUnsignedShort();
+    for (int i = 0; i < count; i++) {
+      byte[] der = new byte[in.readInt()];
+      in.readFully(der);
+      certificates.add(
+          (X509Certificate) factory.generateCertificate(new ByteArrayInputStream(der)));
+    }
+
+    if (certificates.isEmpty() || !fingerprint.equals(Fingerprints.sha256(certificates.get(0)))) {
+      return null;
+    }
+    return certificates;
+  }
+
+  private static byte[] encode(String key, long scannedAt, List<X509Certificate> certificates)
+      throws IOException, CertificateException {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream(4096);
+    DataOutputStream out = new DataOutputStream(bytes);
+    out.writeInt(MAGIC);
+    out.writeInt(0);
+    out.writeUTF(key);
+    out.writeLong(scannedAt);
+    out.writeUTF(Fingerprints.sha256(certificates.get(0)));
+    out.writeShort(certificates.size());
+    for (X509Certificate cert : certificates) {
+      byte[] der = cert.getEncoded();
+      out.writeInt(der.length);
+      out.write(der);
+    }
+
+    byte[] record = bytes.toByteArray();
+    ByteBuffer.wrap(record).putInt(4, record.length - HEADER_BYTES);
+    return record;
+  }
+
+  private static void read(FileChannel channel, ByteBuffer buffer, long position)
+      throws IOException {
+    while (buffer.hasRemaining()) {
+      if (channel.read(buffer, position + buffer.position()) < 0) {
+        throw new IOException("Unexpected end of result cache");
+      }
+    }
+  }
+
+  private static void write(FileChannel channel, byte[] bytes, long position) throws IOException {
+    ByteBuffer buffer = ByteBuffer.wrap(bytes);
+    while (buffer.hasRemaining()) channel.write(buffer, position + buffer.position());
+  }
+
+  /** Closes the cache, it is reopened and indexed again on next use. */
+  @PreDestroy
+  public void close() {
+    Lock exclusive = io.writeLock();
+    exclusive.lock();
+    try {
+      synchronized (this) {
+        if (channel == null) return;
+
+        try {
+          channel.close();
+        } catch (IOException e) {
+          log.warn("Unable to close result cache '{}': {}", file, e.getMessage());
+        }
+        channel = null;
+        index = null;
+      }
+
+    } finally {
+      exclusive.unlock();
+    }
+  }
+}
@@ -0,0 +1,276 @@
+package com.github.coenraadhuman.certificatedownloader.store;
+
+import com.github.coenraadhuman.certificatedownloader.scan.ScanResult;
+import com.github.coenraadhuman.certificatedownloader.utils.Fingerprints;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PreDestroy;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.cert.CertificateEncodingException;
+import java.security.cert.X509Certificate;
+import java.util.Collections;
+import java.util.List;
+import java.util.Objects;
+import java.util.concurrent.TimeUnit;
+
+import static com.github.coenraadhuman.certificatedownloader.utils.StringUtils.appendJson;
+
+/**
+ * Streams one record per completed target to a file or stdout, either as a line of JSON or as a
+ * CSV row under a header. A record holds the target, the address connected to, the negotiated
+ * protocol and cipher suite, the timings and the subject, issuer, validity and SHA-256
+ * fingerprint of every certificate of the chain. Scans hand their results to the OutputPipeline,
+ * whose writer thread writes them here and flushes once per batch, so consumers can start before
+ * the scan finishes and a slow consumer holds back the queue rather than the workers.
+ */
+@Slf4j
+@Component
+public class ResultWriter {
+
+  public static final String JSON_LINES = "jsonl";
+  public static final String CSV = "csv";
+
+  private static final String CSV_HEADER =
+      "host,port,address,protocol,cipherSuite,durationMillis,connectMillis,handshakeMillis,"
+          + "error,sha256,subject,issuer,serialNumber,notBefore,notAfter\n";
+  private static final char CSV_CHAIN_SEPARATOR = '|';
+
+  private final String defaultFormat;
+  private final StringBuilder record = new StringBuilder(4096);
+  private Writer writer;
+  private boolean csv;
+  private String destination;
+
+  @Autowired
+  public ResultWriter(@Value("${results.format}") String defaultFormat) {
+    this.defaultFormat = defaultFormat;
+  }
+
+  /**
+   * Opens the file, replacing it, to write the records of the following results to.
+   *
+   * @param file Path of the file.
+   * @param format {@link #JSON_LINES} or {@link #CSV}, null for <i>results.format</i>.
+   * @throws IOException when the file could not be created.
+   */
+  public synchronized void open(Path file, String format) throws IOException {
+    Path parent = file.toAbsolutePath().getParent();
+    if (Objects.nonNull(parent)) Files.createDirectories(parent);
+
+    open(Files.newOutputStream(file), format, file.toString());
+  }
+
+  /**
+   * Writes the records of the following results to the stream, which is closed with the writer.
+   *
+   * @param out OutputStream to write to, such as stdout.
+   * @param format {@link #JSON_LINES} or {@link #CSV}, null for <i>results.format</i>.
+   * @throws IOException when the CSV header could not be written.
+   */
+  public synchronized void open(OutputStream out, String format) throws IOException {
+    open(out, format, "stdout");
+  }
+
+  private void open(OutputStream out, String format, String destination) throws IOException {
+    if (Objects.isNull(format)) format = defaultFormat;
+    if (!JSON_LINES.equals(format) && !CSV.equals(format)) {
+      out.close();
+      throw new IllegalArgumentException(
+          String.format("Result format '%s' is not one of %s or %s.", format, JSON_LINES, CSV));
+    }
+
+    close();
+    this.writer =
+        new BufferedWriter(new OutputStreamWriter(out, StandardCharsets.UTF_8), 64 * 1024);
+    this.csv = CSV.equals(format);
+    this.destination = destination;
+    if (csv) {
+      writer.write(CSV_HEADER);
+      writer.flush();
+    }
+  }
+
+  public synchronized boolean isOpen() {
+    return Objects.nonNull(writer);
+  }
+
+  /**
+   * Writes and flushes the record of the result, ignored unless the writer is open.
+   *
+   * @param result ScanResult to write.
+   */
+  public void write(ScanResult result) {
+    write(Collections.singletonList(result));
+  }
+
+  /**
+   * Writes the records of the results and flushes them once, ignored unless the writer is open.
+   * Records are never interleaved.
+   *
+   * @param results ScanResults to write.
+   */
+  public synchronized void write(List<ScanResult> results) {
+    if (Objects.isNull(writer)) return;
+
+    for (ScanResult result : results) {
+      record.setLength(0);
+      try {
+        if (csv) {
+          appendCsvRecord(record, result);
+        } else {
+          appendJsonRecord(record, result);
+        }
+        writer.append(record);
+
+      } catch (IOException | CertificateEncodingException e) {
+        log.warn(
+            "Unable to write result of {} to {}: {}",
+            result.getTarget(),
+            destination,
+            e.getMessage());
+      }
+    }
+
+    try {
+      writer.flush();
+    } catch (IOException e) {
+      log.warn("Unable to flush results to {}: {}", destination, e.getMessage());
+    }
+  }
+
+  static StringBuilder appendJsonRecord(StringBuilder json, ScanResult result)
+      throws CertificateEncodingException {
+    json.append("{\"host\":");
+    appendJson(json, result.getTarget().getHost());
+    json.append(",\"port\":").append(result.getTarget().getPort());
+    json.append(",\"address\":");
+    appendJson(json, result.getAddress());
+    json.append(",\"protocol\":");
+    appendJson(json, result.getProtocol());
+    json.append(",\"cipherSuite\":");
+    appendJson(json, result.getCipherSuite());
+    json.append(",\"durationMillis\":").append(millis(result.getDurationNanos()));
+    json.append(",\"connectMillis\":").append(millis(result.getConnectNanos()));
+    json.append(",\"handshakeMillis\":").append(millis(result.getHandshakeNanos()));
+    json.append(",\"error\":");
+    appendJson(json, result.getError());
+
+    json.append(",\"certificates\":[");
+    List<X509Certificate> certificates = result.getCertificates();
+    for (int i = 0; i < certificates.size(); i++) {
+      X509Certificate cert = certificates.get(i);
+      if (i > 0) json.append(',');
+      json.append("{\"sha256\":");
+      appendJson(json, Fingerprints.sha256(cert));
+      json.append(",\"subject\":");
+      appendJson(json, cert.getSubjectX500Principal().getName());
+      json.append(",\"issuer\":");
+      appendJson(json, cert.getIssuerX500Principal().getName());
+      json.append(",\"serialNumber\":");
+      appendJson(json, cert.getSerialNumber().toString(16));
+      json.append(",\"notBefore\":");
+      appendJson(json, cert.getNotBefore().toInstant().toString());
+      json.append(",\"notAfter\":");
+      appendJson(json, cert.getNotAfter().toInstant().toString());
+      json.append('}');
+    }
+
+    return json.append("]}\n");
+  }
+
+  /**
+   * Appends the result as a CSV row. The certificate columns hold a value per certificate of the
+   * chain, starting with the leaf and separated by '|'.
+   */
+  static StringBuilder appendCsvRecord(StringBuilder row, ScanResult result)
+      throws CertificateEncodingException {
+    appendCsv(row, result.getTarget().getHost()).append(',');
+    row.append(result.getTarget().getPort()).append(',');
+    appendCsv(row, result.getAddress()).append(',');
+    appendCsv(row, result.getProtocol()).append(',');
+    appendCsv(row, result.getCipherSuite()).append(',');
+    row.append(millis(result.getDurationNanos())).append(',');
+    row.append(millis(result.getConnectNanos())).append(',');
+    row.append(millis(result.getHandshakeNanos())).append(',');
+    appendCsv(row, result.getError());
+
+    List<X509Certificate> certificates = result.getCertificates();
+    StringBuilder column = new StringBuilder();
+    for (int field = 0; field < 6; field++) {
+      column.setLength(0);
+      for (int i = 0; i < certificates.size(); i++) {
+        if (i > 0) column.append(CSV_CHAIN_SEPARATOR);
+        column.append(field(certificates.get(i), field));
+      }
+      appendCsv(row.append(','), column);
+    }
+
+    return row.append('\n');
+  }
+
+  private static String field(X509Certificate cert, int field)
+      throws CertificateEncodingException {
+    switch (field) {
+      case 0:
+        return Fingerprints.sha256(cert);
+      case 1:
+        return cert.getSubjectX500Principal().getName();
+      case 2:
+        return cert.getIssuerX500Principal().getName();
+      case 3:
+        return cert.getSerialNumber().toString(16);
+      case 4:
+        return cert.getNotBefore().toInstant().toString();
+      default:
+        return cert.getNotAfter().toInstant().toString();
+    }
+  }
+
+  /** Appends the value, quoted when it holds a comma, quote or line break, empty for null. */
+  private static StringBuilder appendCsv(StringBuilder row, CharSequence value) {
+    if (Objects.isNull(value)) return row;
+
+    boolean quote = false;
+    for (int i = 0; i < value.length() && !quote; i++) {
+      char c = value.charAt(i);
+      quote = c == ',' || c == '"' || c == '\n' || c == '\r';
+    }
+    if (!quote) return row.append(value);
+
+    row.append('"');
+    for (int i = 0; i < value.length(); i++) {
+      char c = value.charAt(i);
+      if (c == '"') row.append('"');
+      row.append(c);
+    }
+    return row.append('"');
+  }
+
+  /** Returns the nanoseconds as milliseconds with microsecond precision. */
+  private static double millis(long nanos) {
+    return TimeUnit.NANOSECONDS.toMicros(nanos) / 1000d;
+  }
+
+  /** Flushes and closes the destination, results are ignored until opened again. */
+  @PreDestroy
+  public synchronized void close() {
+    if (Objects.isNull(writer)) return;
+
+    try {
+      writer.close();
+    } catch (IOException e) {
+      log.warn("Unable to close results {}: {}", destination, e.getMessage());
+    }
+    writer = null;
+  }
+}
@@ -1,20 +1,37 @@
 package com.github.coenraadhuman.certificatedownloader.utils;
 
 import com.github.coenraadhuman.certificatedownloader.net.AcceptAllX509TrustManager;
-import com.github.coenraadhuman.certificatedownloader.net.KeyStore;
+import com.github.coenraadhuman.certificatedownloader.net.CapturedChain;
+import com.github.coenraadhuman.certificatedownloader.net.ChainCapturedException;
+import com.github.coenraadhuman.certificatedownloader.net.DeadlineExceededException;
+import com.github.coenraadhuman.certificatedownloader.net.HostResolver;
+import com.github.coenraadhuman.certificatedownloader.net.ProtocolNegotiator;
 import com.github.coenraadhuman.certificatedownloader.net.SSLSocketFactory;
+import com.github.coenraadhuman.certificatedownloader.scan.ScanResult;
+import com.github.coenraadhuman.certificatedownloader.scan.ScanTarget;
+import com.github.coenraadhuman.certificatedownloader.store.OutputPipeline;
+import com.github.coenraadhuman.certificatedownloader.store.ResultCache;
 import lombok.RequiredArgsConstructor;
 import lombok.extern.slf4j.Slf4j;
 import org.springframework.stereotype.Component;
 
+import javax.net.ssl.SSLException;
+import javax.net.ssl.SSLPeerUnverifiedException;
 import javax.net.ssl.SSLSocket;
-import java.io.FileOutputStream;
 import java.io.IOException;
-import java.security.KeyStoreException;
-import java.security.NoSuchAlgorithmException;
-import java.security.cert.CertificateException;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.security.cert.Certificate;
 import java.security.cert.X509Certificate;
-import java.util.UUID;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Consumer;
 
 import static com.github.coenraadhuman.certificatedownloader.CertificateDownloaderApplication.*;
 
@@ -24,58 +41,280 @@ import static com.github.coenraadhuman.certificatedownloader.CertificateDownload
 public class CertDownload implements Runnable {
 
   private final SSLSocketFactory sslSocketFactory;
+  private final HostResolver hostResolver;
+  private final ProtocolNegotiator protocolNegotiator;
+  private final OutputPipeline outputPipeline;
+  private final TimerWheel timerWheel;
+  private final ResultCache resultCache;
+  private final ScanMetrics scanMetrics;
 
   /**
-   * Uses the custom SSLSocketFactory, which will use an instance of AcceptAllX509TrustManager which
-   * will capture all of the TLS/SSL certificates if a connection is made and the handshake
-   * completes.
+   * Downloads the certificates of the target given on the command line, unless the ResultCache
+   * holds a recent result of it, and stores them according to the command line options.
    */
   @Override
   public void run() {
-    log.info("Connecting to {}:{}, please wait.", host, port);
-    try (SSLSocket s = (SSLSocket) sslSocketFactory.createSocket(host, port)) {
-      s.startHandshake();
-      log.info("Connection to {}:{} completed successfully.", host, port);
-
-      AcceptAllX509TrustManager tm =
-          (AcceptAllX509TrustManager) sslSocketFactory.getTrustManagers().get(0);
-      log.info("Retrieved {} certificate(s) from server.", tm.getIssuers().size());
-
-      for (X509Certificate cert : tm.getIssuers()) {
-        if (storeEachCert) {
-          String filename =
-              System.getProperty("user.dir")
-                  + System.getProperty("file.separator")
-                  + cert.getSubjectDN().toString()
-                  + ".cer";
-          try (FileOutputStream fos = new FileOutputStream(filename)) {
-            fos.write(cert.getEncoded());
-
-          } catch (IOException e) {
-            log.warn("Unable to save certificate to filesystem '{}': {}", filename, e.getMessage());
-          }
+    ScanTarget target = new ScanTarget(host, port);
+    try {
+      ScanResult result = resultCache.get(target);
+      if (Objects.isNull(result)) {
+        result = download(target);
+        resultCache.put(result);
+      }
+      if (result.isSuccess()) store(result);
+
+    } finally {
+      // Also on failure, so that the writer thread stops and the stores are closed.
+      outputPipeline.close();
+    }
+  }
+
+  /**
+   * Uses the custom SSLSocketFactory, which will use an instance of AcceptAllX509TrustManager that
+   * captures the certificate chain against the socket of this handshake. Safe to call from
+   * multiple threads sharing the same SSLSocketFactory, results of concurrent targets are never
+   * mixed. Connects to the address the target is pinned to, or else races the addresses its host
+   * resolves to through the HostResolver, see {@link SSLSocketFactory#connect}.
+   *
+   * @param target Server to download the certificates from.
+   * @return ScanResult holding either the certificates or the reason the download failed.
+   */
+  public ScanResult download(ScanTarget target) {
+    return download(target, false);
+  }
+
+  /**
+   * Downloads the certificates of the target as {@link #download(ScanTarget)} does, optionally
+   * forcing a full handshake so that the chain is transferred again even when session resumption
+   * is enabled.
+   *
+   * @param target Server to download the certificates from.
+   * @param fullHandshake Whether to discard cached sessions with the target first.
+   * @return ScanResult holding either the certificates or the reason the download failed.
+   */
+  public ScanResult download(ScanTarget target, boolean fullHandshake) {
+    log.info("Connecting to {}, please wait.", target);
+    long start = System.nanoTime();
+    if (fullHandshake) sslSocketFactory.forgetSessions(target.getHost(), target.getPort());
+
+    ScanMetrics.Phase download = scanMetrics.start(ScanMetrics.DOWNLOAD);
+    Sockets sockets = new Sockets();
+    int targetTimeout = sslSocketFactory.getTargetTimeout();
+    TimerWheel.Timeout deadline =
+        targetTimeout > 0
+            ? timerWheel.schedule(sockets::expire, targetTimeout, TimeUnit.MILLISECONDS)
+            : null;
+    try {
+      ScanResult result =
+          protocolNegotiator.isEnabled()
+              ? protocolNegotiator.negotiate(
+                  target,
+                  (protocol, opened) -> handshake(target, protocol, start, sockets, opened))
+              : handshake(target, null, start, sockets, socket -> {});
+      download.stop();
+      return result;
+
+    } catch (IOException e) {
+      if (sockets.expired) {
+        e = new DeadlineExceededException(DeadlineExceededException.TARGET, targetTimeout);
+      }
+      download.fail(e);
+      log.warn("Connection failed to {}; {}", target, e.getMessage());
+      return ScanResult.failure(target, e, System.nanoTime() - start);
+
+    } catch (RuntimeException | Error e) {
+      download.fail(e);
+      throw e;
+
+    } finally {
+      if (Objects.nonNull(deadline)) deadline.cancel();
+    }
+  }
+
+  private ScanResult handshake(
+      ScanTarget target,
+      String protocol,
+      long start,
+      Sockets sockets,
+      Consumer<? super Socket> opened)
+      throws IOException {
+    List<InetAddress> addresses =
+        Objects.isNull(target.getAddress())
+            ? scanMetrics.time(ScanMetrics.DNS, () -> hostResolver.resolve(target.getHost()))
+            : Collections.singletonList(InetAddress.getByName(target.getAddress()));
+
+    long connecting = System.nanoTime();
+    Socket plain =
+        scanMetrics.time(
+            ScanMetrics.CONNECT,
+            () ->
+                sslSocketFactory.connect(
+                    addresses,
+                    target.getPort(),
+                    () -> {
+                      Socket socket = sockets.open();
+                      opened.accept(socket);
+                      return socket;
+                    }));
+    long handshaking = System.nanoTime();
+    SSLSocket s;
+    try {
+      s = sslSocketFactory.createSocket(plain, target.getHost(), target.getPort(), protocol);
+    } catch (IOException | RuntimeException e) {
+      sockets.close(plain);
+      throw e;
+    }
+
+    boolean closeLater = false;
+    try {
+      AcceptAllX509TrustManager tm = sslSocketFactory.getCapturingTrustManager();
+      CapturedChain captured = null;
+      boolean completed = false;
+      int handshakeTimeout = sslSocketFactory.getHandshakeTimeout();
+      AtomicBoolean expired = new AtomicBoolean();
+      TimerWheel.Timeout deadline =
+          handshakeTimeout > 0
+              ? timerWheel.schedule(
+                  () -> {
+                    expired.set(true);
+                    closeQuietly(plain);
+                  },
+                  handshakeTimeout,
+                  TimeUnit.MILLISECONDS)
+              : null;
+      ScanMetrics.Phase handshake = scanMetrics.start(ScanMetrics.HANDSHAKE);
+      long handshaken = 0;
+      try {
+        s.startHandshake();
+        handshaken = System.nanoTime();
+        completed = true;
+        handshake.stop();
+        log.info("Connection to {} completed successfully.", target);
+
+      } catch (IOException e) {
+        if (expired.get()) {
+          e = new DeadlineExceededException(DeadlineExceededException.HANDSHAKE, handshakeTimeout);
+          handshake.fail(e);
+          throw e;
+        }
+        // In chain-only mode the handshake is aborted on purpose once the chain is captured.
+        if (!(e instanceof SSLException) || !ChainCapturedException.isCauseOf(e)) {
+          handshake.fail(e);
+          throw e;
         }
+        handshaken = System.nanoTime();
+        handshake.stop();
+        log.info("Captured chain of {}, ended handshake early.", target);
+
+      } catch (RuntimeException | Error e) {
+        handshake.fail(e);
+        throw e;
+
+      } finally {
+        if (Objects.nonNull(deadline)) deadline.cancel();
+        if (Objects.nonNull(tm)) captured = tm.take(s);
       }
 
-      if (storeAsKeyStore) {
-        KeyStore ks = sslSocketFactory.getKeyStore();
-        for (X509Certificate cert : tm.getIssuers()) ks.add(cert, UUID.randomUUID().toString());
+      // The trust manager is not consulted when a cached session is resumed.
+      boolean resumed = completed && Objects.nonNull(tm) && Objects.isNull(captured);
+      if (completed) sslSocketFactory.handshakeCompleted(s, resumed);
+
+      CapturedChain chain = captured;
+      List<X509Certificate> certificates =
+          scanMetrics.time(ScanMetrics.CAPTURE, () -> certificates(s, chain));
+      if (resumed) log.info("Resumed session with {}.", target);
+      log.info("Retrieved {} certificate(s) from {}.", certificates.size(), target);
 
-        ks.save(path, password);
-        log.info("Successfully saved keystore to {} using password '{}'.", path, password);
+      ScanResult result =
+          ScanResult.success(target, certificates, System.nanoTime() - start)
+              .withConnection(
+                  plain.getInetAddress().getHostAddress(),
+                  Objects.isNull(captured) ? s.getSession().getProtocol() : captured.getProtocol(),
+                  Objects.isNull(captured)
+                      ? s.getSession().getCipherSuite()
+                      : captured.getCipherSuite(),
+                  handshaking - connecting,
+                  handshaken - handshaking);
+      // Waits for the session ticket, if any, without holding up the download.
+      closeLater = completed && sslSocketFactory.closeAfterTicket(s);
+      return result;
+
+    } finally {
+      if (closeLater) {
+        sockets.release(plain);
+      } else {
+        closeQuietly(s);
+        sockets.close(plain);
       }
+    }
+  }
 
-    } catch (IOException e) {
-      log.warn("Connection failed to {}:{}; {}", host, port, e.getMessage());
+  private static List<X509Certificate> certificates(SSLSocket s, CapturedChain captured)
+      throws SSLPeerUnverifiedException {
+    List<X509Certificate> certificates = new ArrayList<>();
+    if (Objects.nonNull(captured)) {
+      certificates.addAll(captured.getCertificates());
+      return certificates;
+    }
+
+    // Resumed sessions and custom trust managers do not capture, fall back to the session.
+    for (Certificate cert : s.getSession().getPeerCertificates()) {
+      if (cert instanceof X509Certificate) certificates.add((X509Certificate) cert);
+    }
+
+    return certificates;
+  }
+
+  /**
+   * Hands the result to the OutputPipeline, which saves the certificates to the CertificateStore
+   * and, when a keystore is requested, adds them to the KeyStoreWriter, which must have been
+   * opened by the caller. Blocks only while the pipeline is full, the caller must close the
+   * pipeline once the run completes.
+   *
+   * @param result ScanResult to store.
+   */
+  public void store(ScanResult result) {
+    outputPipeline.submit(result);
+  }
 
-    } catch (KeyStoreException e) {
-      log.warn("Unable to use built-in keystore: {}", e.getMessage());
+  private static void closeQuietly(Socket socket) {
+    try {
+      socket.close();
+    } catch (IOException ignored) {
+      // Closing only aborts whatever is blocked on the socket.
+    }
+  }
+
+  /**
+   * Plain sockets of a single download, several when racing addresses or negotiating its protocol
+   * version. Closed together from the timer thread once the target deadline expires.
+   */
+  private static final class Sockets {
 
-    } catch (NoSuchAlgorithmException e) {
-      log.warn("SSL Protocol issues detected: {}", e.getMessage());
+    private final Set<Socket> open = ConcurrentHashMap.newKeySet();
+    private volatile boolean expired;
+
+    private Socket open() {
+      Socket plain = new Socket();
+      open.add(plain);
+      // Expired in the meantime, fail the connect rather than start another one.
+      if (expired) closeQuietly(plain);
+      return plain;
+    }
+
+    private void close(Socket plain) {
+      release(plain);
+      closeQuietly(plain);
+    }
+
+    /** Stops tracking a socket that is closed elsewhere. */
+    private void release(Socket plain) {
+      open.remove(plain);
+    }
 
-    } catch (CertificateException e) {
-      log.warn("Unable to parse/open certificate: {}", e.getMessage());
+    private void expire() {
+      expired = true;
+      open.forEach(CertDownload::closeQuietly);
     }
   }
 }
@@ -0,0 +1,74 @@
+package com.github.coenraadhuman.certificatedownloader.utils;
+
+import javax.security.auth.x500.X500Principal;
+import java.security.cert.X509Certificate;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Canonicalises distinguished names using the RFC 2253 canonical form of {@link X500Principal},
+ * so that names differing only in white space, attribute case or string encoding compare equal.
+ * Canonical forms are cached per certificate and per DN string, a repeated lookup is a single map
+ * read without allocation.
+ */
+public final class DistinguishedNames {
+
+  /**
+   * Beyond this a cache is cleared rather than evicted piecemeal, keeping reads lock-free. Also
+   * bounds how many certificates the certificate caches keep reachable.
+   */
+  private static final int MAX_CACHED = 1 << 17;
+
+  private static final Map<X509Certificate, String> SUBJECTS = new ConcurrentHashMap<>();
+  private static final Map<X509Certificate, String> ISSUERS = new ConcurrentHashMap<>();
+  private static final Map<String, String> NAMES = new ConcurrentHashMap<>();
+
+  private DistinguishedNames() {}
+
+  /**
+   * Returns the canonical form of the subject of the given certificate.
+   *
+   * @param cert X509Certificate whose subject to canonicalise.
+   * @return String canonical subject DN.
+   */
+  public static String subject(X509Certificate cert) {
+    String canonical = SUBJECTS.get(cert);
+    if (canonical != null) return canonical;
+
+    return cache(SUBJECTS, cert, cert.getSubjectX500Principal().getName(X500Principal.CANONICAL));
+  }
+
+  /**
+   * Returns the canonical form of the issuer of the given certificate.
+   *
+   * @param cert X509Certificate whose issuer to canonicalise.
+   * @return String canonical issuer DN.
+   */
+  public static String issuer(X509Certificate cert) {
+    String canonical = ISSUERS.get(cert);
+    if (canonical != null) return canonical;
+
+    return cache(ISSUERS, cert, cert.getIssuerX500Principal().getName(X500Principal.CANONICAL));
+  }
+
+  /**
+   * Returns the canonical form of the given DN string.
+   *
+   * @param dn String DN, e.g. <i>CN=example.com, O=Example</i>.
+   * @return String canonical DN.
+   * @throws IllegalArgumentException when the given String is not a valid DN.
+   */
+  public static String canonical(String dn) {
+    String canonical = NAMES.get(dn);
+    if (canonical != null) return canonical;
+
+    return cache(NAMES, dn, new X500Principal(dn).getName(X500Principal.CANONICAL));
+  }
+
+  private static <K> String cache(Map<K, String> cache, K key, String canonical) {
+    if (cache.size() >= MAX_CACHED) cache.clear();
+
+    cache.put(key, canonical);
+    return canonical;
+  }
+}
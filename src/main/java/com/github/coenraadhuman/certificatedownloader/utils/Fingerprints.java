@@ -0,0 +1,50 @@
+package com.github.coenraadhuman.certificatedownloader.utils;
+
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.cert.CertificateEncodingException;
+import java.security.cert.X509Certificate;
+
+public final class Fingerprints {
+
+  private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+  private static final ThreadLocal<MessageDigest> SHA_256 =
+      ThreadLocal.withInitial(
+          () -> {
+            try {
+              return MessageDigest.getInstance("SHA-256");
+            } catch (NoSuchAlgorithmException e) {
+              throw new IllegalStateException("SHA-256 is required by every Java platform", e);
+            }
+          });
+
+  private Fingerprints() {}
+
+  /**
+   * Returns the SHA-256 fingerprint of the DER encoding of the given certificate.
+   *
+   * @param cert X509Certificate to fingerprint.
+   * @return String of 64 lower case hex characters.
+   * @throws CertificateEncodingException when the certificate could not be encoded.
+   */
+  public static String sha256(X509Certificate cert) throws CertificateEncodingException {
+    return toHex(SHA_256.get().digest(cert.getEncoded()));
+  }
+
+  /**
+   * Returns the lower case hex representation of the given bytes.
+   *
+   * @param bytes to convert.
+   * @return String twice the length of the given bytes.
+   */
+  public static String toHex(byte[] bytes) {
+    char[] chars = new char[bytes.length * 2];
+    for (int i = 0; i < bytes.length; i++) {
+      chars[i * 2] = HEX[(bytes[i] >> 4) & 0xf];
+      chars[i * 2 + 1] = HEX[bytes[i] & 0xf];
+    }
+
+    return new String(chars);
+  }
+}
@@ -0,0 +1,28 @@
+package com.github.coenraadhuman.certificatedownloader.utils;
+
+import java.nio.charset.StandardCharsets;
+import java.security.cert.CertificateEncodingException;
+import java.security.cert.X509Certificate;
+import java.util.Base64;
+
+public final class Pem {
+
+  private static final Base64.Encoder ENCODER =
+      Base64.getMimeEncoder(64, "\n".getBytes(StandardCharsets.US_ASCII));
+
+  private Pem() {}
+
+  /**
+   * Returns the PEM encoding of the given certificate, the Base64 of its DER encoding in lines of
+   * 64 characters between the BEGIN and END CERTIFICATE markers.
+   *
+   * @param cert X509Certificate to encode.
+   * @return String ending in a line feed.
+   * @throws CertificateEncodingException when the certificate could not be encoded.
+   */
+  public static String encode(X509Certificate cert) throws CertificateEncodingException {
+    return "-----BEGIN CERTIFICATE-----\n"
+        + ENCODER.encodeToString(cert.getEncoded())
+        + "\n-----END CERTIFICATE-----\n";
+  }
+}
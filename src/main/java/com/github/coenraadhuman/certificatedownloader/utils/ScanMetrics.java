@@ -0,0 +1,238 @@
+package com.github.coenraadhuman.certificatedownloader.utils;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import io.micrometer.prometheus.PrometheusConfig;
+import io.micrometer.prometheus.PrometheusMeterRegistry;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PreDestroy;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Times each phase of a scan, from resolving the host to saving the keystore, in a Prometheus
+ * registry. Every phase has a timer per outcome, published with client side percentiles and a
+ * percentile histogram, an error counter per cause and a gauge of the phases in flight. The
+ * registry is served by the HTTP service and, when a file is set, written to it on shutdown.
+ */
+@Slf4j
+@Component
+public class ScanMetrics {
+
+  public static final String DOWNLOAD = "download";
+  public static final String DNS = "dns";
+  public static final String PROBE = "probe";
+  public static final String CONNECT = "connect";
+  public static final String HANDSHAKE = "handshake";
+  public static final String CAPTURE = "capture";
+  public static final String WRITE = "write";
+  public static final String KEYSTORE_SAVE = "keystore-save";
+
+  private static final String[] PHASES = {
+    DOWNLOAD, DNS, PROBE, CONNECT, HANDSHAKE, CAPTURE, WRITE, KEYSTORE_SAVE
+  };
+  private static final String SUCCESS = "success";
+  private static final String FAILURE = "failure";
+
+  /** A phase of a scan, timed from {@link #start(String)} until stopped or failed. */
+  public final class Phase {
+
+    private final String name;
+    private final Timer.Sample sample;
+    private boolean ended;
+
+    private Phase(String name) {
+      this.name = name;
+      this.sample = Timer.start(registry);
+      inFlight.get(name).incrementAndGet();
+    }
+
+    /** Records the phase as succeeded, ignored once the phase ended. */
+    public void stop() {
+      end(SUCCESS);
+    }
+
+    /**
+     * Records the phase as failed and counts the cause, ignored once the phase ended.
+     *
+     * @param cause Throwable the phase failed with.
+     */
+    public void fail(Throwable cause) {
+      if (end(FAILURE)) errors(name, cause.getClass().getSimpleName()).increment();
+    }
+
+    private boolean end(String outcome) {
+      if (ended) return false;
+
+      ended = true;
+      inFlight.get(name).decrementAndGet();
+      sample.stop(timer(name, outcome));
+      return true;
+    }
+  }
+
+  /** An action of a timed phase, see {@link #time(String, Action)}. */
+  @FunctionalInterface
+  public interface Action<T, E extends Exception> {
+
+    T run() throws E;
+  }
+
+  private final PrometheusMeterRegistry registry;
+  private final double[] percentiles;
+  private final boolean histogram;
+  private final Map<String, AtomicInteger> inFlight = new ConcurrentHashMap<>();
+  private final Map<String, Timer> timers = new ConcurrentHashMap<>();
+  private final Map<String, Counter> errors = new ConcurrentHashMap<>();
+  private Path file;
+
+  @Autowired
+  public ScanMetrics(
+      @Value("${metrics.percentiles}") String[] percentiles,
+      @Value("${metrics.histogram}") String histogram,
+      @Value("${metrics.file}") String file) {
+    this.registry = new PrometheusMeterRegistry(PrometheusConfig.DEFAULT);
+    this.percentiles = Arrays.stream(percentiles).mapToDouble(Double::parseDouble).toArray();
+    this.histogram = Boolean.parseBoolean(histogram);
+    this.file = file.isEmpty() ? null : Paths.get(file);
+
+    for (String phase : PHASES) {
+      AtomicInteger count = new AtomicInteger();
+      inFlight.put(phase, count);
+      Gauge.builder("scan.in.flight", count, AtomicInteger::get)
+          .description("Scan phases in progress")
+          .tag("phase", phase)
+          .register(registry);
+    }
+  }
+
+  /**
+   * Sets the file the metrics are written to on shutdown, in the Prometheus text format.
+   *
+   * @param file Path of the file, null to not write one.
+   */
+  public synchronized void setFile(Path file) {
+    this.file = file;
+  }
+
+  public MeterRegistry getRegistry() {
+    return registry;
+  }
+
+  /**
+   * Starts timing a phase, which must then be stopped or failed exactly once.
+   *
+   * @param phase One of the phase constants.
+   * @return Phase to end.
+   */
+  public Phase start(String phase) {
+    return new Phase(phase);
+  }
+
+  /**
+   * Times the action as the given phase, failing the phase when it throws.
+   *
+   * @param phase One of the phase constants.
+   * @param action Action to run.
+   * @return Result of the action.
+   * @throws E when the action does.
+   */
+  public <T, E extends Exception> T time(String phase, Action<T, E> action) throws E {
+    Phase timed = start(phase);
+    try {
+      T result = action.run();
+      timed.stop();
+      return result;
+
+    } catch (Exception | Error e) {
+      timed.fail(e);
+      throw e;
+    }
+  }
+
+  private Timer timer(String phase, String outcome) {
+    return timers.computeIfAbsent(
+        phase + '/' + outcome,
+        key ->
+            Timer.builder("scan.phase")
+                .description("Time taken by each phase of a scan")
+                .tag("phase", phase)
+                .tag("outcome", outcome)
+                .publishPercentiles(percentiles)
+                .publishPercentileHistogram(histogram)
+                .register(registry));
+  }
+
+  private Counter errors(String phase, String cause) {
+    return errors.computeIfAbsent(
+        phase + '/' + cause,
+        key ->
+            Counter.builder("scan.errors")
+                .description("Failed scan phases by cause")
+                .tag("phase", phase)
+                .tag("cause", cause)
+                .register(registry));
+  }
+
+  /**
+   * Returns the metrics in the Prometheus text format.
+   *
+   * @return Scrape of the registry.
+   */
+  public String scrape() {
+    return registry.scrape();
+  }
+
+  /**
+   * Writes the metrics to the given file in the Prometheus text format, replacing it at once.
+   *
+   * @param target Path of the file.
+   * @throws IOException when the file could not be written.
+   */
+  public void dump(Path target) throws IOException {
+    Path absolute = target.toAbsolutePath();
+    Files.createDirectories(absolute.getParent());
+    Path temp =
+        Files.createTempFile(absolute.getParent(), absolute.getFileName().toString(), ".tmp");
+    try {
+      Files.write(temp, scrape().getBytes(StandardCharsets.UTF_8));
+      try {
+        Files.move(
+            temp, absolute, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+      } catch (AtomicMoveNotSupportedException e) {
+        Files.move(temp, absolute, StandardCopyOption.REPLACE_EXISTING);
+      }
+
+    } finally {
+      Files.deleteIfExists(temp);
+    }
+  }
+
+  /** Writes the metrics to the file when one is set. */
+  @PreDestroy
+  public synchronized void close() {
+    if (file == null) return;
+
+    try {
+      dump(file);
+      log.info("Wrote metrics to '{}'.", file);
+    } catch (IOException e) {
+      log.warn("Unable to write metrics to '{}': {}", file, e.getMessage());
+    }
+  }
+}
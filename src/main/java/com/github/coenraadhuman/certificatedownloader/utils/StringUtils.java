@@ -68,16 +68,24 @@ public final class StringUtils {
   }
 
   /**
-   * Attempts to remove all white spaces from the given String.
+   * Removes all spaces from the given String.
    *
    * @param input String to strip.
-   * @return String which is stripped of all white spaces.
+   * @return String which is stripped of all spaces.
+   * @deprecated Stripping spaces does not make distinguished names comparable, use {@link
+   *     DistinguishedNames#canonical(String)} instead.
    */
+  @Deprecated
   public static final String removeWhiteSpaces(String input) {
-    input = input.trim();
-    StringBuffer buffer = new StringBuffer();
-    for (int i = 0; i < input.length(); i++)
-      if (!input.substring(i, 1).equals(" ")) buffer.append(input, i, 1);
+    int space = input.indexOf(' ');
+    if (space < 0) return input;
+
+    StringBuilder buffer = new StringBuilder(input.length() - 1);
+    buffer.append(input, 0, space);
+    for (int i = space + 1; i < input.length(); i++) {
+      char c = input.charAt(i);
+      if (c != ' ') buffer.append(c);
+    }
 
     return buffer.toString();
   }
@@ -112,6 +120,48 @@ public final class StringUtils {
     return buffer.toString();
   }
 
+  /**
+   * Appends the given String to the buffer as a quoted JSON string, escaping quotes, backslashes
+   * and control characters.
+   *
+   * @param buffer StringBuilder to append to.
+   * @param value String to append, null appends the JSON null literal.
+   * @return The given StringBuilder.
+   */
+  public static final StringBuilder appendJson(StringBuilder buffer, String value) {
+    if (value == null) return buffer.append("null");
+
+    buffer.append('"');
+    for (int i = 0; i < value.length(); i++) {
+      char c = value.charAt(i);
+      switch (c) {
+        case '"':
+          buffer.append("\\\"");
+          break;
+        case '\\':
+          buffer.append("\\\\");
+          break;
+        case '\n':
+          buffer.append("\\n");
+          break;
+        case '\r':
+          buffer.append("\\r");
+          break;
+        case '\t':
+          buffer.append("\\t");
+          break;
+        default:
+          if (c < 0x20) {
+            buffer.append(String.format("\\u%04x", (int) c));
+          } else {
+            buffer.append(c);
+          }
+      }
+    }
+
+    return buffer.append('"');
+  }
+
   public static final String toString(Exception e) {
     StringWriter writer = new StringWriter();
     e.printStackTrace(new PrintWriter(writer));
@@ -0,0 +1,145 @@
+package com.github.coenraadhuman.certificatedownloader.utils;
+
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PreDestroy;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Hashed timer wheel shared by every connection, so that deadlines cost an entry in a bucket
+ * rather than a thread or a scheduled executor task each. Timeouts fire up to one tick late and
+ * their tasks run on the single timer thread, so they must be short, such as closing a socket or
+ * handing work to another thread. Scheduling and cancelling are lock free, only the timer thread
+ * touches the buckets.
+ */
+@Slf4j
+@Component
+public class TimerWheel {
+
+  private static final int BUCKETS = 512;
+
+  /** A scheduled task that can be cancelled until it has run. */
+  public static final class Timeout {
+
+    private final Runnable task;
+    private final long deadline;
+    private volatile boolean cancelled;
+    private long rounds;
+
+    private Timeout(Runnable task, long deadline) {
+      this.task = task;
+      this.deadline = deadline;
+    }
+
+    public void cancel() {
+      cancelled = true;
+    }
+
+    public boolean isCancelled() {
+      return cancelled;
+    }
+  }
+
+  private final long tickNanos;
+  private final Queue<Timeout> scheduled = new ConcurrentLinkedQueue<>();
+  @SuppressWarnings("unchecked")
+  private final ArrayDeque<Timeout>[] buckets = new ArrayDeque[BUCKETS];
+  private volatile Thread worker;
+  private volatile boolean running;
+  private long startTime;
+  private long tick;
+
+  @Autowired
+  public TimerWheel(@Value("${timer.tick}") String tick) {
+    this.tickNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(1, Long.parseLong(tick)));
+    for (int i = 0; i < BUCKETS; i++) buckets[i] = new ArrayDeque<>();
+  }
+
+  /**
+   * Schedules the task to run once the delay has passed, starting the timer thread on first use.
+   *
+   * @param task Runnable to run on the timer thread.
+   * @param delay Time to wait, 0 or less to run on the next tick.
+   * @param unit TimeUnit of the delay.
+   * @return Timeout to cancel the task with.
+   */
+  public Timeout schedule(Runnable task, long delay, TimeUnit unit) {
+    // Only the first schedule, or the first after close, takes the monitor to start the thread.
+    if (worker == null) start();
+    Timeout timeout = new Timeout(task, System.nanoTime() + unit.toNanos(Math.max(0, delay)));
+    scheduled.add(timeout);
+    return timeout;
+  }
+
+  private synchronized void start() {
+    if (worker != null) return;
+
+    running = true;
+    startTime = System.nanoTime();
+    Thread thread = new Thread(this::run, "timer-wheel");
+    thread.setDaemon(true);
+    thread.start();
+    worker = thread;
+  }
+
+  private void run() {
+    while (running) {
+      long tickDeadline = startTime + (tick + 1) * tickNanos;
+      long sleep;
+      while ((sleep = tickDeadline - System.nanoTime()) > 0 && running) {
+        LockSupport.parkNanos(this, sleep);
+      }
+
+      transfer();
+      expire(buckets[(int) (tick & (BUCKETS - 1))]);
+      tick++;
+    }
+  }
+
+  /** Moves newly scheduled timeouts into the bucket of the tick they are due on. */
+  private void transfer() {
+    Timeout timeout;
+    while ((timeout = scheduled.poll()) != null) {
+      if (timeout.cancelled) continue;
+
+      long due = Math.max(tick, (timeout.deadline - startTime + tickNanos - 1) / tickNanos);
+      timeout.rounds = (due - tick) / BUCKETS;
+      buckets[(int) (due & (BUCKETS - 1))].add(timeout);
+    }
+  }
+
+  private void expire(ArrayDeque<Timeout> bucket) {
+    Iterator<Timeout> iterator = bucket.iterator();
+    while (iterator.hasNext()) {
+      Timeout timeout = iterator.next();
+      if (timeout.cancelled) {
+        iterator.remove();
+      } else if (timeout.rounds <= 0) {
+        iterator.remove();
+        try {
+          timeout.task.run();
+        } catch (RuntimeException e) {
+          log.warn("Timer task failed: {}", e.getMessage());
+        }
+      } else {
+        timeout.rounds--;
+      }
+    }
+  }
+
+  /** Stops the timer thread, pending timeouts never fire. */
+  @PreDestroy
+  public synchronized void close() {
+    running = false;
+    if (worker != null) LockSupport.unpark(worker);
+    worker = null;
+  }
+}
@@ -0,0 +1,80 @@
+package com.github.coenraadhuman.certificatedownloader.utils;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Limits a rate of events, allowing bursts of up to a tenth of a second worth of them. Tokens are
+ * reserved ahead of time, so waiting callers are served in order rather than racing each other
+ * when tokens are refilled.
+ */
+public class TokenBucket {
+
+  private static final long BURST_NANOS = TimeUnit.MILLISECONDS.toNanos(100);
+
+  private double rate;
+  private double burst;
+  private double tokens;
+  private long refilledAt;
+
+  /**
+   * Creates a full bucket.
+   *
+   * @param rate Events per second, greater than 0.
+   */
+  public TokenBucket(double rate) {
+    setRate(rate);
+    this.tokens = burst;
+    this.refilledAt = System.nanoTime();
+  }
+
+  /**
+   * Changes the rate of the bucket, keeping the tokens it holds up to the new burst.
+   *
+   * @param rate Events per second, greater than 0.
+   */
+  public synchronized void setRate(double rate) {
+    if (!(rate > 0)) throw new IllegalArgumentException("Rate must be greater than 0: " + rate);
+
+    refill(System.nanoTime());
+    this.rate = rate;
+    this.burst = Math.max(1, rate * BURST_NANOS / 1e9);
+    this.tokens = Math.min(tokens, burst);
+  }
+
+  public synchronized double getRate() {
+    return rate;
+  }
+
+  /**
+   * Reserves a token, which is available once the returned time has passed.
+   *
+   * @return Nanoseconds to wait before the event, 0 when it may happen right away.
+   */
+  public synchronized long reserve() {
+    long now = System.nanoTime();
+    refill(now);
+    tokens -= 1;
+
+    return tokens >= 0 ? 0 : (long) (-tokens / rate * 1e9);
+  }
+
+  /** Reserves a token and waits until it is available. */
+  public void acquire() {
+    long wait = reserve();
+    long until = System.nanoTime() + wait;
+    while (wait > 0) {
+      LockSupport.parkNanos(wait);
+      if (Thread.interrupted()) {
+        Thread.currentThread().interrupt();
+        return;
+      }
+      wait = until - System.nanoTime();
+    }
+  }
+
+  private void refill(long now) {
+    if (rate > 0) tokens = Math.min(burst, tokens + (now - refilledAt) * rate / 1e9);
+    refilledAt = now;
+  }
+}
@@ -0,0 +1,111 @@
+package com.github.coenraadhuman.certificatedownloader.benchmark;
+
+import com.github.coenraadhuman.certificatedownloader.net.HostResolver;
+import com.github.coenraadhuman.certificatedownloader.net.SSLSocketFactory;
+import com.github.coenraadhuman.certificatedownloader.scan.ScanResult;
+import com.github.coenraadhuman.certificatedownloader.scan.ScanTarget;
+import com.github.coenraadhuman.certificatedownloader.support.LocalTlsServer;
+import com.github.coenraadhuman.certificatedownloader.support.TestCertDownloads;
+import com.github.coenraadhuman.certificatedownloader.utils.CertDownload;
+import com.github.coenraadhuman.certificatedownloader.utils.ScanMetrics;
+import com.github.coenraadhuman.certificatedownloader.utils.TimerWheel;
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the latency and client CPU time of a single blocking download with a full handshake
+ * against one that ends as soon as the chain is captured. Latency percentiles come from the sample
+ * mode, the client CPU time per handshake is reported as the {@code cpuMicrosPerHandshake}
+ * secondary result.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SampleTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+public class ChainOnlyBenchmark {
+
+  private static final ThreadMXBean THREADS = ManagementFactory.getThreadMXBean();
+
+  @Param({"false", "true"})
+  public boolean chainOnly;
+
+  private LocalTlsServer server;
+  private ScanTarget target;
+  private CertDownload certDownload;
+
+  @Setup(Level.Trial)
+  public void setUp() throws Exception {
+    server = new LocalTlsServer();
+    target = new ScanTarget(server.getHost(), server.getPort());
+
+    SSLSocketFactory sslSocketFactory = new SSLSocketFactory("10000", new String[] {"TLS"});
+    sslSocketFactory.init();
+    HostResolver hostResolver = new HostResolver("300000", "30000", "100000", "16");
+    TimerWheel timerWheel = new TimerWheel("10");
+    ScanMetrics scanMetrics = new ScanMetrics(new String[0], "false", "");
+    sslSocketFactory.setChainOnly(chainOnly);
+    certDownload =
+        TestCertDownloads.create(sslSocketFactory, hostResolver, timerWheel, scanMetrics);
+  }
+
+  @TearDown(Level.Trial)
+  public void tearDown() throws Exception {
+    server.close();
+  }
+
+  /** Client CPU time, the blocking path performs the whole handshake on the calling thread. */
+  @State(Scope.Thread)
+  @AuxCounters(AuxCounters.Type.EVENTS)
+  public static class CpuTime {
+
+    private long cpuNanos;
+    private long handshakes;
+
+    @Setup(Level.Iteration)
+    public void reset() {
+      cpuNanos = 0;
+      handshakes = 0;
+    }
+
+    public double cpuMicrosPerHandshake() {
+      return handshakes == 0 ? 0 : cpuNanos / 1000d / handshakes;
+    }
+  }
+
+  @Benchmark
+  public ScanResult download(CpuTime cpuTime) {
+    long start = THREADS.getCurrentThreadCpuTime();
+    ScanResult result = certDownload.download(target);
+    cpuTime.cpuNanos += THREADS.getCurrentThreadCpuTime() - start;
+    cpuTime.handshakes++;
+
+    if (!result.isSuccess()) throw new IllegalStateException(result.getError());
+    return result;
+  }
+
+  public static void main(String[] args) throws RunnerException {
+    new Runner(new OptionsBuilder().include(ChainOnlyBenchmark.class.getSimpleName()).build())
+        .run();
+  }
+}
@@ -0,0 +1,83 @@
+package com.github.coenraadhuman.certificatedownloader.benchmark;
+
+import com.github.coenraadhuman.certificatedownloader.support.TestCertificates;
+import com.github.coenraadhuman.certificatedownloader.utils.DistinguishedNames;
+import com.github.coenraadhuman.certificatedownloader.utils.StringUtils;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import javax.security.auth.x500.X500Principal;
+import java.security.cert.X509Certificate;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares the per entry subject normalisation previously done by KeyStore lookups, stripping
+ * spaces from {@code getSubjectDN().toString()}, with the canonical forms of {@link
+ * DistinguishedNames}, both uncached and cached. Run with {@code -prof gc} to compare allocation.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@SuppressWarnings("deprecation")
+public class DistinguishedNamesBenchmark {
+
+  private X509Certificate cert;
+  private String dn;
+
+  @Setup(Level.Trial)
+  public void setUp() throws Exception {
+    dn = "CN=www.example.com, OU=Web Services, O=Example Holdings";
+    cert = TestCertificates.selfSigned(dn, TestCertificates.generateKeyPair(), 30);
+  }
+
+  @Benchmark
+  public String removeWhiteSpacesOfSubject() {
+    return StringUtils.removeWhiteSpaces(cert.getSubjectDN().toString());
+  }
+
+  @Benchmark
+  public String canonicalSubjectUncached() {
+    return cert.getSubjectX500Principal().getName(X500Principal.CANONICAL);
+  }
+
+  @Benchmark
+  public String canonicalSubjectCached() {
+    return DistinguishedNames.subject(cert);
+  }
+
+  @Benchmark
+  public String removeWhiteSpacesOfString() {
+    return StringUtils.removeWhiteSpaces(dn);
+  }
+
+  @Benchmark
+  public String canonicalStringUncached() {
+    return new X500Principal(dn).getName(X500Principal.CANONICAL);
+  }
+
+  @Benchmark
+  public String canonicalStringCached() {
+    return DistinguishedNames.canonical(dn);
+  }
+
+  public static void main(String[] args) throws RunnerException {
+    new Runner(
+            new OptionsBuilder().include(DistinguishedNamesBenchmark.class.getSimpleName()).build())
+        .run();
+  }
+}
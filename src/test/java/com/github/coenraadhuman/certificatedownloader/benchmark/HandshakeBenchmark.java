@@ -0,0 +1,119 @@
+package com.github.coenraadhuman.certificatedownloader.benchmark;
+
+import com.github.coenraadhuman.certificatedownloader.net.NioHandshakeEngine;
+import com.github.coenraadhuman.certificatedownloader.net.HostResolver;
+import com.github.coenraadhuman.certificatedownloader.net.SSLSocketFactory;
+import com.github.coenraadhuman.certificatedownloader.scan.ScanResult;
+import com.github.coenraadhuman.certificatedownloader.scan.ScanTarget;
+import com.github.coenraadhuman.certificatedownloader.support.LocalTlsServer;
+import com.github.coenraadhuman.certificatedownloader.support.TestCertDownloads;
+import com.github.coenraadhuman.certificatedownloader.utils.CertDownload;
+import com.github.coenraadhuman.certificatedownloader.utils.ScanMetrics;
+import com.github.coenraadhuman.certificatedownloader.utils.TimerWheel;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares the blocking, thread per handshake path of {@link CertDownload} with the {@link
+ * NioHandshakeEngine} by downloading the chain of a local TLS server {@code concurrency} times in
+ * parallel. Each operation is one such batch, both paths must return every certificate.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+public class HandshakeBenchmark {
+
+  @Param({"1", "100", "1000"})
+  public int concurrency;
+
+  private LocalTlsServer server;
+  private ScanTarget target;
+  private CertDownload certDownload;
+  private NioHandshakeEngine nioHandshakeEngine;
+  private ExecutorService executor;
+
+  @Setup(Level.Trial)
+  public void setUp() throws Exception {
+    server = new LocalTlsServer();
+    target = new ScanTarget(server.getHost(), server.getPort());
+
+    SSLSocketFactory sslSocketFactory = new SSLSocketFactory("10000", new String[] {"TLS"});
+    sslSocketFactory.init();
+    HostResolver hostResolver = new HostResolver("300000", "30000", "100000", "16");
+    TimerWheel timerWheel = new TimerWheel("10");
+    ScanMetrics scanMetrics = new ScanMetrics(new String[0], "false", "");
+    certDownload =
+        TestCertDownloads.create(sslSocketFactory, hostResolver, timerWheel, scanMetrics);
+    nioHandshakeEngine =
+        new NioHandshakeEngine(sslSocketFactory, hostResolver, timerWheel, scanMetrics, "0");
+    executor = Executors.newFixedThreadPool(concurrency);
+  }
+
+  @TearDown(Level.Trial)
+  public void tearDown() throws Exception {
+    executor.shutdownNow();
+    nioHandshakeEngine.close();
+    server.close();
+  }
+
+  @Benchmark
+  public int blocking() {
+    List<CompletableFuture<ScanResult>> results = new ArrayList<>(concurrency);
+    for (int i = 0; i < concurrency; i++) {
+      results.add(CompletableFuture.supplyAsync(() -> certDownload.download(target), executor));
+    }
+
+    return join(results);
+  }
+
+  @Benchmark
+  public int nonBlocking() {
+    List<CompletableFuture<ScanResult>> results = new ArrayList<>(concurrency);
+    for (int i = 0; i < concurrency; i++) results.add(nioHandshakeEngine.handshake(target));
+
+    return join(results);
+  }
+
+  private int join(List<CompletableFuture<ScanResult>> results) {
+    int certificates = 0;
+    for (CompletableFuture<ScanResult> future : results) {
+      ScanResult result = future.join();
+      if (result.getCertificates().size() != server.getChain().length) {
+        throw new IllegalStateException(
+            String.format("Incomplete chain from %s: %s", target, result.getError()));
+      }
+      certificates += result.getCertificates().size();
+    }
+
+    return certificates;
+  }
+
+  public static void main(String[] args) throws RunnerException {
+    new Runner(new OptionsBuilder().include(HandshakeBenchmark.class.getSimpleName()).build())
+        .run();
+  }
+}
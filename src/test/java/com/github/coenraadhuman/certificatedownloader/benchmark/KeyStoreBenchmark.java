@@ -0,0 +1,122 @@
+package com.github.coenraadhuman.certificatedownloader.benchmark;
+
+import com.github.coenraadhuman.certificatedownloader.net.InMemoryKeyStore;
+import com.github.coenraadhuman.certificatedownloader.net.KeyStore;
+import com.github.coenraadhuman.certificatedownloader.support.TestCertificates;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.KeyPair;
+import java.security.cert.X509Certificate;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the lookups of {@link KeyStore} against stores of {@code size} certificates issued by a
+ * common root, so that lookups by issuer and subject hit indexes of realistic shape. The
+ * certificates are left unsigned, as signing 100k of them would dominate the run. {@link
+ * #addAndRemove()} keeps the size of the store constant, {@link #save()} serializes all of it.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class KeyStoreBenchmark {
+
+  private static final char[] PASSWORD = "benchmark".toCharArray();
+
+  @Param({"10", "1000", "100000"})
+  public int size;
+
+  private KeyStore keyStore;
+  private List<X509Certificate> stored;
+  private X509Certificate extra;
+  private Path directory;
+
+  @Setup(Level.Trial)
+  public void setUp() throws Exception {
+    KeyPair leaf = TestCertificates.generateKeyPair();
+    keyStore = new InMemoryKeyStore();
+    stored = new ArrayList<>(size);
+    for (int i = 0; i < size; i++) {
+      X509Certificate cert =
+          TestCertificates.unsigned(
+              "CN=host" + i + ".example.com, O=Benchmark",
+              leaf.getPublic(),
+              "CN=Benchmark Root, O=Benchmark",
+              30);
+      keyStore.add(cert, "host" + i);
+      stored.add(cert);
+    }
+    extra =
+        TestCertificates.unsigned(
+            "CN=extra.example.com, O=Benchmark",
+            leaf.getPublic(),
+            "CN=Benchmark Root, O=Benchmark",
+            30);
+    directory = Files.createTempDirectory("keystore-benchmark");
+  }
+
+  @TearDown(Level.Trial)
+  public void tearDown() throws Exception {
+    Files.deleteIfExists(directory.resolve("benchmark.p12"));
+    Files.deleteIfExists(directory);
+  }
+
+  private X509Certificate any() {
+    return stored.get(ThreadLocalRandom.current().nextInt(size));
+  }
+
+  @Benchmark
+  public boolean addAndRemove() {
+    return keyStore.add(extra, "extra") && keyStore.remove(extra);
+  }
+
+  @Benchmark
+  public boolean containsCertificate() {
+    return keyStore.contains(any());
+  }
+
+  @Benchmark
+  public boolean containsSubject() {
+    return keyStore.contains(any().getSubjectX500Principal().getName());
+  }
+
+  @Benchmark
+  public int getCertificatesBySubject() {
+    return keyStore.getCertificatesBySubject(any().getSubjectX500Principal().getName()).size();
+  }
+
+  @Benchmark
+  @BenchmarkMode(Mode.SingleShotTime)
+  @OutputTimeUnit(TimeUnit.MILLISECONDS)
+  @Warmup(iterations = 1)
+  @Measurement(iterations = 5)
+  public void save() throws Exception {
+    keyStore.save(directory.resolve("benchmark.p12").toString(), PASSWORD);
+  }
+
+  public static void main(String[] args) throws RunnerException {
+    new Runner(new OptionsBuilder().include(KeyStoreBenchmark.class.getSimpleName()).build()).run();
+  }
+}
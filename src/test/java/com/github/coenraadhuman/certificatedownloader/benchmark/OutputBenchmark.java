@@ -0,0 +1,158 @@
+package com.github.coenraadhuman.certificatedownloader.benchmark;
+
+import com.github.coenraadhuman.certificatedownloader.scan.ScanResult;
+import com.github.coenraadhuman.certificatedownloader.scan.ScanTarget;
+import com.github.coenraadhuman.certificatedownloader.store.CertificateStore;
+import com.github.coenraadhuman.certificatedownloader.support.TestCertificates;
+import com.github.coenraadhuman.certificatedownloader.utils.Pem;
+import com.github.coenraadhuman.certificatedownloader.utils.ScanMetrics;
+import com.github.coenraadhuman.certificatedownloader.utils.StringUtils;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.GeneralSecurityException;
+import java.security.KeyPair;
+import java.security.cert.CertificateEncodingException;
+import java.security.cert.X509Certificate;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+/**
+ * Measures the {@link StringUtils} helpers on the protocol lists and names they are used with,
+ * encoding certificates as PEM and storing new certificates with {@link CertificateStore}. Every
+ * {@link #storeNewCertificate} writes a file of a certificate issued before the invocation, the
+ * store is emptied after each iteration.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class OutputBenchmark {
+
+  /** A certificate not yet stored, issued outside of the measured invocation. */
+  @State(Scope.Thread)
+  public static class Fresh {
+
+    private static final KeyPair KEY;
+
+    static {
+      try {
+        KEY = TestCertificates.generateKeyPair();
+      } catch (GeneralSecurityException e) {
+        throw new IllegalStateException(e);
+      }
+    }
+
+    private int issued;
+    private ScanResult result;
+
+    @Setup(Level.Invocation)
+    public void issue() throws GeneralSecurityException {
+      X509Certificate cert = TestCertificates.selfSigned("CN=store" + issued++, KEY, 30);
+      result =
+          ScanResult.success(
+              new ScanTarget("www.example.com", 443), Collections.singletonList(cert), 0);
+    }
+  }
+
+  private String[] protocols;
+  private String subject;
+  private X509Certificate cert;
+  private CertificateStore certificateStore;
+  private Path directory;
+
+  @Setup(Level.Trial)
+  public void setUp() throws Exception {
+    protocols = new String[] {"SSL", "SSLv2", "SSLv3", "TLS", "TLSv1", "TLSv1.1", "TLSv1.2"};
+    subject = "CN=www.example.com, OU=Web Services, O=Example \"Holdings\"\n";
+    cert =
+        TestCertificates.selfSigned(
+            "CN=www.example.com, O=Benchmark", TestCertificates.generateKeyPair(), 30);
+    directory = Files.createTempDirectory("output-benchmark");
+    certificateStore =
+        new CertificateStore(
+            directory.toString(), new ScanMetrics(new String[0], "false", ""));
+  }
+
+  @TearDown(Level.Iteration)
+  public void clear() throws IOException {
+    certificateStore.close();
+    try (Stream<Path> files = Files.walk(directory)) {
+      files
+          .sorted(Comparator.reverseOrder())
+          .filter(path -> !path.equals(directory))
+          .forEach(path -> path.toFile().delete());
+    }
+  }
+
+  @TearDown(Level.Trial)
+  public void tearDown() throws IOException {
+    clear();
+    Files.deleteIfExists(directory);
+  }
+
+  @Benchmark
+  public String arrayToString() {
+    return StringUtils.arrayToString(protocols);
+  }
+
+  @Benchmark
+  public String[] appendToArray() {
+    return StringUtils.appendToArray(protocols, "TLSv1.3");
+  }
+
+  @Benchmark
+  public boolean contains() {
+    return StringUtils.contains(protocols, "TLSv1.2");
+  }
+
+  @Benchmark
+  public String toHex() {
+    return StringUtils.toHex(subject);
+  }
+
+  @Benchmark
+  public String toBinary() {
+    return StringUtils.toBinary(subject);
+  }
+
+  @Benchmark
+  public int appendJson() {
+    return StringUtils.appendJson(new StringBuilder(128), subject).length();
+  }
+
+  @Benchmark
+  public String pem() throws CertificateEncodingException {
+    return Pem.encode(cert);
+  }
+
+  @Benchmark
+  @OutputTimeUnit(TimeUnit.MICROSECONDS)
+  public void storeNewCertificate(Fresh fresh) {
+    certificateStore.store(fresh.result);
+  }
+
+  public static void main(String[] args) throws RunnerException {
+    new Runner(new OptionsBuilder().include(OutputBenchmark.class.getSimpleName()).build()).run();
+  }
+}
@@ -0,0 +1,82 @@
+package com.github.coenraadhuman.certificatedownloader.benchmark;
+
+import com.github.coenraadhuman.certificatedownloader.CertificateDownloaderApplication;
+import com.github.coenraadhuman.certificatedownloader.scan.ScanResult;
+import com.github.coenraadhuman.certificatedownloader.scan.ScanTarget;
+import com.github.coenraadhuman.certificatedownloader.support.LocalTlsServer;
+import com.github.coenraadhuman.certificatedownloader.utils.CertDownload;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+import org.springframework.boot.Banner;
+import org.springframework.boot.builder.SpringApplicationBuilder;
+import org.springframework.context.ConfigurableApplicationContext;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the single target path from a cold JVM: starting the application context, downloading
+ * the chain of a local TLS server and closing the context again. Every fork runs the operation
+ * exactly once, so class loading and initialization are part of each sample, with and without
+ * lazy initialization of the beans. Pass <i>-jvmArgsAppend -XX:SharedArchiveFile=...</i> to the
+ * runner to compare against an AppCDS archive.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 0)
+@Measurement(iterations = 1)
+@Fork(10)
+public class StartupBenchmark {
+
+  @Param({"true", "false"})
+  public boolean lazy;
+
+  private LocalTlsServer server;
+  private ScanTarget target;
+
+  @Setup(Level.Trial)
+  public void setUp() throws Exception {
+    server = new LocalTlsServer();
+    target = new ScanTarget(server.getHost(), server.getPort());
+  }
+
+  @TearDown(Level.Trial)
+  public void tearDown() throws Exception {
+    server.close();
+  }
+
+  @Benchmark
+  public int startAndDownload() {
+    try (ConfigurableApplicationContext context =
+        new SpringApplicationBuilder(CertificateDownloaderApplication.class)
+            .bannerMode(Banner.Mode.OFF)
+            .logStartupInfo(false)
+            .run("--spring.main.lazy-initialization=" + lazy, "--cache.ttl=0")) {
+      ScanResult result = context.getBean(CertDownload.class).download(target);
+      if (result.getCertificates().size() != server.getChain().length) {
+        throw new IllegalStateException(
+            String.format("Incomplete chain from %s: %s", target, result.getError()));
+      }
+
+      return result.getCertificates().size();
+    }
+  }
+
+  public static void main(String[] args) throws RunnerException {
+    new Runner(new OptionsBuilder().include(StartupBenchmark.class.getSimpleName()).build()).run();
+  }
+}
@@ -0,0 +1,39 @@
+package com.github.coenraadhuman.certificatedownloader.net;
+
+import com.github.coenraadhuman.certificatedownloader.support.TestCertificates;
+import org.junit.jupiter.api.Test;
+
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLEngine;
+import java.security.cert.X509Certificate;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+
+class AcceptAllX509TrustManagerTests {
+
+  @Test
+  void capturesEachChainAgainstItsOwnEngineUntilTaken() throws Exception {
+    X509Certificate first =
+        TestCertificates.selfSigned("CN=first", TestCertificates.generateKeyPair(), 30);
+    X509Certificate second =
+        TestCertificates.selfSigned("CN=second", TestCertificates.generateKeyPair(), 30);
+    AcceptAllX509TrustManager tm = new AcceptAllX509TrustManager();
+    SSLContext context = SSLContext.getInstance("TLS");
+    context.init(null, null, null);
+    SSLEngine one = context.createSSLEngine();
+    SSLEngine other = context.createSSLEngine();
+
+    tm.checkServerTrusted(new X509Certificate[] {first}, "RSA", one);
+    tm.checkServerTrusted(new X509Certificate[] {second}, "RSA", other);
+    assertEquals(2, tm.getPendingCount());
+
+    assertSame(second, tm.take(other).getCertificates().get(0));
+    assertSame(first, tm.take(one).getCertificates().get(0));
+    // Taking removes the capture, nothing is left behind or handed out twice.
+    assertNull(tm.take(one));
+    assertNull(tm.take(other));
+    assertEquals(0, tm.getPendingCount());
+  }
+}
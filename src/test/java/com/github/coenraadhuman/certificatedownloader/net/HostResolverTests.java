@@ -0,0 +1,34 @@
+package com.github.coenraadhuman.certificatedownloader.net;
+
+import org.junit.jupiter.api.Test;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotSame;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+class HostResolverTests {
+
+  @Test
+  void cachesLookupsUntilTheyExpire() throws Exception {
+    HostResolver resolver = new HostResolver("60000", "60000", "100", "2");
+    CompletableFuture<List<InetAddress>> first = resolver.resolveAsync("127.0.0.1");
+    assertSame(first, resolver.resolveAsync("127.0.0.1"));
+    assertEquals(InetAddress.getLoopbackAddress(), resolver.resolve("127.0.0.1").get(0));
+
+    assertThrows(UnknownHostException.class, () -> resolver.resolve("nosuch.invalid"));
+    assertEquals(2, resolver.getCachedCount());
+    resolver.close();
+
+    HostResolver expiring = new HostResolver("0", "0", "100", "2");
+    CompletableFuture<List<InetAddress>> expired = expiring.resolveAsync("127.0.0.1");
+    expired.join();
+    assertNotSame(expired, expiring.resolveAsync("127.0.0.1"));
+    expiring.close();
+  }
+}
@@ -0,0 +1,76 @@
+package com.github.coenraadhuman.certificatedownloader.net;
+
+import com.github.coenraadhuman.certificatedownloader.support.TestCertificates;
+import com.github.coenraadhuman.certificatedownloader.utils.Fingerprints;
+import org.junit.jupiter.api.Test;
+
+import java.security.KeyPair;
+import java.security.cert.X509Certificate;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class KeyStoreTests {
+
+  @Test
+  void lookupsFollowAddAndRemove() throws Exception {
+    KeyPair rootKey = TestCertificates.generateKeyPair();
+    X509Certificate root = TestCertificates.selfSigned("CN=Root, O=Test", rootKey, 30);
+    X509Certificate leaf =
+        TestCertificates.issue(
+            "CN=leaf, O=Test",
+            TestCertificates.generateKeyPair().getPublic(),
+            "CN=Root, O=Test",
+            rootKey.getPrivate(),
+            30);
+
+    KeyStore keyStore = new InMemoryKeyStore();
+    assertTrue(keyStore.add(root, "root"));
+    assertTrue(keyStore.add(leaf, "leaf"));
+
+    assertTrue(keyStore.contains(leaf));
+    assertTrue(keyStore.contains("cn=leaf,o=test"));
+    assertTrue(keyStore.containsFingerprint(Fingerprints.sha256(leaf)));
+    assertEquals("leaf", keyStore.getAlias(leaf));
+    assertEquals(1, keyStore.getCertificatesBySubject("CN=leaf,  O=Test").size());
+    assertEquals(2, keyStore.getCertificatesByIssuer("CN=Root, O=Test").size());
+
+    assertTrue(keyStore.remove(leaf));
+    assertFalse(keyStore.contains(leaf));
+    assertFalse(keyStore.contains("CN=leaf, O=Test"));
+    assertNull(keyStore.getCertificateByFingerprint(Fingerprints.sha256(leaf)));
+    assertEquals(1, keyStore.getCertificatesByIssuer("CN=Root, O=Test").size());
+    assertEquals(1, keyStore.getCount());
+  }
+
+  @Test
+  void keepsCertificatesIndexedUntilTheirLastAliasGoes() throws Exception {
+    X509Certificate root =
+        TestCertificates.selfSigned("CN=Root, O=Test", TestCertificates.generateKeyPair(), 30);
+    X509Certificate other =
+        TestCertificates.selfSigned("CN=Other, O=Test", TestCertificates.generateKeyPair(), 30);
+
+    KeyStore keyStore = new InMemoryKeyStore();
+    assertTrue(keyStore.add(root, "first"));
+    assertTrue(keyStore.add(root, "second"));
+    assertEquals("first", keyStore.getAlias(root));
+
+    // Replacing one alias leaves the certificate indexed through the other.
+    assertTrue(keyStore.add(other, "first"));
+    assertTrue(keyStore.contains(root));
+    assertEquals("second", keyStore.getAlias(root));
+    assertEquals(1, keyStore.getCertificatesBySubject("CN=Root, O=Test").size());
+    assertEquals(root, keyStore.getCertificateByFingerprint(Fingerprints.sha256(root)));
+    assertEquals("first", keyStore.getAlias(other));
+
+    assertTrue(keyStore.add(root, "third"));
+    assertTrue(keyStore.remove(root));
+    assertFalse(keyStore.contains(root));
+    assertFalse(keyStore.contains("CN=Root, O=Test"));
+    assertFalse(keyStore.containsFingerprint(Fingerprints.sha256(root)));
+    assertEquals(1, keyStore.getCount());
+    assertTrue(keyStore.contains(other));
+  }
+}
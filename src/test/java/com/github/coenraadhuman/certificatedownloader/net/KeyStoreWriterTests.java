@@ -0,0 +1,39 @@
+package com.github.coenraadhuman.certificatedownloader.net;
+
+import com.github.coenraadhuman.certificatedownloader.support.TestCertificates;
+import com.github.coenraadhuman.certificatedownloader.utils.ScanMetrics;
+import com.github.coenraadhuman.certificatedownloader.utils.TimerWheel;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.cert.X509Certificate;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class KeyStoreWriterTests {
+
+  @Test
+  void flushesOnTheIntervalWithoutFurtherAdditions(@TempDir Path directory) throws Exception {
+    TimerWheel timerWheel = new TimerWheel("10");
+    KeyStoreWriter writer =
+        new KeyStoreWriter("1000", "50", timerWheel, new ScanMetrics(new String[0], "false", ""));
+    Path file = directory.resolve("trust.jks");
+    char[] password = "changeit".toCharArray();
+    writer.open(file.toString(), password, false);
+
+    X509Certificate cert =
+        TestCertificates.selfSigned("CN=localhost", TestCertificates.generateKeyPair(), 30);
+    assertTrue(writer.add(cert));
+
+    // Far below the entry threshold, only the interval writes the file.
+    long deadline = System.nanoTime() + 5_000_000_000L;
+    while (!Files.exists(file) && System.nanoTime() < deadline) Thread.sleep(10);
+    assertTrue(Files.exists(file));
+    writer.close();
+    assertEquals(1, new FileBasedKeyStore(file.toString(), password).getCount());
+    timerWheel.close();
+  }
+}
@@ -0,0 +1,58 @@
+package com.github.coenraadhuman.certificatedownloader.net;
+
+import com.github.coenraadhuman.certificatedownloader.scan.ScanResult;
+import com.github.coenraadhuman.certificatedownloader.scan.ScanTarget;
+import com.github.coenraadhuman.certificatedownloader.support.LocalTlsServer;
+import com.github.coenraadhuman.certificatedownloader.utils.ScanMetrics;
+import com.github.coenraadhuman.certificatedownloader.utils.TimerWheel;
+import org.junit.jupiter.api.Test;
+
+import java.net.InetAddress;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class NioHandshakeEngineTests {
+
+  @Test
+  void fallsBackToTheNextAddressOfTheTarget() throws Exception {
+    try (LocalTlsServer server = new LocalTlsServer()) {
+      // TEST-NET-1 is never routed, its attempt either fails or hangs until raced.
+      List<InetAddress> addresses =
+          Arrays.asList(InetAddress.getByName("192.0.2.1"), InetAddress.getLoopbackAddress());
+      HostResolver hostResolver =
+          new HostResolver("300000", "30000", "100", "2") {
+            @Override
+            public CompletableFuture<List<InetAddress>> resolveAsync(String host) {
+              return CompletableFuture.completedFuture(addresses);
+            }
+          };
+      SSLSocketFactory sslSocketFactory = new SSLSocketFactory("10000", new String[] {"TLS"});
+      sslSocketFactory.init();
+      sslSocketFactory.setConnectTimeout(10000);
+      sslSocketFactory.setAttemptDelay(100);
+      TimerWheel timerWheel = new TimerWheel("10");
+      NioHandshakeEngine engine =
+          new NioHandshakeEngine(
+              sslSocketFactory,
+              hostResolver,
+              timerWheel,
+              new ScanMetrics(new String[0], "false", ""),
+              "1");
+
+      long started = System.nanoTime();
+      ScanResult result =
+          engine.handshake(new ScanTarget("localhost", server.getPort())).get(10, TimeUnit.SECONDS);
+      assertTrue(result.isSuccess(), result.getError());
+      assertEquals(2, result.getCertificates().size());
+      assertTrue(System.nanoTime() - started < TimeUnit.SECONDS.toNanos(5));
+
+      engine.close();
+      timerWheel.close();
+    }
+  }
+}
@@ -0,0 +1,99 @@
+package com.github.coenraadhuman.certificatedownloader.net;
+
+import com.github.coenraadhuman.certificatedownloader.scan.ScanResult;
+import com.github.coenraadhuman.certificatedownloader.scan.ScanTarget;
+import com.github.coenraadhuman.certificatedownloader.support.LocalTlsServer;
+import org.junit.jupiter.api.Test;
+
+import javax.net.ssl.SSLSocket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.security.cert.Certificate;
+import java.security.cert.X509Certificate;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class ProtocolNegotiatorTests {
+
+  @Test
+  void fallsBackAndRemembersAcceptedVersion() throws Exception {
+    try (LocalTlsServer server = new LocalTlsServer()) {
+      server.setEnabledProtocols("TLSv1.2");
+      ScanTarget target = new ScanTarget(server.getHost(), server.getPort());
+
+      SSLSocketFactory sslSocketFactory = new SSLSocketFactory("10000", new String[] {"TLS"});
+      sslSocketFactory.init();
+      sslSocketFactory.setProtocolVersions(new String[] {"TLSv1.3", "TLSv1.2"});
+      ProtocolNegotiator negotiator = new ProtocolNegotiator(sslSocketFactory, "10000", "8");
+
+      List<String> attempts = new CopyOnWriteArrayList<>();
+      ProtocolNegotiator.Attempt attempt =
+          (protocol, opened) -> {
+            attempts.add(protocol);
+            try (SSLSocket s =
+                sslSocketFactory.createSocket(target.getHost(), target.getPort(), protocol)) {
+              s.startHandshake();
+              List<X509Certificate> certificates = new ArrayList<>();
+              for (Certificate cert : s.getSession().getPeerCertificates()) {
+                certificates.add((X509Certificate) cert);
+              }
+              return ScanResult.success(target, certificates, 0);
+            }
+          };
+
+      ScanResult result = negotiator.negotiate(target, attempt);
+      assertTrue(result.isSuccess());
+      assertEquals(Arrays.asList("TLSv1.3", "TLSv1.2"), attempts);
+      assertEquals("TLSv1.2", negotiator.getAcceptedProtocol(target));
+
+      // The remembered version is tried first, the rejected one is never started.
+      attempts.clear();
+      assertTrue(negotiator.negotiate(target, attempt).isSuccess());
+      assertEquals(Arrays.asList("TLSv1.2"), attempts);
+
+      negotiator.close();
+    }
+  }
+
+  @Test
+  void abortsTheAttemptsThatLost() throws Exception {
+    try (ServerSocket silent = new ServerSocket(0, 1, InetAddress.getLoopbackAddress())) {
+      ScanTarget target = new ScanTarget("127.0.0.1", silent.getLocalPort());
+      SSLSocketFactory sslSocketFactory = new SSLSocketFactory("10000", new String[] {"TLS"});
+      sslSocketFactory.init();
+      sslSocketFactory.setProtocolVersions(new String[] {"TLSv1.3", "TLSv1.2"});
+      ProtocolNegotiator negotiator = new ProtocolNegotiator(sslSocketFactory, "100", "2");
+
+      // TLSv1.3 gets no answer, TLSv1.2 succeeds once it is raced alongside it and the stalled
+      // attempt is aborted rather than left waiting for an answer.
+      CountDownLatch aborted = new CountDownLatch(1);
+      ProtocolNegotiator.Attempt attempt =
+          (protocol, opened) -> {
+            if (protocol.equals("TLSv1.2")) return ScanResult.success(target, List.of(), 0);
+
+            try (Socket socket = new Socket()) {
+              opened.accept(socket);
+              socket.connect(new InetSocketAddress(target.getHost(), target.getPort()));
+              socket.getInputStream().read();
+              return ScanResult.success(target, List.of(), 0);
+            } finally {
+              aborted.countDown();
+            }
+          };
+
+      ScanResult result = negotiator.negotiate(target, attempt);
+      assertTrue(result.isSuccess());
+      assertTrue(aborted.await(5, TimeUnit.SECONDS));
+      negotiator.close();
+    }
+  }
+}
@@ -0,0 +1,113 @@
+package com.github.coenraadhuman.certificatedownloader.net;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.net.Inet4Address;
+import java.net.Inet6Address;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketAddress;
+import java.net.SocketTimeoutException;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.junit.jupiter.api.Assumptions.assumeTrue;
+
+class SSLSocketFactoryTests {
+
+  private static final long BROKEN_PATH_MILLIS = 1000;
+
+  private ServerSocket ipv6;
+  private ServerSocket ipv4;
+  private List<InetAddress> addresses;
+  private SSLSocketFactory sslSocketFactory;
+
+  @BeforeEach
+  void setUp() throws Exception {
+    assumeTrue(isIpv6Available(), "IPv6 loopback is unavailable");
+    // Both families listen on the same port, as a dual-stack server does.
+    for (int i = 0; ipv4 == null; i++) {
+      ipv6 = new ServerSocket(0, 50, InetAddress.getByName("::1"));
+      try {
+        ipv4 = new ServerSocket(ipv6.getLocalPort(), 50, InetAddress.getByName("127.0.0.1"));
+      } catch (IOException e) {
+        ipv6.close();
+        if (i == 10) throw e;
+      }
+    }
+    addresses = Arrays.asList(ipv6.getInetAddress(), ipv4.getInetAddress());
+
+    sslSocketFactory = new SSLSocketFactory("10000", new String[] {"TLS"});
+    sslSocketFactory.setConnectTimeout(5000);
+  }
+
+  @AfterEach
+  void tearDown() throws Exception {
+    if (sslSocketFactory != null) sslSocketFactory.close();
+    if (ipv6 != null) ipv6.close();
+    if (ipv4 != null) ipv4.close();
+  }
+
+  private static boolean isIpv6Available() {
+    try (ServerSocket socket = new ServerSocket(0, 1, InetAddress.getByName("::1"))) {
+      return true;
+    } catch (IOException e) {
+      return false;
+    }
+  }
+
+  @Test
+  void prefersTheFirstFamilyWhenItConnects() throws Exception {
+    sslSocketFactory.setAttemptDelay(250);
+    try (Socket socket = sslSocketFactory.connect(addresses, ipv4.getLocalPort(), Socket::new)) {
+      assertTrue(socket.getInetAddress() instanceof Inet6Address);
+    }
+  }
+
+  @Test
+  void racingAvoidsWaitingOutBrokenPaths() throws Exception {
+    sslSocketFactory.setAttemptDelay(0);
+    long sequential = connectOverBrokenIpv6();
+    assertTrue(sequential >= BROKEN_PATH_MILLIS, "sequential took " + sequential + " ms");
+
+    sslSocketFactory.setAttemptDelay(50);
+    long slowest = 0;
+    for (int i = 0; i < 5; i++) slowest = Math.max(slowest, connectOverBrokenIpv6());
+    assertTrue(slowest < BROKEN_PATH_MILLIS / 2, "racing took up to " + slowest + " ms");
+  }
+
+  private long connectOverBrokenIpv6() throws IOException {
+    long start = System.nanoTime();
+    try (Socket socket =
+        sslSocketFactory.connect(addresses, ipv4.getLocalPort(), BrokenIpv6Socket::new)) {
+      assertTrue(socket.getInetAddress() instanceof Inet4Address);
+    }
+
+    return TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+  }
+
+  /** Stalls connecting over IPv6 before timing out, as a blackholed path does. */
+  private static final class BrokenIpv6Socket extends Socket {
+
+    @Override
+    public void connect(SocketAddress endpoint, int timeout) throws IOException {
+      if (((InetSocketAddress) endpoint).getAddress() instanceof Inet6Address) {
+        try {
+          Thread.sleep(BROKEN_PATH_MILLIS);
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+        }
+        throw new SocketTimeoutException("connect timed out");
+      }
+
+      super.connect(endpoint, timeout);
+    }
+  }
+}
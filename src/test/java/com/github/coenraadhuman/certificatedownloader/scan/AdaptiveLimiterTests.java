@@ -0,0 +1,203 @@
+package com.github.coenraadhuman.certificatedownloader.scan;
+
+import com.github.coenraadhuman.certificatedownloader.net.DeadlineExceededException;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.ConnectException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.net.SocketTimeoutException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class AdaptiveLimiterTests {
+
+  /** Connections the simulated server serves without queueing. */
+  private static final int CAPACITY = 8;
+
+  private static final long SERVICE_MILLIS = 5;
+  private static final long QUEUEING_MILLIS = 20;
+
+  private ServerSocket server;
+  private ExecutorService handlers;
+  private final AtomicInteger active = new AtomicInteger();
+  private final AtomicInteger resets = new AtomicInteger();
+
+  /**
+   * Starts a server that answers each connection with a byte after the service time, plus the
+   * queueing time for every connection beyond its capacity, and resets connections outright when
+   * more than three times its capacity are open.
+   */
+  @BeforeEach
+  void setUp() throws Exception {
+    server = new ServerSocket(0, 500, InetAddress.getByName("127.0.0.1"));
+    handlers = Executors.newCachedThreadPool();
+    handlers.execute(
+        () -> {
+          while (!server.isClosed()) {
+            try {
+              Socket socket = server.accept();
+              handlers.execute(() -> serve(socket));
+            } catch (IOException e) {
+              return;
+            }
+          }
+        });
+  }
+
+  private void serve(Socket socket) {
+    int open = active.incrementAndGet();
+    try (socket) {
+      int queued = Math.max(0, open - CAPACITY);
+      if (queued > 2 * CAPACITY) {
+        resets.incrementAndGet();
+        socket.setSoLinger(true, 0);
+        return;
+      }
+      Thread.sleep(SERVICE_MILLIS + queued * QUEUEING_MILLIS);
+      socket.getOutputStream().write(1);
+
+    } catch (IOException | InterruptedException ignored) {
+      // The client notices the reset.
+    } finally {
+      active.decrementAndGet();
+    }
+  }
+
+  @AfterEach
+  void tearDown() throws Exception {
+    server.close();
+    handlers.shutdownNow();
+  }
+
+  @Test
+  void convergesOnTheCapacityOfTheSubnet() throws Exception {
+    AdaptiveLimiter limiter =
+        new AdaptiveLimiter(
+            new RateLimiter("0", "0", "24", "64"), "true", "2", "1", "1024", "0.9", "2.0");
+    ScanTarget target = new ScanTarget("127.0.0.1", server.getLocalPort());
+    AdaptiveLimiter.Limit limit = limiter.of(target);
+    InetSocketAddress address = new InetSocketAddress(target.getHost(), target.getPort());
+
+    // Far more clients than the server can take, only the limiter holds them back.
+    int requests = 3000;
+    AtomicInteger remaining = new AtomicInteger(requests);
+    List<Integer> limits = new ArrayList<>();
+    ExecutorService clients = Executors.newFixedThreadPool(64);
+    for (int i = 0; i < 64; i++) {
+      clients.execute(
+          () -> {
+            while (remaining.getAndDecrement() > 0) {
+              AdaptiveLimiter.Permit permit = limiter.acquire(target);
+              long start = System.nanoTime();
+              boolean dropped = !request(address);
+              permit.release(dropped ? 0 : System.nanoTime() - start, dropped);
+              synchronized (limits) {
+                limits.add(limit.getLimit());
+              }
+            }
+          });
+    }
+    clients.shutdown();
+    assertTrue(clients.awaitTermination(60, TimeUnit.SECONDS));
+
+    // It grew past the initial limit, then settled around the capacity rather than the clients.
+    assertTrue(limits.stream().anyMatch(l -> l >= CAPACITY));
+    List<Integer> settled = limits.subList(limits.size() - requests / 3, limits.size());
+    double average = settled.stream().mapToInt(Integer::intValue).average().orElse(0);
+    assertTrue(average >= CAPACITY / 2.0 && average <= CAPACITY * 2.0, "Settled at " + average);
+    assertFalse(settled.stream().anyMatch(l -> l > 3 * CAPACITY), "Limit overshot " + settled);
+    assertEquals(0, limit.getInFlight());
+  }
+
+  @Test
+  void classifiesTimeoutsAndResetsAsCongestion() {
+    assertTrue(
+        AdaptiveLimiter.isCongestion(
+            cause(new DeadlineExceededException(DeadlineExceededException.CONNECT, 5000))));
+    assertTrue(
+        AdaptiveLimiter.isCongestion(
+            cause(new DeadlineExceededException(DeadlineExceededException.HANDSHAKE, 10000))));
+    assertTrue(AdaptiveLimiter.isCongestion(cause(new SocketException("Connection reset"))));
+    assertTrue(AdaptiveLimiter.isCongestion(cause(new SocketTimeoutException("Read timed out"))));
+    assertFalse(
+        AdaptiveLimiter.isCongestion(
+            cause(new DeadlineExceededException(DeadlineExceededException.RUN, 60000))));
+    assertFalse(AdaptiveLimiter.isCongestion(cause(new ConnectException("Connection refused"))));
+    assertFalse(AdaptiveLimiter.isCongestion(null));
+  }
+
+  @Test
+  void queuesHandshakesBeyondTheLimitUntilPermitsAreReleased() {
+    AdaptiveLimiter limiter =
+        new AdaptiveLimiter(
+            new RateLimiter("0", "0", "24", "64"), "true", "1", "1", "1", "0.9", "2.0");
+    ScanTarget target = new ScanTarget("10.0.0.1", 443);
+    CompletableFuture<AdaptiveLimiter.Permit> first = limiter.acquireAsync(target);
+    CompletableFuture<AdaptiveLimiter.Permit> second = limiter.acquireAsync(target);
+    CompletableFuture<AdaptiveLimiter.Permit> third = limiter.acquireAsync(target);
+
+    // Another subnet is not held back by the saturated one.
+    assertTrue(limiter.acquireAsync(new ScanTarget("10.0.1.1", 443)).isDone());
+    assertTrue(first.isDone());
+    assertFalse(second.isDone());
+    assertEquals(2, limiter.of(target).getWaiting());
+
+    first.join().release(0, false);
+    assertTrue(second.isDone());
+    assertFalse(third.isDone());
+    second.join().release(0, false);
+    third.join().release(0, false);
+    assertEquals(0, limiter.of(target).getInFlight());
+  }
+
+  @Test
+  void keepsLimitsWithHandshakesInFlight() {
+    AdaptiveLimiter limiter =
+        new AdaptiveLimiter(
+            new RateLimiter("0", "0", "24", "64"), "true", "1", "1", "1", "0.9", "2.0");
+    ScanTarget target = new ScanTarget("10.0.0.1", 443);
+    AdaptiveLimiter.Permit permit = limiter.acquire(target);
+    AdaptiveLimiter.Limit limit = limiter.of(target);
+
+    // Enough other subnets to evict it, were it idle.
+    for (int i = 0; i < 70000; i++) {
+      String address = String.format("%d.%d.%d.1", 11 + i / 65536, i / 256 % 256, i % 256);
+      limiter.of(new ScanTarget(address, 443));
+    }
+    assertSame(limit, limiter.of(target));
+    permit.release(0, false);
+  }
+
+  private static boolean request(InetSocketAddress address) {
+    try (Socket socket = new Socket()) {
+      socket.connect(address, 5000);
+      socket.setSoTimeout(5000);
+      InputStream in = socket.getInputStream();
+      return in.read() == 1;
+    } catch (IOException e) {
+      return false;
+    }
+  }
+
+  private static ScanResult.Cause cause(Exception e) {
+    return ScanResult.Cause.of(e);
+  }
+}
@@ -0,0 +1,43 @@
+package com.github.coenraadhuman.certificatedownloader.scan;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.concurrent.CompletableFuture;
+
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class BatchScannerTests {
+
+  @Test
+  void reportsUnexpectedExceptionsAsFailures() {
+    ScanTarget target = new ScanTarget("localhost", 443);
+
+    ScanResult thrown =
+        BatchScanner.guarded(
+                target,
+                next -> {
+                  throw new IllegalArgumentException("Protocol TLSv9 is not available");
+                })
+            .join();
+    assertFalse(thrown.isSuccess());
+    assertTrue(thrown.getError().contains("TLSv9"), thrown.getError());
+
+    ScanResult completed =
+        BatchScanner.guarded(
+                target,
+                next ->
+                    CompletableFuture.supplyAsync(
+                        () -> {
+                          throw new NullPointerException("engine");
+                        }))
+            .join();
+    assertFalse(completed.isSuccess());
+    assertTrue(completed.getError().contains("NullPointerException"), completed.getError());
+
+    // A closed port of a sweep completes without a result, which is passed on as it is.
+    assertNull(
+        BatchScanner.guarded(target, next -> CompletableFuture.completedFuture(null)).join());
+  }
+}
@@ -0,0 +1,101 @@
+package com.github.coenraadhuman.certificatedownloader.scan;
+
+import com.github.coenraadhuman.certificatedownloader.net.SSLSocketFactory;
+import com.github.coenraadhuman.certificatedownloader.support.LocalTlsServer;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import javax.net.ssl.SSLException;
+import javax.net.ssl.SSLHandshakeException;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.Arrays;
+import java.util.Collections;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class CipherEnumeratorTests {
+
+  private static final String AES_128 = "TLS_ECDHE_ECDSA_WITH_AES_128_GCM_SHA256";
+  private static final String AES_256 = "TLS_ECDHE_ECDSA_WITH_AES_256_GCM_SHA384";
+
+  private SSLSocketFactory sslSocketFactory;
+  private CipherEnumerator cipherEnumerator;
+
+  @BeforeEach
+  void setUp() {
+    sslSocketFactory = new SSLSocketFactory("10000", new String[] {"TLS"});
+    sslSocketFactory.init();
+    sslSocketFactory.setProtocolVersions(new String[] {"TLSv1.3", "TLSv1.2"});
+    cipherEnumerator = new CipherEnumerator(sslSocketFactory, "4", "2", "1", "4");
+  }
+
+  @AfterEach
+  void tearDown() {
+    cipherEnumerator.close();
+    sslSocketFactory.close();
+  }
+
+  @Test
+  void enumeratesTheSuitesTheServerAccepts() throws Exception {
+    try (LocalTlsServer server = new LocalTlsServer()) {
+      server.setEnabledProtocols("TLSv1.2");
+      server.setEnabledCipherSuites(AES_128, AES_256);
+
+      CipherReport report =
+          cipherEnumerator.enumerate(new ScanTarget(server.getHost(), server.getPort()));
+      assertTrue(report.isSuccess(), report.getError());
+      assertEquals(Collections.emptyList(), report.getSuitesByProtocol().get("TLSv1.3"));
+      assertTrue(
+          report.getSuitesByProtocol().get("TLSv1.2").containsAll(Arrays.asList(AES_128, AES_256)));
+      assertEquals(2, report.getSuiteCount());
+    }
+  }
+
+  @Test
+  void reportsFailuresOtherThanDeclinedSuites() throws Exception {
+    // Accepts connections and closes them at once, as an overloaded server may.
+    try (ServerSocket server = new ServerSocket(0, 50, InetAddress.getLoopbackAddress())) {
+      Thread closer =
+          new Thread(
+              () -> {
+                while (!server.isClosed()) {
+                  try (Socket ignored = server.accept()) {
+                    // Closed without a word.
+                  } catch (Exception e) {
+                    return;
+                  }
+                }
+              });
+      closer.setDaemon(true);
+      closer.start();
+
+      CipherReport report =
+          cipherEnumerator.enumerate(new ScanTarget("127.0.0.1", server.getLocalPort()));
+      assertFalse(report.isSuccess());
+      // Every chain of probes was tried once more before giving up.
+      assertEquals(8, report.getHandshakes());
+    }
+  }
+
+  @Test
+  void onlyDeclinedSuitesEndAChainOfProbes() {
+    assertTrue(
+        CipherEnumerator.isDeclined(
+            new SSLHandshakeException("Received fatal alert: handshake_failure")));
+    assertTrue(
+        CipherEnumerator.isDeclined(
+            new SSLHandshakeException("Received fatal alert: protocol_version")));
+    assertFalse(
+        CipherEnumerator.isDeclined(
+            new SSLHandshakeException("Remote host terminated the handshake")));
+    assertFalse(
+        CipherEnumerator.isDeclined(
+            new SSLHandshakeException("Received fatal alert: internal_error")));
+    assertFalse(CipherEnumerator.isDeclined(new SSLException("Connection reset")));
+  }
+}
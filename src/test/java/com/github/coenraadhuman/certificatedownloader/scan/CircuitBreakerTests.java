@@ -0,0 +1,148 @@
+package com.github.coenraadhuman.certificatedownloader.scan;
+
+import com.github.coenraadhuman.certificatedownloader.net.DeadlineExceededException;
+import com.github.coenraadhuman.certificatedownloader.store.CertificateStore;
+import com.github.coenraadhuman.certificatedownloader.support.TestCertificates;
+import com.github.coenraadhuman.certificatedownloader.utils.ScanMetrics;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import javax.net.ssl.SSLException;
+import java.net.ConnectException;
+import java.net.NoRouteToHostException;
+import java.net.UnknownHostException;
+import java.nio.file.Path;
+import java.util.Collections;
+
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class CircuitBreakerTests {
+
+  private static CircuitBreaker open(Path directory, String ttl) {
+    return new CircuitBreaker(
+        new CertificateStore(directory.toString(), new ScanMetrics(new String[0], "false", "")),
+        new RateLimiter("0", "0", "24", "64"),
+        ttl,
+        "86400000",
+        "2",
+        "3",
+        "100");
+  }
+
+  @Test
+  void skipsFailedTargetsAcrossRunsWithTheirReason(@TempDir Path directory) {
+    ScanTarget target = new ScanTarget("localhost", 8080);
+    CircuitBreaker breaker = open(directory, "60000");
+    assertNull(breaker.check(target));
+    breaker.record(ScanResult.failure(target, "Unrecognized SSL message", 0));
+    breaker.close();
+
+    // A later run still skips the target, reporting its last failure.
+    CircuitBreaker reopened = open(directory, "60000");
+    ScanResult skipped = reopened.check(target);
+    assertNotNull(skipped);
+    assertFalse(skipped.isSuccess());
+    assertTrue(skipped.getError().endsWith("; Unrecognized SSL message"), skipped.getError());
+    // A port that does not speak TLS says nothing about the other ports of its host.
+    assertNull(reopened.check(new ScanTarget("localhost", 443)));
+
+    reopened.setBypass(true);
+    assertNull(reopened.check(target));
+    reopened.close();
+  }
+
+  @Test
+  void opensHostAndSubnetCircuitsOnUnreachableTargets(@TempDir Path directory) {
+    CircuitBreaker breaker = open(directory, "60000");
+    breaker.record(refused(new ScanTarget("10.0.0.1", 443)));
+    assertNull(breaker.check(new ScanTarget("10.0.0.1", 8443)));
+    breaker.record(refused(new ScanTarget("10.0.0.1", 8443)));
+
+    // Two failures open the host, three across the subnet open the subnet.
+    ScanResult skipped = breaker.check(new ScanTarget("10.0.0.1", 9443));
+    assertNotNull(skipped);
+    assertTrue(skipped.getError().contains("host 10.0.0.1"), skipped.getError());
+    assertNull(breaker.check(new ScanTarget("10.0.0.2", 443)));
+    breaker.record(
+        ScanResult.failure(
+            new ScanTarget("10.0.0.2", 443),
+            new DeadlineExceededException(DeadlineExceededException.CONNECT, 5),
+            0));
+    skipped = breaker.check(new ScanTarget("10.0.0.3", 443));
+    assertNotNull(skipped);
+    assertTrue(skipped.getError().contains("subnet 10.0.0.0/24"), skipped.getError());
+    assertNull(breaker.check(new ScanTarget("10.0.1.1", 443)));
+  }
+
+  @Test
+  void backsOffExponentiallyAndClosesOnSuccess(@TempDir Path directory) throws Exception {
+    ScanTarget target = new ScanTarget("localhost", 443);
+    CircuitBreaker breaker = open(directory, "50");
+    breaker.record(refused(target));
+    assertNotNull(breaker.check(target));
+
+    // Once the backoff expires one check is let through, the next waits for twice as long.
+    Thread.sleep(60);
+    assertNull(breaker.check(target));
+    assertNotNull(breaker.check(target));
+    breaker.record(refused(target));
+    Thread.sleep(60);
+    ScanResult skipped = breaker.check(target);
+    assertNotNull(skipped);
+    assertTrue(skipped.getError().startsWith("Skipped after 2 failure(s)"), skipped.getError());
+
+    Thread.sleep(60);
+    assertNull(breaker.check(target));
+    breaker.record(
+        ScanResult.success(
+            target,
+            Collections.singletonList(
+                TestCertificates.selfSigned(
+                    "CN=localhost", TestCertificates.generateKeyPair(), 30)),
+            0));
+    assertNull(breaker.check(target));
+    assertNull(breaker.check(target));
+  }
+
+  @Test
+  void countsPinnedTargetsAgainstTheirAddress(@TempDir Path directory) {
+    CircuitBreaker breaker = open(directory, "60000");
+    ScanTarget target = new ScanTarget("example.com", 443);
+    breaker.record(refused(target.withAddress("2001:db8::1")));
+    breaker.record(refused(new ScanTarget("example.com", 8443).withAddress("2001:db8::1")));
+
+    // The broken IPv6 address is skipped, the other address of the host is not.
+    ScanResult skipped =
+        breaker.check(new ScanTarget("example.com", 9443).withAddress("2001:db8::1"));
+    assertNotNull(skipped);
+    assertTrue(skipped.getError().contains("host 2001:db8::1"), skipped.getError());
+    assertNull(breaker.check(target.withAddress("192.0.2.1")));
+    assertNull(breaker.check(target));
+  }
+
+  @Test
+  void onlyCountsUnreachableTargetsAgainstTheirHost() {
+    assertTrue(CircuitBreaker.isUnreachable(cause(new UnknownHostException("unknown.example"))));
+    assertTrue(
+        CircuitBreaker.isUnreachable(
+            cause(new DeadlineExceededException(DeadlineExceededException.CONNECT, 5000))));
+    assertTrue(CircuitBreaker.isUnreachable(cause(new ConnectException("Connection refused"))));
+    assertTrue(CircuitBreaker.isUnreachable(cause(new NoRouteToHostException())));
+    assertFalse(CircuitBreaker.isUnreachable(cause(new SSLException("Unrecognized SSL message"))));
+    assertFalse(
+        CircuitBreaker.isUnreachable(
+            cause(new DeadlineExceededException(DeadlineExceededException.HANDSHAKE, 10000))));
+    assertFalse(CircuitBreaker.isUnreachable(null));
+  }
+
+  private static ScanResult refused(ScanTarget target) {
+    return ScanResult.failure(target, new ConnectException("Connection refused"), 0);
+  }
+
+  private static ScanResult.Cause cause(Exception e) {
+    return ScanResult.Cause.of(e);
+  }
+}
@@ -0,0 +1,63 @@
+package com.github.coenraadhuman.certificatedownloader.scan;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+class SweepTests {
+
+  @Test
+  void expandsBlocksAndPortsInterleavingSubnets() {
+    Sweep sweep = Sweep.parse("10.0.0.5/23, 192.0.2.1:8443-8444,443,8443", 24, 64);
+    assertEquals((512 + 1) * 3, sweep.size());
+
+    List<ScanTarget> targets = new ArrayList<>();
+    while (sweep.hasNext()) targets.add(sweep.next());
+
+    assertEquals(sweep.size(), targets.size());
+    assertEquals(targets.size(), new HashSet<>(targets).size());
+    // Ports in ascending order, each across every block, alternating the /24s of the /23.
+    assertEquals(
+        Arrays.asList(
+            new ScanTarget("10.0.0.0", 443),
+            new ScanTarget("10.0.1.0", 443),
+            new ScanTarget("10.0.0.1", 443),
+            new ScanTarget("10.0.1.1", 443)),
+        targets.subList(0, 4));
+    assertEquals(new ScanTarget("10.0.1.255", 443), targets.get(511));
+    assertEquals(new ScanTarget("192.0.2.1", 443), targets.get(512));
+    assertEquals(new ScanTarget("10.0.0.0", 8443), targets.get(513));
+    assertEquals(new ScanTarget("192.0.2.1", 8444), targets.get(targets.size() - 1));
+    assertFalse(sweep.hasNext());
+  }
+
+  @Test
+  void sweepsIpv6Blocks() {
+    Sweep sweep = Sweep.parse("2001:db8::/126:443", 24, 64);
+
+    assertEquals(new ScanTarget("2001:db8:0:0:0:0:0:0", 443), sweep.next());
+    assertEquals(new ScanTarget("2001:db8:0:0:0:0:0:1", 443), sweep.next());
+    assertEquals(4, sweep.size());
+  }
+
+  @Test
+  void rejectsInvalidSweeps() {
+    for (String spec :
+        Arrays.asList(
+            "10.0.0.0/24",
+            "example.org:443",
+            "10.0.0.0/33:443",
+            "2001:db8::/64:443",
+            "10.0.0.0/24:0",
+            "10.0.0.0/24:443-80")) {
+      assertThrows(IllegalArgumentException.class, () -> Sweep.parse(spec, 24, 64), spec);
+    }
+  }
+}
@@ -0,0 +1,84 @@
+package com.github.coenraadhuman.certificatedownloader.scan;
+
+import com.github.coenraadhuman.certificatedownloader.net.SSLSocketFactory;
+import com.github.coenraadhuman.certificatedownloader.support.LocalTlsServer;
+import com.github.coenraadhuman.certificatedownloader.support.TestCertDownloads;
+import com.github.coenraadhuman.certificatedownloader.utils.CertDownload;
+import com.github.coenraadhuman.certificatedownloader.utils.ScanMetrics;
+import com.github.coenraadhuman.certificatedownloader.utils.TimerWheel;
+import org.junit.jupiter.api.Test;
+import org.springframework.boot.logging.LogLevel;
+import org.springframework.boot.logging.LoggingSystem;
+
+import java.io.BufferedReader;
+import java.io.StringReader;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class WatcherTests {
+
+  @Test
+  void scansMoreOftenCloserToExpiry() {
+    Watcher watcher = new Watcher(null, "60000", "86400000", "60000", "10", "0");
+    Instant now = Instant.now();
+
+    assertEquals(86400000, watcher.interval(now.plus(Duration.ofDays(90)), now));
+    assertEquals(8640000, watcher.interval(now.plus(Duration.ofDays(1)), now));
+    assertEquals(60000, watcher.interval(now.plus(Duration.ofMinutes(5)), now));
+    assertEquals(60000, watcher.interval(now.minus(Duration.ofDays(1)), now));
+  }
+
+  @Test
+  void onlyPassesOnChangedChains() throws Exception {
+    try (LocalTlsServer server = new LocalTlsServer()) {
+      SSLSocketFactory sslSocketFactory = new SSLSocketFactory("10000", new String[] {"TLS"});
+      sslSocketFactory.init();
+      ScanMetrics scanMetrics = new ScanMetrics(new String[0], "false", "");
+      TimerWheel timerWheel = new TimerWheel("10");
+      CertDownload certDownload =
+          TestCertDownloads.create(sslSocketFactory, timerWheel, scanMetrics);
+      // Rescan every 20 ms regardless of expiry.
+      Watcher watcher = new Watcher(certDownload, "20", "20", "20", "10", "0.5");
+
+      LoggingSystem loggingSystem = LoggingSystem.get(getClass().getClassLoader());
+      loggingSystem.setLogLevel(CertDownload.class.getName(), LogLevel.INFO);
+
+      List<ScanResult> passed = new CopyOnWriteArrayList<>();
+      Thread watching =
+          new Thread(
+              () -> {
+                try {
+                  watcher.watch(
+                      new BufferedReader(
+                          new StringReader(server.getHost() + ":" + server.getPort() + "\n")),
+                      2,
+                      passed::add);
+                } catch (Exception e) {
+                  throw new IllegalStateException(e);
+                }
+              });
+      watching.start();
+      long deadline = System.currentTimeMillis() + 10000;
+      while (watcher.getScanCount() < 5 && System.currentTimeMillis() < deadline) {
+        Thread.sleep(20);
+      }
+      watcher.close();
+      watching.join(10000);
+
+      assertTrue(watcher.getScanCount() >= 5, "scans: " + watcher.getScanCount());
+      assertEquals(1, passed.size());
+      assertTrue(passed.get(0).isSuccess());
+      assertEquals(0, watcher.getChangeCount());
+      // Per-handshake logging is only lowered while watching.
+      assertEquals(
+          LogLevel.INFO,
+          loggingSystem.getLoggerConfiguration(CertDownload.class.getName()).getConfiguredLevel());
+      loggingSystem.setLogLevel(CertDownload.class.getName(), null);
+    }
+  }
+}
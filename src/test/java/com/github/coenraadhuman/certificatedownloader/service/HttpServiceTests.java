@@ -0,0 +1,150 @@
+package com.github.coenraadhuman.certificatedownloader.service;
+
+import com.github.coenraadhuman.certificatedownloader.net.SSLSocketFactory;
+import com.github.coenraadhuman.certificatedownloader.scan.ScanResult;
+import com.github.coenraadhuman.certificatedownloader.scan.ScanTarget;
+import com.github.coenraadhuman.certificatedownloader.support.LocalTlsServer;
+import com.github.coenraadhuman.certificatedownloader.support.TestCertDownloads;
+import com.github.coenraadhuman.certificatedownloader.utils.CertDownload;
+import com.github.coenraadhuman.certificatedownloader.utils.ScanMetrics;
+import com.github.coenraadhuman.certificatedownloader.utils.Fingerprints;
+import com.github.coenraadhuman.certificatedownloader.utils.TimerWheel;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class HttpServiceTests {
+
+  private LocalTlsServer server;
+  private TimerWheel timerWheel;
+  private ChainLookup chainLookup;
+  private HttpService httpService;
+
+  @BeforeEach
+  void setUp() throws Exception {
+    server = new LocalTlsServer();
+    SSLSocketFactory sslSocketFactory = new SSLSocketFactory("10000", new String[] {"TLS"});
+    sslSocketFactory.init();
+    timerWheel = new TimerWheel("10");
+    ScanMetrics scanMetrics = new ScanMetrics(new String[0], "false", "");
+    CertDownload certDownload = TestCertDownloads.create(sslSocketFactory, timerWheel, scanMetrics);
+    chainLookup = new ChainLookup(certDownload, "60000", "0", "100", "4");
+    httpService = new HttpService(chainLookup, scanMetrics, "127.0.0.1", "8", "10000");
+  }
+
+  @AfterEach
+  void tearDown() throws Exception {
+    httpService.stop();
+    chainLookup.close();
+    timerWheel.close();
+    server.close();
+  }
+
+  @Test
+  void coalescesConcurrentLookupsIntoOneHandshake() throws Exception {
+    server.setHandshakeDelay(300, TimeUnit.MILLISECONDS);
+    ScanTarget target = new ScanTarget(server.getHost(), server.getPort());
+
+    List<CompletableFuture<ScanResult>> lookups = new ArrayList<>();
+    for (int i = 0; i < 50; i++) lookups.add(chainLookup.lookup(target));
+    for (CompletableFuture<ScanResult> lookup : lookups) {
+      assertTrue(lookup.get(10, TimeUnit.SECONDS).isSuccess());
+    }
+    assertEquals(1, chainLookup.getHandshakeCount());
+    assertEquals(49, chainLookup.getCoalescedCount());
+
+    // Served from the response cache once the handshake completed.
+    assertTrue(chainLookup.lookup(target).get().isSuccess());
+    assertEquals(1, chainLookup.getHandshakeCount());
+    assertEquals(1, chainLookup.getCachedCount());
+  }
+
+  @Test
+  void retriesFailedLookups() throws Exception {
+    ScanTarget target;
+    try (ServerSocket closed = new ServerSocket(0, 1, InetAddress.getLoopbackAddress())) {
+      target = new ScanTarget("127.0.0.1", closed.getLocalPort());
+    }
+
+    assertFalse(chainLookup.lookup(target).get(10, TimeUnit.SECONDS).isSuccess());
+    assertFalse(chainLookup.lookup(target).get(10, TimeUnit.SECONDS).isSuccess());
+    assertEquals(2, chainLookup.getHandshakeCount());
+    assertEquals(0, chainLookup.getCachedCount());
+  }
+
+  @Test
+  void endsTheFlightWhenADownloadThrowsAnError() throws Exception {
+    CertDownload broken =
+        new CertDownload(null, null, null, null, null, null, null) {
+          @Override
+          public ScanResult download(ScanTarget target) {
+            throw new AssertionError("Broken");
+          }
+        };
+    ChainLookup lookup = new ChainLookup(broken, "60000", "0", "100", "1");
+    ScanTarget target = new ScanTarget("localhost", 443);
+    try {
+      assertFalse(lookup.lookup(target).get(5, TimeUnit.SECONDS).isSuccess());
+      // Left the flight, so the next lookup starts a handshake rather than waiting forever.
+      assertFalse(lookup.lookup(target).get(5, TimeUnit.SECONDS).isSuccess());
+      assertEquals(2, lookup.getHandshakeCount());
+    } finally {
+      lookup.close();
+    }
+  }
+
+  @Test
+  void servesTheChainAsPemAndJson() throws Exception {
+    httpService.start(0);
+    assertTrue(httpService.getAddress().getAddress().isLoopbackAddress());
+    String base =
+        String.format(
+            "http://127.0.0.1:%d/chain?target=%s:%d",
+            httpService.getPort(), server.getHost(), server.getPort());
+
+    HttpURLConnection pem = get(base + "&format=pem");
+    assertEquals(200, pem.getResponseCode());
+    assertTrue(read(pem.getInputStream()).startsWith("-----BEGIN CERTIFICATE-----\n"));
+
+    HttpURLConnection json = get(base);
+    assertEquals(200, json.getResponseCode());
+    String body = read(json.getInputStream());
+    assertTrue(body.contains("\"sha256\":\"" + Fingerprints.sha256(server.getChain()[0]) + "\""));
+
+    String missingPort =
+        String.format("http://127.0.0.1:%d/chain?target=localhost", httpService.getPort());
+    assertEquals(400, get(missingPort).getResponseCode());
+    String malformed =
+        String.format("http://127.0.0.1:%d/chain?target=%%zz", httpService.getPort());
+    assertEquals(400, get(malformed).getResponseCode());
+    assertEquals(1, chainLookup.getHandshakeCount());
+  }
+
+  private static HttpURLConnection get(String url) throws Exception {
+    HttpURLConnection connection = (HttpURLConnection) new URL(url).openConnection();
+    connection.setConnectTimeout(5000);
+    connection.setReadTimeout(15000);
+    return connection;
+  }
+
+  private static String read(InputStream in) throws Exception {
+    try (in) {
+      return new String(in.readAllBytes(), StandardCharsets.UTF_8);
+    }
+  }
+}
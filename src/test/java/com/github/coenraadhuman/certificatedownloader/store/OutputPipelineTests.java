@@ -0,0 +1,65 @@
+package com.github.coenraadhuman.certificatedownloader.store;
+
+import com.github.coenraadhuman.certificatedownloader.net.KeyStoreWriter;
+import com.github.coenraadhuman.certificatedownloader.scan.ScanResult;
+import com.github.coenraadhuman.certificatedownloader.scan.ScanTarget;
+import com.github.coenraadhuman.certificatedownloader.support.TestCertificates;
+import com.github.coenraadhuman.certificatedownloader.utils.Fingerprints;
+import com.github.coenraadhuman.certificatedownloader.utils.ScanMetrics;
+import com.github.coenraadhuman.certificatedownloader.utils.TimerWheel;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.cert.X509Certificate;
+import java.util.Collections;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class OutputPipelineTests {
+
+  @Test
+  void closeStoresEveryQueuedResult(@TempDir Path directory) throws Exception {
+    X509Certificate cert =
+        TestCertificates.selfSigned("CN=localhost", TestCertificates.generateKeyPair(), 30);
+    ScanMetrics scanMetrics = new ScanMetrics(new String[0], "false", "");
+    CertificateStore certificateStore = new CertificateStore(directory.toString(), scanMetrics);
+    // A queue of one keeps the submitting thread waiting on the writer most of the time.
+    ResultWriter resultWriter = new ResultWriter("jsonl");
+    Path results = directory.resolve("results.jsonl");
+    resultWriter.open(results, null);
+    OutputPipeline pipeline =
+        new OutputPipeline(
+            certificateStore,
+            new KeyStoreWriter("500", "30000", new TimerWheel("10"), scanMetrics),
+            resultWriter,
+            "1",
+            "8");
+
+    int targets = 500;
+    for (int i = 0; i < targets; i++) {
+      pipeline.submit(
+          ScanResult.success(
+              new ScanTarget("localhost", 1000 + i), Collections.singletonList(cert), 0));
+    }
+    pipeline.close();
+    resultWriter.close();
+
+    assertEquals(0, pipeline.getPendingCount());
+    assertEquals(targets, Files.readAllLines(results).size());
+    assertEquals(targets, Files.readAllLines(directory.resolve("index.tsv")).size());
+    assertTrue(Files.exists(certificateStore.pathOf(Fingerprints.sha256(cert))));
+    // Stored once no matter how many targets presented it.
+    assertEquals(
+        1,
+        scanMetrics
+            .getRegistry()
+            .get("scan.phase")
+            .tag("phase", ScanMetrics.WRITE)
+            .tag("outcome", "success")
+            .timer()
+            .count());
+  }
+}
@@ -0,0 +1,138 @@
+package com.github.coenraadhuman.certificatedownloader.store;
+
+import com.github.coenraadhuman.certificatedownloader.scan.ScanResult;
+import com.github.coenraadhuman.certificatedownloader.scan.ScanTarget;
+import com.github.coenraadhuman.certificatedownloader.support.TestCertificates;
+import com.github.coenraadhuman.certificatedownloader.utils.ScanMetrics;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.cert.X509Certificate;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class ResultCacheTests {
+
+  private static ResultCache open(Path directory) {
+    return new ResultCache(
+        new CertificateStore(directory.toString(), new ScanMetrics(new String[0], "false", "")),
+        "60000",
+        "10");
+  }
+
+  @Test
+  void servesResultsAcrossRunsUntilBypassed(@TempDir Path directory) throws Exception {
+    List<X509Certificate> chain =
+        Collections.singletonList(
+            TestCertificates.selfSigned("CN=localhost", TestCertificates.generateKeyPair(), 30));
+    ScanTarget target = new ScanTarget("localhost", 443);
+
+    ResultCache cache = open(directory);
+    assertNull(cache.get(target));
+    cache.put(ScanResult.success(target, chain, 0));
+    cache.put(ScanResult.failure(new ScanTarget("localhost", 444), "refused", 0));
+    cache.close();
+
+    // A later run indexes the file again, only the successful result was cached.
+    ResultCache reopened = open(directory);
+    ScanResult cached = reopened.get(target);
+    assertNotNull(cached);
+    assertEquals(chain, cached.getCertificates());
+    assertNull(reopened.get(new ScanTarget("localhost", 444)));
+
+    reopened.setBypass(true);
+    assertNull(reopened.get(target));
+    reopened.close();
+  }
+
+  @Test
+  void staysBoundedAndSurvivesTornWrites(@TempDir Path directory) throws Exception {
+    List<X509Certificate> chain =
+        Collections.singletonList(
+            TestCertificates.selfSigned("CN=localhost", TestCertificates.generateKeyPair(), 30));
+    ResultCache cache = open(directory);
+
+    // Rewriting the same few targets leaves mostly superseded records, which get compacted.
+    for (int i = 0; i < 5000; i++) {
+      cache.put(ScanResult.success(new ScanTarget("localhost", 1000 + i % 20), chain, 0));
+    }
+    assertEquals(10, cache.getCachedCount());
+    assertNull(cache.get(new ScanTarget("localhost", 1000)));
+    assertNotNull(cache.get(new ScanTarget("localhost", 1019)));
+    cache.close();
+
+    Path file = directory.resolve("results.cache");
+    long size = Files.size(file);
+    // Over 4 MiB were written, compaction starts once 1 MiB of it is superseded.
+    assertTrue(size < 2 << 20, "size: " + size);
+
+    // Half a record at the end, as left by a crash while appending.
+    try (FileChannel channel = FileChannel.open(file, StandardOpenOption.WRITE)) {
+      channel.truncate(size - 100);
+    }
+    ResultCache reopened = open(directory);
+    assertNotNull(reopened.get(new ScanTarget("localhost", 1018)));
+    reopened.put(ScanResult.success(new ScanTarget("localhost", 1019), chain, 0));
+    reopened.close();
+
+    reopened = open(directory);
+    assertNotNull(reopened.get(new ScanTarget("localhost", 1019)));
+    reopened.close();
+  }
+
+  @Test
+  void servesConcurrentWorkersThroughCompaction(@TempDir Path directory) throws Exception {
+    List<X509Certificate> chain =
+        Collections.singletonList(
+            TestCertificates.selfSigned("CN=localhost", TestCertificates.generateKeyPair(), 30));
+    ResultCache cache = open(directory);
+
+    // Enough superseded records to compact several times while others read and append.
+    ExecutorService workers = Executors.newFixedThreadPool(8);
+    List<Future<?>> done = new ArrayList<>();
+    for (int w = 0; w < 8; w++) {
+      int worker = w;
+      done.add(
+          workers.submit(
+              () -> {
+                for (int i = 0; i < 600; i++) {
+                  ScanTarget target = new ScanTarget("localhost", 1000 + (worker + i) % 20);
+                  cache.put(ScanResult.success(target, chain, 0));
+                  ScanResult cached = cache.get(target);
+                  if (cached != null) assertEquals(chain, cached.getCertificates());
+                }
+              }));
+    }
+    for (Future<?> future : done) future.get(60, TimeUnit.SECONDS);
+    workers.shutdown();
+    assertEquals(10, cache.getCachedCount());
+    cache.close();
+
+    assertTrue(Files.size(directory.resolve("results.cache")) < 2 << 20);
+    ResultCache reopened = open(directory);
+    int served = 0;
+    for (int port = 1000; port < 1020; port++) {
+      ScanResult cached = reopened.get(new ScanTarget("localhost", port));
+      if (cached != null) {
+        assertEquals(chain, cached.getCertificates());
+        served++;
+      }
+    }
+    assertEquals(10, served);
+    reopened.close();
+  }
+}
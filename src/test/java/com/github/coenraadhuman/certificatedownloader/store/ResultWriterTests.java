@@ -0,0 +1,100 @@
+package com.github.coenraadhuman.certificatedownloader.store;
+
+import com.github.coenraadhuman.certificatedownloader.scan.ScanResult;
+import com.github.coenraadhuman.certificatedownloader.scan.ScanTarget;
+import com.github.coenraadhuman.certificatedownloader.support.TestCertificates;
+import com.github.coenraadhuman.certificatedownloader.utils.Fingerprints;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.KeyPair;
+import java.security.cert.X509Certificate;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class ResultWriterTests {
+
+  private static final String ROOT = "CN=Test Root,O=Example";
+
+  @Test
+  void streamsOneJsonLinePerResult() throws Exception {
+    List<X509Certificate> chain = chain();
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    ResultWriter writer = new ResultWriter("jsonl");
+    writer.open(out, null);
+
+    writer.write(
+        ScanResult.success(new ScanTarget("example.org", 443), chain, 0)
+            .withConnection(
+                "192.0.2.1",
+                "TLSv1.3",
+                "TLS_AES_128_GCM_SHA256",
+                TimeUnit.MICROSECONDS.toNanos(1500),
+                TimeUnit.MILLISECONDS.toNanos(12)));
+    // Written as it arrives, before the writer is closed.
+    assertEquals(1, lines(out).length);
+    writer.write(
+        ScanResult.failure(new ScanTarget("example.net", 443), "Connection \"refused\"", 0));
+    writer.close();
+
+    String[] lines = lines(out);
+    assertEquals(2, lines.length);
+    assertTrue(
+        lines[0].startsWith("{\"host\":\"example.org\",\"port\":443,\"address\":\"192.0.2.1\""));
+    assertTrue(lines[0].contains("\"cipherSuite\":\"TLS_AES_128_GCM_SHA256\""));
+    assertTrue(lines[0].contains("\"connectMillis\":1.5,\"handshakeMillis\":12.0"));
+    assertTrue(lines[0].contains("\"sha256\":\"" + Fingerprints.sha256(chain.get(1)) + "\""));
+    assertTrue(lines[0].contains("\"issuer\":\"" + ROOT + "\""));
+    assertTrue(lines[1].contains("\"address\":null"));
+    assertTrue(lines[1].endsWith("\"error\":\"Connection \\\"refused\\\"\",\"certificates\":[]}"));
+  }
+
+  @Test
+  void quotesCsvColumnsHoldingSeparators(@TempDir Path directory) throws Exception {
+    List<X509Certificate> chain = chain();
+    Path file = directory.resolve("out").resolve("results.csv");
+    ResultWriter writer = new ResultWriter("jsonl");
+    writer.open(file, ResultWriter.CSV);
+
+    writer.write(ScanResult.success(new ScanTarget("example.org", 443), chain, 0));
+    writer.close();
+
+    List<String> lines = Files.readAllLines(file, StandardCharsets.UTF_8);
+    assertEquals(2, lines.size());
+    assertTrue(lines.get(0).startsWith("host,port,address,"));
+    assertTrue(
+        lines
+            .get(1)
+            .startsWith(
+                "example.org,443,,,,0.0,0.0,0.0,,"
+                    + Fingerprints.sha256(chain.get(0))
+                    + "|"
+                    + Fingerprints.sha256(chain.get(1))
+                    + ",\"CN=example.org|" + ROOT + "\","));
+
+    assertThrows(
+        IllegalArgumentException.class, () -> writer.open(new ByteArrayOutputStream(), "xml"));
+  }
+
+  private static List<X509Certificate> chain() throws Exception {
+    KeyPair root = TestCertificates.generateKeyPair();
+    return Arrays.asList(
+        TestCertificates.unsigned(
+            "CN=example.org", TestCertificates.generateKeyPair().getPublic(), ROOT, 30),
+        TestCertificates.selfSigned(ROOT, root, 30));
+  }
+
+  private static String[] lines(ByteArrayOutputStream out) {
+    String written = new String(out.toByteArray(), StandardCharsets.UTF_8);
+    return written.isEmpty() ? new String[0] : written.split("\n");
+  }
+}
@@ -0,0 +1,137 @@
+package com.github.coenraadhuman.certificatedownloader.support;
+
+import javax.net.ssl.KeyManagerFactory;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLServerSocket;
+import javax.net.ssl.SSLSocket;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.security.GeneralSecurityException;
+import java.security.KeyPair;
+import java.security.KeyStore;
+import java.security.cert.X509Certificate;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * TLS server on an ephemeral loopback port presenting a generated two certificate chain, used by
+ * tests and benchmarks in place of a real endpoint. Each connection is served by its own thread,
+ * which completes the handshake and then waits for the client to close.
+ */
+public class LocalTlsServer implements AutoCloseable {
+
+  private final SSLServerSocket serverSocket;
+  private final X509Certificate[] chain;
+  private final ExecutorService executor = Executors.newCachedThreadPool();
+  private volatile long handshakeDelayMillis;
+  private volatile String[] enabledProtocols;
+  private volatile String[] enabledCipherSuites;
+
+  public LocalTlsServer() throws GeneralSecurityException, IOException {
+    this(InetAddress.getLoopbackAddress());
+  }
+
+  public LocalTlsServer(InetAddress address) throws GeneralSecurityException, IOException {
+    KeyPair rootKey = TestCertificates.generateKeyPair();
+    KeyPair leafKey = TestCertificates.generateKeyPair();
+    X509Certificate root = TestCertificates.selfSigned("CN=Test Root, O=Test", rootKey, 365);
+    X509Certificate leaf =
+        TestCertificates.issue(
+            "CN=localhost, O=Test",
+            leafKey.getPublic(),
+            "CN=Test Root, O=Test",
+            rootKey.getPrivate(),
+            30);
+    this.chain = new X509Certificate[] {leaf, root};
+
+    char[] password = "changeit".toCharArray();
+    KeyStore keyStore = KeyStore.getInstance("PKCS12");
+    keyStore.load(null, password);
+    keyStore.setKeyEntry("server", leafKey.getPrivate(), password, chain);
+    KeyManagerFactory factory = KeyManagerFactory.getInstance("SunX509");
+    factory.init(keyStore, password);
+    SSLContext context = SSLContext.getInstance("TLS");
+    context.init(factory.getKeyManagers(), null, null);
+
+    this.serverSocket = (SSLServerSocket) context.getServerSocketFactory().createServerSocket();
+    this.serverSocket.bind(new InetSocketAddress(address, 0), 4096);
+    this.executor.execute(this::accept);
+  }
+
+  public int getPort() {
+    return serverSocket.getLocalPort();
+  }
+
+  public String getHost() {
+    return serverSocket.getInetAddress().getHostAddress();
+  }
+
+  public X509Certificate[] getChain() {
+    return chain.clone();
+  }
+
+  /**
+   * Delays every subsequent handshake, simulating a slow or distant server.
+   *
+   * @param delay Time to wait after accepting before answering the ClientHello.
+   * @param unit TimeUnit of the delay.
+   */
+  public void setHandshakeDelay(long delay, TimeUnit unit) {
+    this.handshakeDelayMillis = unit.toMillis(delay);
+  }
+
+  /**
+   * Restricts the protocol versions subsequent connections may negotiate.
+   *
+   * @param protocols Versions such as TLSv1.2.
+   */
+  public void setEnabledProtocols(String... protocols) {
+    this.enabledProtocols = protocols.clone();
+  }
+
+  /**
+   * Restricts the cipher suites subsequent connections may negotiate.
+   *
+   * @param suites Suite names such as TLS_AES_128_GCM_SHA256.
+   */
+  public void setEnabledCipherSuites(String... suites) {
+    this.enabledCipherSuites = suites.clone();
+  }
+
+  private void accept() {
+    while (!serverSocket.isClosed()) {
+      try {
+        SSLSocket socket = (SSLSocket) serverSocket.accept();
+        executor.execute(() -> serve(socket));
+      } catch (IOException ignored) {
+        // Closed.
+      }
+    }
+  }
+
+  private void serve(SSLSocket socket) {
+    try (socket; InputStream in = socket.getInputStream()) {
+      // Set per connection, the server socket configures a socket before accept blocks.
+      if (enabledProtocols != null) socket.setEnabledProtocols(enabledProtocols);
+      if (enabledCipherSuites != null) socket.setEnabledCipherSuites(enabledCipherSuites);
+      if (handshakeDelayMillis > 0) Thread.sleep(handshakeDelayMillis);
+      socket.startHandshake();
+      while (in.read() >= 0) {
+        // Discard until the client closes.
+      }
+    } catch (IOException ignored) {
+      // Clients abort handshakes and close without notice, neither is of interest here.
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  @Override
+  public void close() throws IOException {
+    serverSocket.close();
+    executor.shutdownNow();
+  }
+}
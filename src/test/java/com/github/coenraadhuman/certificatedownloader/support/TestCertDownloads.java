@@ -0,0 +1,48 @@
+package com.github.coenraadhuman.certificatedownloader.support;
+
+import com.github.coenraadhuman.certificatedownloader.net.HostResolver;
+import com.github.coenraadhuman.certificatedownloader.net.KeyStoreWriter;
+import com.github.coenraadhuman.certificatedownloader.net.ProtocolNegotiator;
+import com.github.coenraadhuman.certificatedownloader.net.SSLSocketFactory;
+import com.github.coenraadhuman.certificatedownloader.store.CertificateStore;
+import com.github.coenraadhuman.certificatedownloader.store.OutputPipeline;
+import com.github.coenraadhuman.certificatedownloader.store.ResultCache;
+import com.github.coenraadhuman.certificatedownloader.store.ResultWriter;
+import com.github.coenraadhuman.certificatedownloader.utils.CertDownload;
+import com.github.coenraadhuman.certificatedownloader.utils.ScanMetrics;
+import com.github.coenraadhuman.certificatedownloader.utils.TimerWheel;
+
+/**
+ * Wires a CertDownload for tests and benchmarks the way the application context does, with the
+ * result cache off and certificates stored in the working directory.
+ */
+public final class TestCertDownloads {
+
+  private TestCertDownloads() {}
+
+  public static CertDownload create(
+      SSLSocketFactory sslSocketFactory, TimerWheel timerWheel, ScanMetrics scanMetrics) {
+    return create(
+        sslSocketFactory, new HostResolver("300000", "30000", "100", "2"), timerWheel, scanMetrics);
+  }
+
+  public static CertDownload create(
+      SSLSocketFactory sslSocketFactory,
+      HostResolver hostResolver,
+      TimerWheel timerWheel,
+      ScanMetrics scanMetrics) {
+    return new CertDownload(
+        sslSocketFactory,
+        hostResolver,
+        new ProtocolNegotiator(sslSocketFactory, "1000", "8"),
+        new OutputPipeline(
+            new CertificateStore("", scanMetrics),
+            new KeyStoreWriter("500", "30000", timerWheel, scanMetrics),
+            new ResultWriter("jsonl"),
+            "16",
+            "16"),
+        timerWheel,
+        new ResultCache(new CertificateStore("", scanMetrics), "0", "0"),
+        scanMetrics);
+  }
+}
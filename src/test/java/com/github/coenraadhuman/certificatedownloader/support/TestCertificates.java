@@ -0,0 +1,177 @@
+package com.github.coenraadhuman.certificatedownloader.support;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.math.BigInteger;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.PrivateKey;
+import java.security.PublicKey;
+import java.security.Signature;
+import java.security.cert.CertificateFactory;
+import java.security.cert.X509Certificate;
+import java.security.spec.ECGenParameterSpec;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.TimeZone;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Generates EC certificates for tests and benchmarks without depending on keytool or internal JDK
+ * classes, by DER encoding a minimal X.509 v3 structure by hand.
+ */
+public final class TestCertificates {
+
+  private static final byte[] OID_ECDSA_WITH_SHA256 = {
+    0x2a, (byte) 0x86, 0x48, (byte) 0xce, 0x3d, 0x04, 0x03, 0x02
+  };
+  private static final byte[] OID_COMMON_NAME = {0x55, 0x04, 0x03};
+  private static final byte[] OID_ORGANIZATION = {0x55, 0x04, 0x0a};
+  private static final byte[] OID_ORGANIZATIONAL_UNIT = {0x55, 0x04, 0x0b};
+  private static final AtomicLong SERIAL = new AtomicLong(System.currentTimeMillis());
+
+  private TestCertificates() {}
+
+  public static KeyPair generateKeyPair() throws GeneralSecurityException {
+    KeyPairGenerator generator = KeyPairGenerator.getInstance("EC");
+    generator.initialize(new ECGenParameterSpec("secp256r1"));
+    return generator.generateKeyPair();
+  }
+
+  /**
+   * Creates a self-signed certificate valid for the given number of days.
+   *
+   * @param subject DN made up of CN, O and OU attributes, e.g. <i>CN=localhost, O=Test</i>.
+   * @param keyPair Key pair of the subject, which also signs the certificate.
+   * @param days Validity from now.
+   * @return X509Certificate
+   */
+  public static X509Certificate selfSigned(String subject, KeyPair keyPair, int days)
+      throws GeneralSecurityException {
+    return issue(subject, keyPair.getPublic(), subject, keyPair.getPrivate(), days);
+  }
+
+  /**
+   * Creates a certificate for the subject key signed by the issuer key.
+   *
+   * @param subject DN of the certificate.
+   * @param subjectKey PublicKey of the subject.
+   * @param issuer DN of the issuer.
+   * @param issuerKey PrivateKey of the issuer.
+   * @param days Validity from now.
+   * @return X509Certificate
+   */
+  public static X509Certificate issue(
+      String subject, PublicKey subjectKey, String issuer, PrivateKey issuerKey, int days)
+      throws GeneralSecurityException {
+    return encode(subject, subjectKey, issuer, issuerKey, days);
+  }
+
+  /**
+   * Creates a certificate as {@link #issue} does but with a placeholder signature, which is far
+   * cheaper when generating many certificates for code that never verifies them.
+   *
+   * @param subject DN of the certificate.
+   * @param subjectKey PublicKey of the subject.
+   * @param issuer DN of the issuer.
+   * @param days Validity from now.
+   * @return X509Certificate that does not verify against any key.
+   */
+  public static X509Certificate unsigned(
+      String subject, PublicKey subjectKey, String issuer, int days)
+      throws GeneralSecurityException {
+    return encode(subject, subjectKey, issuer, null, days);
+  }
+
+  private static X509Certificate encode(
+      String subject, PublicKey subjectKey, String issuer, PrivateKey issuerKey, int days)
+      throws GeneralSecurityException {
+    long now = System.currentTimeMillis();
+    byte[] algorithm = sequence(tlv(0x06, OID_ECDSA_WITH_SHA256));
+    byte[] tbs =
+        sequence(
+            tlv(0xa0, tlv(0x02, new byte[] {2})),
+            tlv(0x02, BigInteger.valueOf(SERIAL.incrementAndGet()).toByteArray()),
+            algorithm,
+            name(issuer),
+            sequence(
+                utcTime(new Date(now - 60_000)),
+                utcTime(new Date(now + TimeUnit.DAYS.toMillis(days)))),
+            name(subject),
+            subjectKey.getEncoded());
+
+    byte[] signed = sequence(tlv(0x02, new byte[] {1}), tlv(0x02, new byte[] {1}));
+    if (issuerKey != null) {
+      Signature signature = Signature.getInstance("SHA256withECDSA");
+      signature.initSign(issuerKey);
+      signature.update(tbs);
+      signed = signature.sign();
+    }
+    byte[] bitString = new byte[signed.length + 1];
+    System.arraycopy(signed, 0, bitString, 1, signed.length);
+
+    byte[] encoded = sequence(tbs, algorithm, tlv(0x03, bitString));
+    return (X509Certificate)
+        CertificateFactory.getInstance("X.509")
+            .generateCertificate(new ByteArrayInputStream(encoded));
+  }
+
+  private static byte[] name(String dn) {
+    String[] parts = dn.split(",");
+    byte[][] rdns = new byte[parts.length][];
+    for (int i = 0; i < parts.length; i++) {
+      String[] pair = parts[i].trim().split("=", 2);
+      byte[] oid;
+      switch (pair[0].trim().toUpperCase()) {
+        case "CN":
+          oid = OID_COMMON_NAME;
+          break;
+        case "O":
+          oid = OID_ORGANIZATION;
+          break;
+        case "OU":
+          oid = OID_ORGANIZATIONAL_UNIT;
+          break;
+        default:
+          throw new IllegalArgumentException("Unsupported attribute: " + pair[0]);
+      }
+      byte[] value = pair[1].trim().getBytes(StandardCharsets.UTF_8);
+      // The string form lists the most specific attribute first, the encoding lists it last.
+      rdns[parts.length - 1 - i] = tlv(0x31, sequence(tlv(0x06, oid), tlv(0x0c, value)));
+    }
+
+    return sequence(rdns);
+  }
+
+  private static byte[] utcTime(Date date) {
+    SimpleDateFormat format = new SimpleDateFormat("yyMMddHHmmss'Z'");
+    format.setTimeZone(TimeZone.getTimeZone("UTC"));
+    return tlv(0x17, format.format(date).getBytes(StandardCharsets.US_ASCII));
+  }
+
+  private static byte[] sequence(byte[]... elements) {
+    ByteArrayOutputStream content = new ByteArrayOutputStream();
+    for (byte[] element : elements) content.writeBytes(element);
+
+    return tlv(0x30, content.toByteArray());
+  }
+
+  private static byte[] tlv(int tag, byte[] value) {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    out.write(tag);
+    if (value.length < 0x80) {
+      out.write(value.length);
+    } else {
+      byte[] length = BigInteger.valueOf(value.length).toByteArray();
+      int offset = length[0] == 0 ? 1 : 0;
+      out.write(0x80 | (length.length - offset));
+      out.write(length, offset, length.length - offset);
+    }
+    out.writeBytes(value);
+
+    return out.toByteArray();
+  }
+}
@@ -0,0 +1,133 @@
+package com.github.coenraadhuman.certificatedownloader.utils;
+
+import com.github.coenraadhuman.certificatedownloader.net.SSLSocketFactory;
+import com.github.coenraadhuman.certificatedownloader.scan.ScanResult;
+import com.github.coenraadhuman.certificatedownloader.scan.ScanTarget;
+import com.github.coenraadhuman.certificatedownloader.support.LocalTlsServer;
+import com.github.coenraadhuman.certificatedownloader.support.TestCertDownloads;
+import org.junit.jupiter.api.Test;
+
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.List;
+import java.util.function.Supplier;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class CertDownloadTests {
+
+  @Test
+  void reportsTheHandshakeDeadline() throws Exception {
+    // Accepts connections but never answers the ClientHello.
+    try (ServerSocket silent = new ServerSocket(0, 50, InetAddress.getLoopbackAddress())) {
+      Thread acceptor =
+          new Thread(
+              () -> {
+                try {
+                  while (true) {
+                    @SuppressWarnings("unused")
+                    Socket ignored = silent.accept();
+                  }
+                } catch (Exception ignored) {
+                  // Closed at the end of the test.
+                }
+              });
+      acceptor.setDaemon(true);
+      acceptor.start();
+
+      SSLSocketFactory sslSocketFactory = new SSLSocketFactory("10000", new String[] {"TLS"});
+      sslSocketFactory.init();
+      sslSocketFactory.setHandshakeTimeout(200);
+      TimerWheel timerWheel = new TimerWheel("10");
+      ScanMetrics scanMetrics = new ScanMetrics(new String[0], "false", "");
+      CertDownload certDownload =
+          TestCertDownloads.create(sslSocketFactory, timerWheel, scanMetrics);
+
+      ScanResult result =
+          certDownload.download(new ScanTarget("127.0.0.1", silent.getLocalPort()));
+      assertFalse(result.isSuccess());
+      assertEquals("Handshake deadline of 200 ms expired", result.getError());
+
+      sslSocketFactory.setTargetTimeout(100);
+      result = certDownload.download(new ScanTarget("127.0.0.1", silent.getLocalPort()));
+      assertEquals("Target deadline of 100 ms expired", result.getError());
+      timerWheel.close();
+    }
+  }
+
+  @Test
+  void endsTheDownloadPhaseOnUnexpectedExceptions() {
+    SSLSocketFactory sslSocketFactory =
+        new SSLSocketFactory("10000", new String[] {"TLS"}) {
+          @Override
+          public Socket connect(List<InetAddress> addresses, int port, Supplier<Socket> sockets) {
+            throw new IllegalStateException("Broken");
+          }
+        };
+    sslSocketFactory.init();
+    TimerWheel timerWheel = new TimerWheel("10");
+    ScanMetrics scanMetrics = new ScanMetrics(new String[0], "false", "");
+    CertDownload certDownload = TestCertDownloads.create(sslSocketFactory, timerWheel, scanMetrics);
+
+    assertThrows(
+        IllegalStateException.class,
+        () -> certDownload.download(new ScanTarget("127.0.0.1", 443).withAddress("127.0.0.1")));
+    assertEquals(
+        0.0,
+        scanMetrics
+            .getRegistry()
+            .get("scan.in.flight")
+            .tag("phase", ScanMetrics.DOWNLOAD)
+            .gauge()
+            .value());
+    timerWheel.close();
+  }
+
+  @Test
+  void resumesSessionsUntilAFullHandshakeIsRequested() throws Exception {
+    for (String protocol : new String[] {"TLSv1.2", "TLSv1.3"}) {
+      try (LocalTlsServer server = new LocalTlsServer()) {
+        server.setEnabledProtocols(protocol);
+        SSLSocketFactory sslSocketFactory = new SSLSocketFactory("10000", new String[] {"TLS"});
+        sslSocketFactory.setResumption(true);
+        sslSocketFactory.setTicketWait(1000);
+        sslSocketFactory.init();
+        TimerWheel timerWheel = new TimerWheel("10");
+        ScanMetrics scanMetrics = new ScanMetrics(new String[0], "false", "");
+        CertDownload certDownload =
+            TestCertDownloads.create(sslSocketFactory, timerWheel, scanMetrics);
+        ScanTarget target = new ScanTarget(server.getHost(), server.getPort());
+
+        // Each download waits for the ticket of the previous one, used up by its handshake.
+        long started = System.nanoTime();
+        for (int i = 0; i < 3; i++) {
+          ScanResult result = awaitTicket(certDownload.download(target));
+          assertTrue(result.isSuccess(), result.getError());
+          assertEquals(protocol, result.getProtocol());
+          assertEquals(2, result.getCertificates().size());
+        }
+        assertEquals(1, sslSocketFactory.getFullHandshakes(), protocol);
+        assertEquals(2, sslSocketFactory.getResumedHandshakes(), protocol);
+        // The ticket wait of a second does not hold up the downloads.
+        assertTrue(System.nanoTime() - started < 2_000_000_000L, protocol);
+
+        assertTrue(awaitTicket(certDownload.download(target, true)).isSuccess());
+        assertEquals(2, sslSocketFactory.getFullHandshakes(), protocol);
+        assertTrue(certDownload.download(target).isSuccess());
+        assertEquals(3, sslSocketFactory.getResumedHandshakes(), protocol);
+        sslSocketFactory.close();
+        timerWheel.close();
+      }
+    }
+  }
+
+  private static ScanResult awaitTicket(ScanResult result) throws InterruptedException {
+    // The server sends the ticket right after the handshake, processed on another thread.
+    Thread.sleep(200);
+    return result;
+  }
+}
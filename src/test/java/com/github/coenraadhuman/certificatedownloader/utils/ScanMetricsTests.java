@@ -0,0 +1,73 @@
+package com.github.coenraadhuman.certificatedownloader.utils;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.net.ConnectException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class ScanMetricsTests {
+
+  @Test
+  void timesPhasesByOutcomeAndCountsErrorsByCause(@TempDir Path directory) throws Exception {
+    ScanMetrics metrics = new ScanMetrics(new String[] {"0.5", "0.99"}, "false", "");
+
+    assertEquals("resolved", metrics.time(ScanMetrics.DNS, () -> "resolved"));
+    assertThrows(
+        ConnectException.class,
+        () ->
+            metrics.time(
+                ScanMetrics.CONNECT,
+                () -> {
+                  throw new ConnectException("Connection refused");
+                }));
+
+    ScanMetrics.Phase handshake = metrics.start(ScanMetrics.HANDSHAKE);
+    assertEquals(1.0, inFlight(metrics, ScanMetrics.HANDSHAKE));
+    handshake.fail(new IOException("Handshake timed out"));
+    // Ending a phase again is ignored, so cleanup paths may stop it unconditionally.
+    handshake.stop();
+
+    assertEquals(1, timed(metrics, ScanMetrics.DNS, "success"));
+    assertEquals(1, timed(metrics, ScanMetrics.CONNECT, "failure"));
+    assertEquals(1, timed(metrics, ScanMetrics.HANDSHAKE, "failure"));
+    assertEquals(
+        1.0,
+        metrics
+            .getRegistry()
+            .get("scan.errors")
+            .tag("phase", ScanMetrics.CONNECT)
+            .tag("cause", "ConnectException")
+            .counter()
+            .count());
+    assertEquals(0.0, inFlight(metrics, ScanMetrics.HANDSHAKE));
+
+    Path file = directory.resolve("metrics").resolve("scan.prom");
+    metrics.setFile(file);
+    metrics.close();
+    String written = new String(Files.readAllBytes(file), StandardCharsets.UTF_8);
+    assertTrue(written.contains("scan_errors_total"));
+    assertTrue(written.contains("scan_phase"));
+  }
+
+  private static long timed(ScanMetrics metrics, String phase, String outcome) {
+    return metrics
+        .getRegistry()
+        .get("scan.phase")
+        .tag("phase", phase)
+        .tag("outcome", outcome)
+        .timer()
+        .count();
+  }
+
+  private static double inFlight(ScanMetrics metrics, String phase) {
+    return metrics.getRegistry().get("scan.in.flight").tag("phase", phase).gauge().value();
+  }
+}
@@ -0,0 +1,43 @@
+package com.github.coenraadhuman.certificatedownloader.utils;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class TimerWheelTests {
+
+  @Test
+  void firesScheduledTimeoutsUnlessCancelled() throws Exception {
+    TimerWheel wheel = new TimerWheel("1");
+    AtomicInteger cancelledRuns = new AtomicInteger();
+    CountDownLatch fired = new CountDownLatch(2);
+
+    long start = System.nanoTime();
+    wheel.schedule(fired::countDown, 20, TimeUnit.MILLISECONDS);
+    // Beyond a full turn of the wheel, so it waits out a round in its bucket.
+    wheel.schedule(fired::countDown, 600, TimeUnit.MILLISECONDS);
+    wheel.schedule(cancelledRuns::incrementAndGet, 50, TimeUnit.MILLISECONDS).cancel();
+
+    assertTrue(fired.await(5, TimeUnit.SECONDS));
+    assertTrue(System.nanoTime() - start >= TimeUnit.MILLISECONDS.toNanos(600));
+    assertEquals(0, cancelledRuns.get());
+    wheel.close();
+  }
+
+  @Test
+  void doesNotFireBeforeTheDelay() throws Exception {
+    TimerWheel wheel = new TimerWheel("10");
+    CountDownLatch fired = new CountDownLatch(1);
+    wheel.schedule(fired::countDown, 300, TimeUnit.MILLISECONDS);
+
+    assertFalse(fired.await(200, TimeUnit.MILLISECONDS));
+    assertTrue(fired.await(5, TimeUnit.SECONDS));
+    wheel.close();
+  }
+}
@@ -0,0 +1,37 @@
+package com.github.coenraadhuman.certificatedownloader.utils;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class TokenBucketTests {
+
+  @Test
+  void allowsABurstThenPacesToTheRate() {
+    TokenBucket bucket = new TokenBucket(100);
+
+    // A tenth of a second worth of tokens is available right away.
+    for (int i = 0; i < 10; i++) assertEquals(0, bucket.reserve());
+
+    long start = System.nanoTime();
+    for (int i = 0; i < 20; i++) bucket.acquire();
+    long elapsed = System.nanoTime() - start;
+
+    assertTrue(elapsed >= TimeUnit.MILLISECONDS.toNanos(180), "Took " + elapsed + " ns");
+    assertTrue(elapsed < TimeUnit.MILLISECONDS.toNanos(1000), "Took " + elapsed + " ns");
+  }
+
+  @Test
+  void reservesInOrderOfArrival() {
+    TokenBucket bucket = new TokenBucket(10);
+    assertEquals(0, bucket.reserve());
+
+    long first = bucket.reserve();
+    long second = bucket.reserve();
+    assertTrue(first > 0 && second > first);
+    assertTrue(second - first >= TimeUnit.MILLISECONDS.toNanos(90));
+  }
+}